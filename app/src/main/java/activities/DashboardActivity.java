@@ -0,0 +1,344 @@
+package activities;
+
+import android.content.DialogInterface;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.os.Handler;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.EditText;
+import android.widget.TextView;
+
+import androidx.appcompat.app.AlertDialog;
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+import androidx.recyclerview.widget.SimpleItemAnimator;
+
+import com.github.pertempto.valvetimer.R;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import common.ActivityHistory;
+import common.LatencyHistogram;
+import common.NetworkMetrics;
+import common.PollScheduler;
+import common.RequestPolicy;
+import common.RowTicker;
+import common.StatusRenderer;
+import common.TaskRunner;
+import common.Util;
+import common.ValveList;
+import models.Timer;
+
+/* Every configured valve with its live status.
+ *
+ * The rows are recycled and only rebound when their timer changed. One 1 Hz tick polls the valves that are
+ * due in a single batched request and renders the countdowns of the rows on screen. */
+public class DashboardActivity extends AppCompatActivity {
+
+    private static final String LOG_TAG = "DashboardActivity";
+    private static final String PREFERENCES = "dashboard";
+    private static final String VALVE_NAMES_KEY = "VALVE_NAMES_KEY";
+    private static final int LAST_SEEN_THRESH = 10;
+    // rebinding only the timer keeps the row's views instead of cross-fading a second holder
+    private static final Object PAYLOAD_TIMER = new Object();
+    final ValveList valves = new ValveList(new ValveList.Listener() {
+        @Override
+        public void onInserted(int position, int count) {
+            adapter.notifyItemRangeInserted(position, count);
+        }
+
+        @Override
+        public void onRemoved(int position, int count) {
+            adapter.notifyItemRangeRemoved(position, count);
+        }
+
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+            adapter.notifyItemMoved(fromPosition, toPosition);
+        }
+
+        @Override
+        public void onChanged(int position) {
+            adapter.notifyItemChanged(position, PAYLOAD_TIMER);
+        }
+    });
+    final RowTicker ticker = new RowTicker();
+    final ValveAdapter adapter = new ValveAdapter();
+    PollScheduler pollScheduler = new PollScheduler(LAST_SEEN_THRESH);
+    RequestPolicy requestPolicy = new RequestPolicy();
+    TaskRunner taskRunner;
+    Handler tickHandler;
+    Runnable tickRunnable;
+    boolean polling = false;
+    TextView emptyText;
+    // how long the ticks take on the UI thread in microseconds, logged when the dashboard stops
+    final LatencyHistogram tickTimes = new LatencyHistogram();
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_dashboard);
+        taskRunner = Util.newTaskRunner();
+        emptyText = findViewById(R.id.emptyText);
+        RecyclerView list = findViewById(R.id.valveList);
+        list.setLayoutManager(new LinearLayoutManager(this));
+        list.setHasFixedSize(true);
+        ((SimpleItemAnimator) list.getItemAnimator()).setSupportsChangeAnimations(false);
+        list.setAdapter(adapter);
+        valves.setNames(loadNames());
+        updateEmptyText();
+        setupTickRunnable();
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // a probe dropped when the dashboard stopped must not keep it from polling
+        requestPolicy.reset();
+        valves.checkAll();
+        tickHandler.post(tickRunnable);
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        tickHandler.removeCallbacks(tickRunnable);
+        taskRunner.cancelAll();
+        polling = false;
+        Log.i(LOG_TAG, String.format("%d valves, %d ticks, p50 %d us, p99 %d us, max %d us", valves.size(),
+                tickTimes.getCount(), tickTimes.getValueAtPercentile(50), tickTimes.getValueAtPercentile(99),
+                tickTimes.getMax()));
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.dashboard, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.editValves) {
+            showEditValvesDialog();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    /* The valve names, one per line in the shared preferences */
+    List<String> loadNames() {
+        SharedPreferences sharedPref = getSharedPreferences(PREFERENCES, MODE_PRIVATE);
+        return parseNames(sharedPref.getString(VALVE_NAMES_KEY, ""));
+    }
+
+    /* Set the valve names to the new list, save it in the shared preferences */
+    void setNames(List<String> names) {
+        SharedPreferences.Editor editor = getSharedPreferences(PREFERENCES, MODE_PRIVATE).edit();
+        StringBuilder joined = new StringBuilder();
+        for (String name : names) {
+            joined.append(name).append('\n');
+        }
+        editor.putString(VALVE_NAMES_KEY, joined.toString());
+        editor.apply();
+        valves.setNames(names);
+        updateEmptyText();
+    }
+
+    static List<String> parseNames(String text) {
+        List<String> names = new ArrayList<>();
+        for (String line : text.split("\n")) {
+            String name = line.trim();
+            if (!name.isEmpty() && !names.contains(name)) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    void updateEmptyText() {
+        emptyText.setVisibility(valves.size() == 0 ? View.VISIBLE : View.GONE);
+    }
+
+    /* Setup the runnable that polls the due valves and keeps the countdowns on screen going */
+    void setupTickRunnable() {
+        tickHandler = new Handler();
+        tickRunnable = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long start = System.nanoTime();
+                    int now = Util.getServerClock().currentTimeSeconds();
+                    if (!polling) {
+                        poll(now);
+                    }
+                    ticker.tick(now);
+                    tickTimes.record((System.nanoTime() - start) / 1000);
+                } finally {
+                    tickHandler.postDelayed(tickRunnable, 1000);
+                }
+            }
+        };
+    }
+
+    /* Fetch the valves that are due in one request, if the request policy allows one */
+    void poll(int now) {
+        final List<String> due = new ArrayList<>();
+        valves.collectDue(now, due);
+        // only ask the policy when there is something to send, a half open probe is used up by asking
+        if (due.isEmpty() || !requestPolicy.allowRequest(System.currentTimeMillis())) {
+            return;
+        }
+        polling = true;
+        Util.getMetrics().increment(NetworkMetrics.POLLS);
+        taskRunner.run(new TaskRunner.Task<Map<String, Timer>>() {
+            @Override
+            public Map<String, Timer> run() throws Exception {
+                // the policy hears the outcome even when the dashboard stopped and the callback is dropped
+                Map<String, Timer> timers;
+                try {
+                    timers = Util.fetchTimers(due);
+                } catch (IOException e) {
+                    requestPolicy.onFailure(System.currentTimeMillis(), e);
+                    throw e;
+                }
+                requestPolicy.onSuccess(System.currentTimeMillis());
+                return timers;
+            }
+        }, new TaskRunner.Callback<Map<String, Timer>>() {
+            @Override
+            public void onSuccess(Map<String, Timer> result) {
+                polling = false;
+                valves.onPolled(due, result, Util.getServerClock().currentTimeSeconds(), pollScheduler);
+                ActivityHistory.record(DashboardActivity.this, result.values());
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                polling = false;
+                if (RequestPolicy.isRejection(e)) {
+                    Log.e(LOG_TAG, "The server refused to send the timers", e);
+                } else {
+                    Log.w(LOG_TAG, "Failed to get timers", e);
+                }
+            }
+        });
+    }
+
+    /* The edit button for the valve list was tapped */
+    void showEditValvesDialog() {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        LayoutInflater inflater = getLayoutInflater();
+        final View dialogView = inflater.inflate(R.layout.dialog_edit_valves, null);
+        final EditText valvesInput = dialogView.findViewById(R.id.valvesInput);
+        StringBuilder text = new StringBuilder();
+        for (String name : valves.getNames()) {
+            text.append(name).append('\n');
+        }
+        valvesInput.setText(text);
+
+        builder.setTitle(getString(R.string.edit_valves))
+                .setView(dialogView)
+                .setPositiveButton(getString(R.string.set), new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        setNames(parseNames(valvesInput.getText().toString()));
+                    }
+                })
+                .setNegativeButton(getString(R.string.cancel), null);
+        builder.show();
+    }
+
+    /* A row with its own renderer, ticked while it is on screen */
+    class ValveHolder extends RecyclerView.ViewHolder implements RowTicker.Row {
+        final TextView nameText;
+        final StatusRenderer renderer;
+        Timer timer;
+
+        ValveHolder(View itemView) {
+            super(itemView);
+            nameText = itemView.findViewById(R.id.nameText);
+            final View[] layouts = new View[]{
+                    itemView.findViewById(R.id.connectingText),
+                    itemView.findViewById(R.id.lastSeenText),
+                    itemView.findViewById(R.id.valveOffText),
+                    itemView.findViewById(R.id.lengthText),
+            };
+            final TextView lengthText = itemView.findViewById(R.id.lengthText);
+            final TextView lastSeenText = itemView.findViewById(R.id.lastSeenText);
+            renderer = new StatusRenderer(new StatusRenderer.Display() {
+                @Override
+                public void setLayoutVisible(int layout, boolean visible) {
+                    layouts[layout].setVisibility(visible ? View.VISIBLE : View.GONE);
+                }
+
+                @Override
+                public void setLengthText(char[] text, int length) {
+                    lengthText.setText(text, 0, length);
+                }
+
+                @Override
+                public void setLastSeenText(char[] text, int length) {
+                    lastSeenText.setText(text, 0, length);
+                }
+            }, LAST_SEEN_THRESH, getString(R.string.offline_minutes_format), getString(R.string.offline_one_hour),
+                    getString(R.string.offline_hours_format));
+        }
+
+        @Override
+        public int render(int now) {
+            return renderer.render(timer, now);
+        }
+    }
+
+    class ValveAdapter extends RecyclerView.Adapter<ValveHolder> {
+        @Override
+        public ValveHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+            return new ValveHolder(LayoutInflater.from(parent.getContext()).inflate(R.layout.item_valve, parent,
+                    false));
+        }
+
+        @Override
+        public void onBindViewHolder(ValveHolder holder, int position) {
+            holder.nameText.setText(valves.getName(position));
+            bindTimer(holder, position);
+        }
+
+        @Override
+        public void onBindViewHolder(ValveHolder holder, int position, List<Object> payloads) {
+            if (payloads.isEmpty()) {
+                onBindViewHolder(holder, position);
+            } else {
+                bindTimer(holder, position);
+            }
+        }
+
+        private void bindTimer(ValveHolder holder, int position) {
+            holder.timer = valves.getTimer(position);
+            ticker.refresh(holder, Util.getServerClock().currentTimeSeconds());
+        }
+
+        @Override
+        public int getItemCount() {
+            return valves.size();
+        }
+
+        @Override
+        public void onViewAttachedToWindow(ValveHolder holder) {
+            ticker.attach(holder, Util.getServerClock().currentTimeSeconds());
+        }
+
+        @Override
+        public void onViewDetachedFromWindow(ValveHolder holder) {
+            ticker.detach(holder);
+        }
+    }
+}
@@ -2,15 +2,21 @@ package activities;
 
 import android.content.Context;
 import android.content.DialogInterface;
+import android.content.Intent;
 import android.content.SharedPreferences;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.widget.EditText;
 import android.widget.NumberPicker;
 import android.widget.TextView;
+import android.widget.TimePicker;
 import android.widget.Toast;
 
 import androidx.appcompat.app.AlertDialog;
@@ -19,27 +25,87 @@ import androidx.constraintlayout.widget.ConstraintLayout;
 
 import com.github.pertempto.valvetimer.R;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import common.ActivityHistory;
+import common.CommandQueue;
+import common.EventStreamClient;
+import common.NetworkMetrics;
+import common.PollScheduler;
+import common.RequestPolicy;
+import common.Schedules;
+import common.StatusRenderer;
+import common.TaskRunner;
+import common.TimerCache;
+import common.TimerStore;
 import common.Util;
+import models.Schedule;
 import models.Timer;
 
 public class MainActivity extends AppCompatActivity {
 
     private static final String LOG_TAG = "MainActivity";
+    // the file getPreferences() uses for this activity, so the saved settings stay
+    private static final String PREFERENCES = "activities.MainActivity";
     private static final String VALVE_NAME_KEY = "VALVE_NAME_KEY";
     private static final String DEFAULT_LENGTH_KEY = "DEFAULT_LENGTH_KEY";
-    private static final int SERVER_INTERVAL = 10;
     private static final int LAST_SEEN_THRESH = 10;
+    private static final long CACHE_TTL = 24 * 3600 * 1000;
+    private static final int HISTORY_DAYS = 7;
     String valveName;
-    Timer timer;
+    final TimerStore timerStore = new TimerStore(LAST_SEEN_THRESH);
+    // the time after which the status text is out of date even if the timer is unchanged
+    int nextRenderTime = 0;
+    StatusRenderer statusRenderer;
     int defaultTimerLength;
     Handler repeatingHandler;
     Runnable repeatingRunnable;
-    int lastServerCheck = 0;
+    PollScheduler pollScheduler = new PollScheduler(LAST_SEEN_THRESH);
+    RequestPolicy requestPolicy = new RequestPolicy();
+    TaskRunner taskRunner;
+    CommandQueue commandQueue;
+    // pushed changes for the current valve, null when the build has no event stream
+    EventStreamClient eventStream;
+    int nextServerCheck = 0;
+    TimerCache timerCache;
+    // the timer shown is the cached or last known one and may be out of date
+    boolean showingStaleStatus = false;
+    // the server answered since the cached timer was asked for, which then must not replace it
+    boolean freshTimerShown = false;
+    TextView staleText;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        Util.traceStartup("activity");
         setContentView(R.layout.activity_main);
+        taskRunner = Util.newTaskRunner();
+        timerCache = new TimerCache(new File(getCacheDir(), "timers"), CACHE_TTL, Util.getServerClock());
+        Util.runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                timerCache.evictExpired(System.currentTimeMillis());
+            }
+        });
+        staleText = findViewById(R.id.staleText);
+        setupStatusRenderer();
+        setupCommandQueue();
+        timerStore.subscribe(new TimerStore.Listener() {
+            @Override
+            public void onTimerChanged(Timer timer) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        updateValveStatus();
+                    }
+                });
+            }
+        });
 
         updateValveStatus();
         loadSettings();
@@ -50,7 +116,11 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onStart() {
         super.onStart();
-        timer = null;
+        // a probe dropped when the screen stopped must not keep it from polling
+        requestPolicy.reset();
+        showCachedTimer();
+        nextServerCheck = 0;
+        startEventStream();
         // resume the repeating runnable
         repeatingHandler.post(repeatingRunnable);
     }
@@ -60,19 +130,64 @@ public class MainActivity extends AppCompatActivity {
         super.onStop();
         // remove the repeating runnable
         repeatingHandler.removeCallbacks(repeatingRunnable);
+        // nothing that is still running may update the stopped activity
+        taskRunner.cancelAll();
+        stopEventStream();
+        NetworkMetrics metrics = Util.getMetrics();
+        NetworkMetrics.Endpoint query = metrics.getEndpoint(NetworkMetrics.QUERY);
+        Log.i(LOG_TAG, String.format("%d polls, %d pushed updates, %d commands, queries %d ok %d failed, p50 %d ms, "
+                        + "p99 %d ms", metrics.getCounter(NetworkMetrics.POLLS),
+                metrics.getCounter(NetworkMetrics.PUSHED_UPDATES), metrics.getCounter(NetworkMetrics.COMMANDS),
+                query.getSuccesses(), query.getFailures(), query.getLatency().getValueAtPercentile(50),
+                query.getLatency().getValueAtPercentile(99)));
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.main, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.openDashboard) {
+            startActivity(new Intent(this, DashboardActivity.class));
+            return true;
+        }
+        if (item.getItemId() == R.id.wateringHistory) {
+            showWateringHistory();
+            return true;
+        }
+        if (item.getItemId() == R.id.addSchedule) {
+            showAddScheduleDialog();
+            return true;
+        }
+        if (item.getItemId() == R.id.clearSchedules) {
+            Schedules.removeForValve(this, valveName);
+            updateSettingsText();
+            Toast.makeText(this, R.string.schedules_cleared, Toast.LENGTH_SHORT).show();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    /* The valve the activity shows, the application prefetches it before the activity is created */
+    public static String getSavedValveName(Context context) {
+        SharedPreferences sharedPref = context.getSharedPreferences(PREFERENCES, MODE_PRIVATE);
+        return sharedPref.getString(VALVE_NAME_KEY, context.getString(R.string.default_valve_name));
     }
 
     /* Load settings from shared preferences */
     void loadSettings() {
-        SharedPreferences sharedPref = getPreferences(MODE_PRIVATE);
-        valveName = sharedPref.getString(VALVE_NAME_KEY, getString(R.string.default_valve_name));
+        SharedPreferences sharedPref = getSharedPreferences(PREFERENCES, MODE_PRIVATE);
+        valveName = getSavedValveName(this);
         int defaultDefaultLength = getResources().getInteger(R.integer.default_default_length);
         defaultTimerLength = sharedPref.getInt(DEFAULT_LENGTH_KEY, defaultDefaultLength);
     }
 
     /* Set the default length to the new value, save it in the shared preferences */
     private void setDefaultLength(int newLength) {
-        SharedPreferences sharedPref = getPreferences(MODE_PRIVATE);
+        SharedPreferences sharedPref = getSharedPreferences(PREFERENCES, MODE_PRIVATE);
         SharedPreferences.Editor editor = sharedPref.edit();
 
         defaultTimerLength = newLength;
@@ -82,7 +197,7 @@ public class MainActivity extends AppCompatActivity {
 
     /* Set the valve name to the new value, save it in the shared preferences */
     private void setValveName(String newValveName) {
-        SharedPreferences sharedPref = getPreferences(MODE_PRIVATE);
+        SharedPreferences sharedPref = getSharedPreferences(PREFERENCES, MODE_PRIVATE);
         SharedPreferences.Editor editor = sharedPref.edit();
 
         valveName = newValveName;
@@ -97,11 +212,14 @@ public class MainActivity extends AppCompatActivity {
             @Override
             public void run() {
                 try {
-                    int now = (int) (System.currentTimeMillis() / 1000);
-                    if (now - lastServerCheck >= SERVER_INTERVAL) {
+                    int now = serverNow();
+                    if (now >= nextServerCheck && requestPolicy.allowRequest(System.currentTimeMillis())) {
                         serverUpdate();
                     }
-                    updateValveStatus();
+                    // changes to the timer are rendered by the store listener, this only keeps the countdown going
+                    if (now >= nextRenderTime) {
+                        updateValveStatus();
+                    }
                 } finally {
                     repeatingHandler.postDelayed(repeatingRunnable, 1000);
                 }
@@ -109,17 +227,161 @@ public class MainActivity extends AppCompatActivity {
         };
     }
 
-    /* Update the timer from the server */
+    /* Show the cached timer of the current valve until the server answers, reads the cache in the background */
+    void showCachedTimer() {
+        final String name = valveName;
+        freshTimerShown = false;
+        taskRunner.run(new TaskRunner.Task<TimerCache.Entry>() {
+            @Override
+            public TimerCache.Entry run() {
+                return timerCache.get(name, System.currentTimeMillis());
+            }
+        }, new TaskRunner.Callback<TimerCache.Entry>() {
+            @Override
+            public void onSuccess(TimerCache.Entry entry) {
+                // the server may have answered while the cache was read
+                if (freshTimerShown || entry == null) {
+                    return;
+                }
+                showingStaleStatus = true;
+                timerStore.set(entry.getTimer());
+                updateStaleText();
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                Log.w(LOG_TAG, "Failed to read the cached timer", e);
+            }
+        });
+    }
+
+    /* Show the timer the server returned and remember it for the next start */
+    void showFreshTimer(Timer timer) {
+        freshTimerShown = true;
+        showingStaleStatus = false;
+        // a timer that only moved last_seen renders nothing, it is up to date all the same
+        timerStore.set(timer);
+        updateStaleText();
+        if (timer != null) {
+            ActivityHistory.record(this, Collections.singletonList(timer));
+            if (Util.getStartupTrace().mark("fresh status", SystemClock.uptimeMillis())) {
+                Log.i(LOG_TAG, "Startup: " + Util.getStartupTrace());
+            }
+        }
+    }
+
+    /* Update the timer from the server, joins the fetch that is already running for this valve */
     void serverUpdate() {
-        Util.runInBackground(new Runnable() {
+        final String name = valveName;
+        boolean started = taskRunner.submit(name, new TaskRunner.Task<Timer>() {
             @Override
-            public void run() {
-                timer = Util.getTimer(valveName);
+            public Timer run() throws IOException {
+                // the policy hears the outcome even when the screen stopped and the callback is dropped
+                Timer timer;
+                try {
+                    timer = Util.fetchTimerOrPrefetched(name);
+                } catch (IOException e) {
+                    requestPolicy.onFailure(System.currentTimeMillis(), e);
+                    throw e;
+                }
                 if (timer != null) {
-                    lastServerCheck = (int) (System.currentTimeMillis() / 1000);
+                    requestPolicy.onSuccess(System.currentTimeMillis());
+                    timerCache.put(timer, System.currentTimeMillis());
+                } else {
+                    requestPolicy.onNotFound(System.currentTimeMillis());
+                }
+                return timer;
+            }
+        }, new TaskRunner.Callback<Timer>() {
+            @Override
+            public void onSuccess(Timer result) {
+                // while a command is on its way the server still has the old end
+                if (result == null || !commandQueue.isBusy(result.getId())) {
+                    showFreshTimer(result);
+                }
+                if (result != null) {
+                    scheduleNextServerCheck();
+                } else {
+                    Log.d(LOG_TAG, String.format("No valve named %s", name));
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                Log.w(LOG_TAG, "Failed to get timer", e);
+                if (RequestPolicy.isRejection(e)) {
+                    // retrying won't help, so say why nothing updates instead of quietly backing off
+                    Toast.makeText(MainActivity.this, getString(R.string.request_rejected_format, e.getMessage()),
+                            Toast.LENGTH_LONG).show();
                 }
+                // keep showing the last known status, marked as possibly out of date
+                showingStaleStatus = timerStore.get() != null;
+                updateStaleText();
             }
         });
+        // a tick that joined the fetch in flight sent nothing
+        if (started) {
+            Util.getMetrics().increment(NetworkMetrics.POLLS);
+        }
+    }
+
+    /* Listen for pushed changes to the current valve, polling takes over whenever the stream is down */
+    void startEventStream() {
+        eventStream = Util.newEventStreamClient(valveName, new EventStreamClient.Listener() {
+            @Override
+            public void onConnected() {
+                Log.d(LOG_TAG, "Event stream connected");
+                // polls went on while the stream was down and the server replays from the last event id
+                pollScheduler.setPushConnected(true);
+            }
+
+            @Override
+            public void onTimer(final Timer timer) {
+                Util.getMetrics().increment(NetworkMetrics.PUSHED_UPDATES);
+                if (commandQueue.isBusy(timer.getId())) {
+                    return;
+                }
+                showFreshTimer(timer);
+                scheduleNextServerCheck();
+                Util.runInBackground(new Runnable() {
+                    @Override
+                    public void run() {
+                        timerCache.put(timer, System.currentTimeMillis());
+                    }
+                });
+            }
+
+            @Override
+            public void onDisconnected(Exception e) {
+                Log.w(LOG_TAG, "Event stream dropped, polling until it is back", e);
+                pollScheduler.setPushConnected(false);
+                // the push interval no longer applies, but a flapping stream mustn't force a poll each time
+                int now = serverNow();
+                nextServerCheck = Math.min(nextServerCheck, now + pollScheduler.getInterval(timerStore.get(), now));
+            }
+        });
+        if (eventStream != null) {
+            eventStream.start();
+        }
+    }
+
+    void stopEventStream() {
+        if (eventStream != null) {
+            eventStream.stop();
+            eventStream = null;
+        }
+        pollScheduler.setPushConnected(false);
+    }
+
+    /* Schedule the next poll based on the current timer state */
+    void scheduleNextServerCheck() {
+        int now = serverNow();
+        nextServerCheck = now + pollScheduler.getInterval(timerStore.get(), now);
+    }
+
+    /* The current time on the server in seconds, timer ends and the poll schedule are in server time */
+    int serverNow() {
+        return Util.getServerClock().currentTimeSeconds();
     }
 
     /* Update the TextViews that display the current settings */
@@ -129,71 +391,66 @@ public class MainActivity extends AppCompatActivity {
 
         TextView defaultLengthText = findViewById(R.id.defaultLengthText);
         defaultLengthText.setText(String.format(getString(R.string.default_length_text_format), defaultTimerLength));
+
+        TextView scheduleText = findViewById(R.id.scheduleText);
+        List<Schedule> schedules = Schedules.getForValve(this, valveName);
+        if (schedules.isEmpty()) {
+            scheduleText.setText(R.string.schedules_none);
+        } else {
+            StringBuilder text = new StringBuilder();
+            for (Schedule schedule : schedules) {
+                if (text.length() > 0) {
+                    text.append(", ");
+                }
+                text.append(String.format(getString(R.string.schedule_format), schedule.getStartMinute() / 60,
+                        schedule.getStartMinute() % 60, schedule.getLengthSeconds() / 60));
+            }
+            scheduleText.setText(String.format(getString(R.string.schedules_text_format), text));
+        }
     }
 
     /* Update the TextView and Button that display the valve status */
     void updateValveStatus() {
-        if (timer == null) {
-            ConstraintLayout valveDisconnectedLayout = findViewById(R.id.valveDisconnectedLayout);
-            valveDisconnectedLayout.setVisibility(View.GONE);
-            ConstraintLayout valveOffLayout = findViewById(R.id.valveOffLayout);
-            valveOffLayout.setVisibility(View.GONE);
-            ConstraintLayout valveOnLayout = findViewById(R.id.valveOnLayout);
-            valveOnLayout.setVisibility(View.GONE);
-            ConstraintLayout connectingLayout = findViewById(R.id.connectingLayout);
-            connectingLayout.setVisibility(View.VISIBLE);
+        int now = serverNow();
+        Timer timer = timerStore.get();
+        nextRenderTime = statusRenderer.render(timer, now);
+        if (timer != null && showingStaleStatus) {
+            Util.traceStartup("cached status");
+        }
+    }
 
-        } else {
-            ConstraintLayout connectingLayout = findViewById(R.id.connectingLayout);
-            connectingLayout.setVisibility(View.GONE);
-
-            int lastSeenLength = timer.getTimeSinceLastSeen();
-            if (lastSeenLength >= LAST_SEEN_THRESH) {
-                TextView lastSeenText = findViewById(R.id.lastSeenText);
-                if (lastSeenLength < 3600) {
-                    // under one hour
-                    lastSeenText.setText(String.format(getString(R.string.offline_minutes_format), lastSeenLength / 60, lastSeenLength % 60));
-                } else if (lastSeenLength < 7200) {
-                    // one hour
-                    lastSeenText.setText(R.string.offline_one_hour);
-                } else {
-                    // more than one hour
-                    lastSeenText.setText(String.format(getString(R.string.offline_hours_format), lastSeenLength / 3600));
-                }
+    void updateStaleText() {
+        staleText.setVisibility(showingStaleStatus ? View.VISIBLE : View.GONE);
+    }
 
-                ConstraintLayout valveOffLayout = findViewById(R.id.valveOffLayout);
-                valveOffLayout.setVisibility(View.GONE);
-                ConstraintLayout valveOnLayout = findViewById(R.id.valveOnLayout);
-                valveOnLayout.setVisibility(View.GONE);
-                ConstraintLayout valveDisconnectedLayout = findViewById(R.id.valveDisconnectedLayout);
-                valveDisconnectedLayout.setVisibility(View.VISIBLE);
-            } else {
-                ConstraintLayout valveDisconnectedLayout = findViewById(R.id.valveDisconnectedLayout);
-                valveDisconnectedLayout.setVisibility(View.GONE);
-
-                int timerLength = timer.getLength();
-                if (timerLength > 0) {
-                    ConstraintLayout valveOffLayout = findViewById(R.id.valveOffLayout);
-                    valveOffLayout.setVisibility(View.GONE);
-                    ConstraintLayout valveOnLayout = findViewById(R.id.valveOnLayout);
-                    valveOnLayout.setVisibility(View.VISIBLE);
-
-                    TextView lengthText = findViewById(R.id.lengthText);
-                    String lengthString = String.format("%d seconds", timerLength);
-                    if (timerLength == 1) {
-                        lengthString = "One moment";
-                    } else if (timerLength >= 60) {
-                        lengthString = String.format("%d:%02d", timerLength / 60, timerLength % 60);
-                    }
-                    lengthText.setText(lengthString);
-                } else {
-                    ConstraintLayout valveOnLayout = findViewById(R.id.valveOnLayout);
-                    valveOnLayout.setVisibility(View.GONE);
-                    ConstraintLayout valveOffLayout = findViewById(R.id.valveOffLayout);
-                    valveOffLayout.setVisibility(View.VISIBLE);
-                }
+    /* Look up the status views once and create the renderer that updates them */
+    void setupStatusRenderer() {
+        final ConstraintLayout[] layouts = new ConstraintLayout[]{
+                findViewById(R.id.connectingLayout),
+                findViewById(R.id.valveDisconnectedLayout),
+                findViewById(R.id.valveOffLayout),
+                findViewById(R.id.valveOnLayout),
+        };
+        final TextView lengthText = findViewById(R.id.lengthText);
+        final TextView lastSeenText = findViewById(R.id.lastSeenText);
+        StatusRenderer.Display display = new StatusRenderer.Display() {
+            @Override
+            public void setLayoutVisible(int layout, boolean visible) {
+                layouts[layout].setVisibility(visible ? View.VISIBLE : View.GONE);
             }
-        }
+
+            @Override
+            public void setLengthText(char[] text, int length) {
+                lengthText.setText(text, 0, length);
+            }
+
+            @Override
+            public void setLastSeenText(char[] text, int length) {
+                lastSeenText.setText(text, 0, length);
+            }
+        };
+        statusRenderer = new StatusRenderer(display, LAST_SEEN_THRESH, getString(R.string.offline_minutes_format),
+                getString(R.string.offline_one_hour), getString(R.string.offline_hours_format));
     }
 
     /* The edit button for the default length was tapped */
@@ -233,6 +490,74 @@ public class MainActivity extends AppCompatActivity {
         builder.show();
     }
 
+    /* Show how long the current valve watered on each of the last days */
+    void showWateringHistory() {
+        final String name = valveName;
+        taskRunner.run(new TaskRunner.Task<long[]>() {
+            @Override
+            public long[] run() throws IOException {
+                return ActivityHistory.getDailyUsage(MainActivity.this, name, HISTORY_DAYS);
+            }
+        }, new TaskRunner.Callback<long[]>() {
+            @Override
+            public void onSuccess(long[] result) {
+                StringBuilder message = new StringBuilder();
+                Calendar day = Calendar.getInstance();
+                day.add(Calendar.DAY_OF_MONTH, -(result.length - 1));
+                for (long seconds : result) {
+                    message.append(getString(R.string.watering_day_format, day, (seconds + 30) / 60)).append('\n');
+                    day.add(Calendar.DAY_OF_MONTH, 1);
+                }
+                new AlertDialog.Builder(MainActivity.this)
+                        .setTitle(getString(R.string.watering_history_title, name))
+                        .setMessage(message)
+                        .setPositiveButton(getString(R.string.ok), null)
+                        .show();
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                Log.w(LOG_TAG, "Failed to read the watering history", e);
+            }
+        });
+    }
+
+    /* Add a daily run of the current valve at a time of day */
+    void showAddScheduleDialog() {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        LayoutInflater inflater = getLayoutInflater();
+        final View dialogView = inflater.inflate(R.layout.dialog_add_schedule, null);
+        final TimePicker startInput = dialogView.findViewById(R.id.startInput);
+        final NumberPicker lengthInput = dialogView.findViewById(R.id.lengthInput);
+        lengthInput.setMinValue(1);
+        lengthInput.setMaxValue(120);
+        lengthInput.setValue(defaultTimerLength);
+
+        final String name = valveName;
+        builder.setTitle(getString(R.string.add_schedule))
+                .setView(dialogView)
+                .setPositiveButton(getString(R.string.set), new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        int startMinute = getMinuteOfDay(startInput);
+                        Schedules.add(MainActivity.this, new Schedule(UUID.randomUUID().toString(), name,
+                                startMinute, lengthInput.getValue() * 60, Schedule.EVERY_DAY));
+                        updateSettingsText();
+                    }
+                })
+                .setNegativeButton(getString(R.string.cancel), null);
+        builder.show();
+    }
+
+    /* The time the picker shows in minutes after midnight */
+    @SuppressWarnings("deprecation")
+    static int getMinuteOfDay(TimePicker picker) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            return picker.getHour() * 60 + picker.getMinute();
+        }
+        return picker.getCurrentHour() * 60 + picker.getCurrentMinute();
+    }
+
     /* The edit button for the name was tapped */
     public void onEditNameClick(View v) {
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
@@ -251,7 +576,16 @@ public class MainActivity extends AppCompatActivity {
                         Log.d(LOG_TAG, String.format("New valve name: %s", newValveName));
                         setValveName(newValveName);
                         updateSettingsText();
+                        // responses for the old name must not overwrite the new valve
+                        taskRunner.supersede();
+                        stopEventStream();
+                        // the old valve's status is not shown while the new one's is read from the cache
+                        showingStaleStatus = false;
+                        timerStore.set(null);
+                        updateStaleText();
+                        showCachedTimer();
                         serverUpdate();
+                        startEventStream();
                     }
                 })
                 .setNegativeButton("Cancel", null);
@@ -274,18 +608,8 @@ public class MainActivity extends AppCompatActivity {
                     @Override
                     public void onClick(DialogInterface dialog, int which) {
                         final int newLength = lengthInput.getValue();
-                        Util.runInBackground(new Runnable() {
-                            @Override
-                            public void run() {
-                                timer = Util.setTimerLength(timer, newLength * 60);
-                                runOnUiThread(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        updateValveStatus();
-                                    }
-                                });
-                            }
-                        });
+                        pollScheduler.onCommand(serverNow());
+                        sendTimerLength(newLength * 60);
                     }
                 })
                 .setNegativeButton(getString(R.string.cancel), null);
@@ -295,17 +619,54 @@ public class MainActivity extends AppCompatActivity {
     /* The stop button was tapped */
     public void onStopTimerClick(View v) {
         Log.d(LOG_TAG, "stop button pressed");
-        Util.runInBackground(new Runnable() {
+        pollScheduler.onCommand(serverNow());
+        sendTimerLength(0);
+    }
+
+    /* Show the new timer length right away and queue it for the server */
+    void sendTimerLength(int seconds) {
+        Timer current = timerStore.get();
+        if (current == null) {
+            Toast.makeText(this, R.string.valve_not_connected, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        int now = serverNow();
+        Util.getMetrics().increment(NetworkMetrics.COMMANDS);
+        commandQueue.setEnd(current, now + seconds);
+    }
+
+    /* Create the queue that sends set and stop commands and reconciles the shown timer with the responses */
+    void setupCommandQueue() {
+        commandQueue = Util.newCommandQueue(new CommandQueue.Listener() {
             @Override
-            public void run() {
-                timer = Util.setTimerLength(timer, 0);
-                Log.d(LOG_TAG, "timer stopped");
-                runOnUiThread(new Runnable() {
+            public void onOptimisticUpdate(Timer timer) {
+                if (timer.getName().equals(valveName)) {
+                    timerStore.set(timer);
+                }
+            }
+
+            @Override
+            public void onConfirmed(final Timer timer) {
+                Log.d(LOG_TAG, String.format("timer end confirmed: %d", timer.getEnd()));
+                Util.runInBackground(new Runnable() {
                     @Override
                     public void run() {
-                        updateValveStatus();
+                        timerCache.put(timer, System.currentTimeMillis());
                     }
                 });
+                if (timer.getName().equals(valveName)) {
+                    showFreshTimer(timer);
+                    scheduleNextServerCheck();
+                }
+            }
+
+            @Override
+            public void onRolledBack(Timer timer, Exception e) {
+                Log.w(LOG_TAG, "Failed to set timer", e);
+                if (timer.getName().equals(valveName)) {
+                    timerStore.set(timer);
+                    Toast.makeText(MainActivity.this, R.string.set_timer_failed, Toast.LENGTH_SHORT).show();
+                }
             }
         });
     }
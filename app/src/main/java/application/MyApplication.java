@@ -1,13 +1,31 @@
 package application;
 
 import android.app.Application;
+import android.content.Context;
 
 import androidx.appcompat.app.AppCompatDelegate;
 
+import activities.MainActivity;
+import common.Schedules;
+import common.Util;
+
 public class MyApplication extends Application {
 
     public void onCreate() {
         super.onCreate();
+        Util.traceStartup("application");
         AppCompatDelegate.setDefaultNightMode(AppCompatDelegate.MODE_NIGHT_FOLLOW_SYSTEM);
+        final Context context = getApplicationContext();
+        Util.runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                // the status of the last valve is on its way while the activity is created, reading the saved
+                // name loads the preferences from disk. A start for an alarm or boot pays one fetch for nothing,
+                // the prefetch just expires
+                Util.prefetchTimer(MainActivity.getSavedValveName(context));
+                // force stopping the app drops its alarms, set the schedule alarm again
+                Schedules.arm(context);
+            }
+        });
     }
 }
@@ -0,0 +1,37 @@
+package application;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+import common.Schedules;
+
+/* Wakes for the next due schedule run, and sets the alarm again after a reboot or a change of the clock */
+public class ScheduleReceiver extends BroadcastReceiver {
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        final Context appContext = context.getApplicationContext();
+        String action = intent.getAction();
+        if (Intent.ACTION_TIMEZONE_CHANGED.equals(action) || Intent.ACTION_TIME_CHANGED.equals(action)) {
+            Schedules.reload(appContext);
+            return;
+        }
+        if (Intent.ACTION_BOOT_COMPLETED.equals(action)) {
+            Schedules.arm(appContext);
+            return;
+        }
+        // the commands go out over the network, keep the receiver alive until they did. The wait has its own
+        // thread, the commands themselves run on the schedule client's threads
+        final PendingResult result = goAsync();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Schedules.runDue(appContext);
+                } finally {
+                    result.finish();
+                }
+            }
+        }, "ScheduleReceiver").start();
+    }
+}
@@ -0,0 +1,79 @@
+package common;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TimeZone;
+
+import models.Timer;
+
+/* The app's log of what the valves did, written from the timers the screens fetch and kept for half a year */
+public class ActivityHistory {
+    private static final String LOG_TAG = "ActivityHistory";
+    private static final String DIRECTORY_NAME = "activity";
+    private static final long SEGMENT_BYTES = 1 << 20;
+    private static final int RETENTION = 183 * 24 * 3600;
+    private static final int CLEANUP_INTERVAL = 24 * 3600;
+
+    private static ActivityLog log;
+    private static int nextCleanup = 0;
+
+    /* The log, opened on first use, null if it can't be */
+    private static synchronized ActivityLog getLog(Context context) {
+        if (log == null) {
+            try {
+                log = new ActivityLog(new File(context.getFilesDir(), DIRECTORY_NAME), SEGMENT_BYTES);
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Failed to open the activity log", e);
+            }
+        }
+        return log;
+    }
+
+    /* Record the changes the timers show, in the background */
+    public static void record(final Context context, Collection<Timer> timers) {
+        final List<Timer> copy = new ArrayList<>(timers);
+        final Context appContext = context.getApplicationContext();
+        Util.runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ActivityHistory.class) {
+                    ActivityLog activityLog = getLog(appContext);
+                    if (activityLog == null) {
+                        return;
+                    }
+                    int now = Util.getServerClock().currentTimeSeconds();
+                    try {
+                        for (Timer timer : copy) {
+                            if (timer != null) {
+                                activityLog.record(timer, now);
+                            }
+                        }
+                        activityLog.flush();
+                        if (now >= nextCleanup) {
+                            nextCleanup = now + CLEANUP_INTERVAL;
+                            activityLog.deleteBefore(now - RETENTION);
+                        }
+                    } catch (IOException e) {
+                        Log.w(LOG_TAG, "Failed to record activity", e);
+                    }
+                }
+            }
+        });
+    }
+
+    /* Seconds the valve was on per local day for the last `days` days up to today, blocks on the log */
+    public static synchronized long[] getDailyUsage(Context context, String valveName, int days) throws IOException {
+        ActivityLog activityLog = getLog(context.getApplicationContext());
+        if (activityLog == null) {
+            throw new IOException("No activity log");
+        }
+        int from = Util.getServerClock().currentTimeSeconds() - (days - 1) * 24 * 3600;
+        return activityLog.usageByDay(valveName, from, days, TimeZone.getDefault());
+    }
+}
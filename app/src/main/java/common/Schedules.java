@@ -0,0 +1,217 @@
+package common;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import application.ScheduleReceiver;
+import models.Schedule;
+import models.Timer;
+
+/* The app's recurring schedules, kept in a file and run by one alarm set for the next due run */
+public class Schedules {
+    private static final String LOG_TAG = "Schedules";
+    private static final String FILE_NAME = "schedules";
+    // a run that failed to go out is tried again this much later while it is under way
+    private static final long RETRY_DELAY = 60 * 1000;
+    // all the runs of one alarm must be done well within the deadline of the receiver that waits for them
+    private static final long SEND_TIMEOUT = 30 * 1000;
+
+    private static ScheduleEngine engine;
+    private static ScheduleStore store;
+    private static final List<ScheduleEngine.Run> retries = new ArrayList<>();
+    // what the screens read without touching the disk: the stored schedules with the changes made since, which
+    // may still be on their way to the engine and the file
+    private static volatile List<Schedule> schedules;
+    // changes are applied and saved in the order they were made, off the UI thread
+    private static final ExecutorService writer = Executors.newSingleThreadExecutor();
+
+    /* The engine with the stored schedules, loaded on first use */
+    private static synchronized ScheduleEngine getEngine(Context context) {
+        if (engine == null) {
+            engine = new ScheduleEngine(TimeZone.getDefault());
+            store = new ScheduleStore(new File(context.getFilesDir(), FILE_NAME));
+            int count = store.load(engine, System.currentTimeMillis());
+            Log.d(LOG_TAG, String.format("Loaded %d schedules", count));
+            if (schedules == null) {
+                schedules = Collections.unmodifiableList(engine.getSchedules());
+            }
+        }
+        return engine;
+    }
+
+    /* The schedules, only the first call loads them if the application hasn't yet */
+    private static List<Schedule> getSchedules(Context context) {
+        List<Schedule> current = schedules;
+        if (current == null) {
+            getEngine(context);
+            current = schedules;
+        }
+        return current;
+    }
+
+    /* Load the schedules again, their times of day are in the time zone that is current now */
+    public static synchronized void reload(Context context) {
+        engine = null;
+        arm(context);
+    }
+
+    /* Add or replace the schedule, it is saved and its alarm set in the background */
+    public static void add(Context context, final Schedule schedule) {
+        final Context appContext = context.getApplicationContext();
+        List<Schedule> updated = new ArrayList<>();
+        for (Schedule current : getSchedules(appContext)) {
+            if (!current.getId().equals(schedule.getId())) {
+                updated.add(current);
+            }
+        }
+        updated.add(schedule);
+        schedules = Collections.unmodifiableList(updated);
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (Schedules.class) {
+                    getEngine(appContext).add(schedule, System.currentTimeMillis());
+                    store.save(engine);
+                    arm(appContext);
+                }
+            }
+        });
+    }
+
+    /* Remove the schedules of the valve, returns how many there were, they are saved in the background */
+    public static int removeForValve(Context context, String valveName) {
+        final Context appContext = context.getApplicationContext();
+        List<Schedule> kept = new ArrayList<>();
+        final List<Schedule> removed = new ArrayList<>();
+        for (Schedule schedule : getSchedules(appContext)) {
+            if (schedule.getValveName().equals(valveName)) {
+                removed.add(schedule);
+            } else {
+                kept.add(schedule);
+            }
+        }
+        if (removed.isEmpty()) {
+            return 0;
+        }
+        schedules = Collections.unmodifiableList(kept);
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (Schedules.class) {
+                    ScheduleEngine current = getEngine(appContext);
+                    for (Schedule schedule : removed) {
+                        current.remove(schedule.getId());
+                    }
+                    store.save(current);
+                    arm(appContext);
+                }
+            }
+        });
+        return removed.size();
+    }
+
+    /* The valve's schedules from memory */
+    public static List<Schedule> getForValve(Context context, String valveName) {
+        List<Schedule> forValve = new ArrayList<>();
+        for (Schedule schedule : getSchedules(context)) {
+            if (schedule.getValveName().equals(valveName)) {
+                forValve.add(schedule);
+            }
+        }
+        return forValve;
+    }
+
+    /* Send the runs that are due and set the alarm for the next, blocks until the commands went out.
+     *
+     * A run is saved as done only once it went out. One that failed is retried from memory while the process
+     * lives, and the saved last run lets a restart resume it while it is still under way. */
+    public static void runDue(Context context) {
+        long now = System.currentTimeMillis();
+        List<ScheduleEngine.Run> runs;
+        synchronized (Schedules.class) {
+            runs = getEngine(context).poll(now);
+            for (ScheduleEngine.Run retry : retries) {
+                if (retry.getEnd() > now) {
+                    runs.add(retry);
+                }
+            }
+            retries.clear();
+        }
+        if (!runs.isEmpty()) {
+            Log.i(LOG_TAG, String.format("Sending %d scheduled runs", runs.size()));
+            Map<String, Future<Timer>> results = Util.sendScheduledRuns(runs, now);
+            List<ScheduleEngine.Run> sent = new ArrayList<>();
+            List<ScheduleEngine.Run> failed = new ArrayList<>();
+            // one deadline for all of them, a run still pending then fails without waiting its own timeout
+            long deadline = SystemClock.elapsedRealtime() + SEND_TIMEOUT;
+            for (ScheduleEngine.Run run : runs) {
+                Future<Timer> result = results.get(run.getSchedule().getValveName());
+                try {
+                    long remaining = Math.max(0, deadline - SystemClock.elapsedRealtime());
+                    result.get(remaining, TimeUnit.MILLISECONDS);
+                    sent.add(run);
+                } catch (ExecutionException e) {
+                    Log.w(LOG_TAG, "Failed to start " + run.getSchedule(), e.getCause());
+                    // retrying can't bring back a valve that was deleted
+                    if (e.getCause() instanceof ValveClient.NotFoundException) {
+                        sent.add(run);
+                    } else {
+                        failed.add(run);
+                    }
+                } catch (Exception e) {
+                    Log.w(LOG_TAG, "Failed to start " + run.getSchedule(), e);
+                    failed.add(run);
+                }
+            }
+            synchronized (Schedules.class) {
+                if (!sent.isEmpty()) {
+                    ScheduleEngine current = getEngine(context);
+                    for (ScheduleEngine.Run run : sent) {
+                        current.markSent(run);
+                    }
+                    store.save(current);
+                }
+                retries.addAll(failed);
+            }
+        }
+        arm(context);
+    }
+
+    /* Set the alarm for the next due run, or cancel it if nothing is scheduled */
+    public static synchronized void arm(Context context) {
+        long next = getEngine(context).getNextDueTime();
+        if (!retries.isEmpty()) {
+            next = Math.min(next, System.currentTimeMillis() + RETRY_DELAY);
+        }
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        PendingIntent intent = PendingIntent.getBroadcast(context, 0, new Intent(context, ScheduleReceiver.class),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        if (next == Long.MAX_VALUE) {
+            alarmManager.cancel(intent);
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            // a run has to start on time even while the phone dozes
+            alarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, next, intent);
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            alarmManager.setExact(AlarmManager.RTC_WAKEUP, next, intent);
+        } else {
+            alarmManager.set(AlarmManager.RTC_WAKEUP, next, intent);
+        }
+    }
+}
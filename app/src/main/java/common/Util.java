@@ -1,148 +1,207 @@
 package common;
 
-import android.os.AsyncTask;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.github.pertempto.valvetimer.BuildConfig;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
-
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import models.Timer;
 
 public class Util {
     private static final String LOG_TAG = "Util";
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 15000;
+    // nanoTime stops while the phone is in deep sleep, the countdowns have to count the sleep too
+    private static final ServerClock serverClock = new ServerClock(new ServerClock.Source() {
+        @Override
+        public long monotonicMillis() {
+            return SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public long wallMillis() {
+            return System.currentTimeMillis();
+        }
+    });
+    private static final NetworkMetrics metrics = new NetworkMetrics();
+    private static final HttpTransport transport = createTransport();
+    // the stream carries a heartbeat well within this, a silent stream is a dead one
+    private static final int EVENTS_READ_TIMEOUT = 60000;
+    private static final long EVENTS_RECONNECT_DELAY = 1000;
+    private static final HttpTransport eventTransport = BuildConfig.EVENTS_URL.isEmpty() ? null
+            : new HttpTransport(BuildConfig.EVENTS_URL, BuildConfig.RESTDB_KEY, CONNECT_TIMEOUT, EVENTS_READ_TIMEOUT,
+            serverClock);
+
+    private static final int BACKGROUND_THREADS = 2;
+    private static final int BACKGROUND_QUEUE_SIZE = 32;
+    private static final ExecutorService backgroundExecutor = createBackgroundExecutor();
+    // fire-and-forget disk writes, a write that doesn't fit the queue is dropped rather than thrown at the caller
+    private static final int DISK_QUEUE_SIZE = 64;
+    private static final ExecutorService diskExecutor = createDiskExecutor();
+    private static final ValveClient client = new ValveClient(transport, backgroundExecutor);
+    // scheduled runs queue behind each other on their own threads instead of being rejected by the shared pool
+    private static final int SCHEDULE_PARALLELISM = 2;
+    private static final ValveClient scheduleClient = new ValveClient(transport, SCHEDULE_PARALLELISM);
+    // a prefetch the screen didn't take over by then is out of date
+    private static final long PREFETCH_MAX_AGE = 10000;
+    private static final TimerPrefetch prefetch = new TimerPrefetch(PREFETCH_MAX_AGE);
+    private static final StartupTrace startupTrace = new StartupTrace(
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.N ? Process.getStartUptimeMillis()
+                    : SystemClock.uptimeMillis());
+
+    private static HttpTransport createTransport() {
+        HttpTransport transport = new HttpTransport(BuildConfig.RESTDB_URL, BuildConfig.RESTDB_KEY, CONNECT_TIMEOUT,
+                READ_TIMEOUT, serverClock);
+        transport.setListener(metrics);
+        return transport;
+    }
+
+    /* What the requests to the timer server did since the app started */
+    public static NetworkMetrics getMetrics() {
+        return metrics;
+    }
+
+    /* The clock of the timer server, estimated from its responses */
+    public static ServerClock getServerClock() {
+        return serverClock;
+    }
+
+    /* How long the steps of starting the app took, from the process start where the platform tells it */
+    public static StartupTrace getStartupTrace() {
+        return startupTrace;
+    }
+
+    /* Mark a step of starting the app as reached now */
+    public static void traceStartup(String step) {
+        startupTrace.mark(step, SystemClock.uptimeMillis());
+    }
 
+    /* Run a task that nobody waits for off the UI thread, it is dropped if too many are queued already */
     public static void runInBackground(final Runnable task) {
-        new BackgroundTask(new BackgroundTask.BackgroundTaskCallback() {
-            @Override
-            public void call() {
-                task.run();
-            }
-        }).execute();
+        diskExecutor.execute(task);
+    }
+
+    /* Create a TaskRunner that runs on the shared background threads and calls back on the UI thread */
+    public static TaskRunner newTaskRunner() {
+        return new TaskRunner(backgroundExecutor, new MainThreadExecutor());
+    }
+
+    /* A small bounded pool for work whose caller handles a rejection, requests beyond the queue are rejected instead
+     * of piling up */
+    private static ExecutorService createBackgroundExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(BACKGROUND_THREADS, BACKGROUND_THREADS, 30,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(BACKGROUND_QUEUE_SIZE));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /* One thread for the fire-and-forget writes, overflow is logged and discarded so callers never see a rejection */
+    private static ExecutorService createDiskExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(DISK_QUEUE_SIZE), new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+                        Log.w(LOG_TAG, "Background queue full, dropped a task");
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /* Whether the build has an event stream to push timer changes */
+    public static boolean isPushEnabled() {
+        return eventTransport != null;
+    }
+
+    /* Create a client for the pushed changes of the named timer that reports on the UI thread, null without push */
+    public static EventStreamClient newEventStreamClient(String timerName, EventStreamClient.Listener listener) {
+        if (eventTransport == null) {
+            return null;
+        }
+        String path = "?q=" + ValveClient.encode(ValveClient.nameQuery(timerName));
+        return new EventStreamClient(eventTransport, path, timerName, EVENTS_RECONNECT_DELAY, new MainThreadExecutor(),
+                listener);
     }
 
     /* Get timer from server with given name */
     public static Timer getTimer(String timerName) {
-        // code modified from https://stackoverflow.com/a/8655039
-        URL url;
-        HttpURLConnection urlConnection = null;
         try {
-            url = new URL(String.format("%s?q={\"name\":\"%s\"}", BuildConfig.RESTDB_URL, timerName));
-
-            urlConnection = (HttpURLConnection) url
-                    .openConnection();
-
-            urlConnection.setRequestProperty("content-type", "application/json");
-            urlConnection.setRequestProperty("x-apikey", BuildConfig.RESTDB_KEY);
-            urlConnection.setRequestProperty("cache-control", "no-cache");
-
-            InputStreamReader isw = new InputStreamReader(urlConnection.getInputStream());
-            int data = isw.read();
-            StringBuilder sb = new StringBuilder();
-            while (data != -1) {
-                char current = (char) data;
-                data = isw.read();
-                sb.append(current);
-            }
-            isw.close();
-            String content = sb.toString();
-            JSONArray jsonArray = new JSONArray(content);
-            if (jsonArray.length() == 0) {
-                return null;
-            }
-            JSONObject jsonObject = jsonArray.getJSONObject(0);
-            String id = jsonObject.getString("_id");
-            int end = jsonObject.getInt("end");
-            int lastSeen = jsonObject.getInt("last_seen");
-
-            return new Timer(id, timerName, end, lastSeen);
+            return fetchTimer(timerName);
         } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
+            Log.w(LOG_TAG, "Failed to get timer", e);
         }
         return null;
     }
 
+    /* Get timer from server with given name, null if there is no such timer, throws if the request failed */
+    public static Timer fetchTimer(String timerName) throws IOException {
+        return client.fetch(timerName);
+    }
+
+    /* Start fetching the timer before the screen that shows it is up, which opens the connection too */
+    public static void prefetchTimer(String timerName) {
+        prefetch.start(client, timerName, SystemClock.uptimeMillis());
+        traceStartup("prefetch");
+    }
+
+    /* Get the timer from the prefetch if there is one for it, from the server otherwise */
+    public static Timer fetchTimerOrPrefetched(String timerName) throws IOException {
+        Future<Timer> prefetched = prefetch.take(timerName, SystemClock.uptimeMillis());
+        if (prefetched == null) {
+            return fetchTimer(timerName);
+        }
+        Timer timer = TimerPrefetch.await(prefetched, CONNECT_TIMEOUT + READ_TIMEOUT);
+        traceStartup("prefetch taken");
+        return timer;
+    }
+
+    /* Get the timers with the given names in one request, missing names are left out, throws if it failed */
+    public static Map<String, Timer> fetchTimers(Collection<String> timerNames) throws IOException {
+        return client.fetchAll(timerNames);
+    }
+
     /* Set the timer length to the given length in seconds */
     public static Timer setTimerLength(Timer timer, int seconds) {
-        URL url;
-        HttpURLConnection urlConnection = null;
         try {
-            url = new URL(String.format("%s/%s", BuildConfig.RESTDB_URL, timer.getId()));
-
-            urlConnection = (HttpURLConnection) url
-                    .openConnection();
-
-            urlConnection.setRequestMethod("PATCH");
-            urlConnection.setRequestProperty("content-type", "application/json");
-            urlConnection.setRequestProperty("x-apikey", BuildConfig.RESTDB_KEY);
-            urlConnection.setRequestProperty("cache-control", "no-cache");
-            urlConnection.setDoOutput(true);
-            OutputStreamWriter osw = new OutputStreamWriter(urlConnection.getOutputStream());
-            int now = (int) (System.currentTimeMillis() / 1000);
-            int newEnd = now + seconds;
-            osw.write(String.format("{\"end\":%d}", newEnd));
-            osw.flush();
-            urlConnection.connect();
-
-            InputStreamReader isw = new InputStreamReader(urlConnection.getInputStream());
-            int data = isw.read();
-            StringBuilder sb = new StringBuilder();
-            while (data != -1) {
-                char current = (char) data;
-                data = isw.read();
-                sb.append(current);
-            }
-            isw.close();
-            String content = sb.toString();
-            Log.d(LOG_TAG, String.format("response: %s", content));
-
-            JSONObject jsonObject = new JSONObject(content);
-            String id = jsonObject.getString("_id");
-            int end = jsonObject.getInt("end");
-            int lastSeen = jsonObject.getInt("last_seen");
-            return new Timer(id, timer.getName(), end, lastSeen);
+            return patchTimerEnd(timer, serverClock.currentTimeSeconds() + seconds);
         } catch (Exception e) {
-            e.printStackTrace();
-            try {
-                Log.d(LOG_TAG, String.format("code: %d", urlConnection.getResponseCode()));
-                Log.d(LOG_TAG, String.format("message: %s", urlConnection.getResponseMessage()));
-            } catch (IOException ex) {
-                ex.printStackTrace();
-            }
-        } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
+            Log.w(LOG_TAG, "Failed to set timer length", e);
         }
         return null;
     }
-}
-
-class BackgroundTask extends AsyncTask<Void, Void, Void> {
-    private BackgroundTaskCallback callback;
 
-    BackgroundTask(BackgroundTaskCallback callback) {
-        this.callback = callback;
+    /* Set the end of the timer to the given time in seconds, throws if the request failed */
+    public static Timer patchTimerEnd(Timer timer, int end) throws IOException {
+        Timer updated = client.patchEnd(timer, end);
+        Log.d(LOG_TAG, String.format("new end: %d", updated.getEnd()));
+        return updated;
     }
 
-    @Override
-    protected Void doInBackground(Void... voids) {
-        callback.call();
-        return null;
+    /* Send the due schedule runs as batched set commands, returns the futures by valve name */
+    public static Map<String, Future<Timer>> sendScheduledRuns(List<ScheduleEngine.Run> runs, long now) {
+        return ScheduleEngine.send(scheduleClient, runs, now);
     }
 
-    public interface BackgroundTaskCallback {
-        void call();
+    /* Create a CommandQueue that sends through the shared background threads and reports on the UI thread */
+    public static CommandQueue newCommandQueue(CommandQueue.Listener listener) {
+        return new CommandQueue(new CommandQueue.Sender() {
+            @Override
+            public Timer send(Timer timer, int end) throws IOException {
+                return patchTimerEnd(timer, end);
+            }
+        }, backgroundExecutor, new MainThreadExecutor(), listener);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,109 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TimeZone;
+
+import common.ActivityLog;
+
+/* Write and read throughput of the activity log: appending one second resolution records, and the watering
+ * report over a month of them against one day of it, which opens only that day's segment */
+@State(Scope.Thread)
+public class ActivityLogBenchmark {
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    private static final int DAY = 24 * 3600;
+    // midnight UTC
+    private static final int START = 1570924800;
+    private static final long SEGMENT_BYTES = 4 << 20;
+    private static final int VALVES = 4;
+    // appends between dropping the old segments, so a long run doesn't fill the disk
+    private static final int APPENDS_PER_CLEANUP = 1 << 20;
+
+    @Param({"31"})
+    public int days;
+
+    private File monthDirectory;
+    private File writeDirectory;
+    private ActivityLog month;
+    private ActivityLog written;
+    private int time;
+    private int appends = 0;
+
+    @Setup
+    public void setUp() throws IOException {
+        monthDirectory = createDirectory("month");
+        month = new ActivityLog(monthDirectory, SEGMENT_BYTES);
+        for (int i = 0; i < VALVES; i++) {
+            month.valveId(String.valueOf(i));
+        }
+        int[] ends = new int[VALVES];
+        // one record a second, each valve on for half an hour a day starting at its own hour
+        for (int t = START; t < START + days * DAY; t++) {
+            int valve = t % VALVES;
+            if ((t - START) % DAY == (6 + valve) * 3600 + valve) {
+                ends[valve] = t + 1800;
+            }
+            month.append(t, valve, ActivityLog.KIND_SEEN, ends[valve], t);
+        }
+        month.flush();
+        writeDirectory = createDirectory("write");
+        written = new ActivityLog(writeDirectory, SEGMENT_BYTES);
+        time = START;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        month.close();
+        written.close();
+        delete(monthDirectory);
+        delete(writeDirectory);
+    }
+
+    /* One record, flushed to the segment every few hundred */
+    @Benchmark
+    public void append() throws IOException {
+        written.append(time, time % VALVES, ActivityLog.KIND_SEEN, time + 600, time);
+        time++;
+        if (++appends % APPENDS_PER_CLEANUP == 0) {
+            written.deleteBefore(time);
+        }
+    }
+
+    /* Every valve's watering per day over the month, a scan of all of its records */
+    @Benchmark
+    public Map<String, long[]> usage_month() throws IOException {
+        return month.usageByDay(START, days, UTC);
+    }
+
+    /* One valve's watering on the last day, the other days' segments are not opened */
+    @Benchmark
+    public long[] usage_lastDay() throws IOException {
+        return month.usageByDay("1", START + (days - 1) * DAY, 1, UTC);
+    }
+
+    private static File createDirectory(String prefix) throws IOException {
+        File directory = File.createTempFile(prefix, "");
+        if (!directory.delete()) {
+            throw new IOException("Can't replace " + directory);
+        }
+        return directory;
+    }
+
+    private static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
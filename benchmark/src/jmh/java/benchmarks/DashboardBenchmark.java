@@ -0,0 +1,129 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import common.PollScheduler;
+import common.RowTicker;
+import common.StatusRenderer;
+import common.ValveList;
+import models.Timer;
+
+/* The dashboard's UI thread work with a few hundred valves: one shared tick over the rows on screen against a
+ * tick of every row, and taking a poll result where a couple of timers changed */
+@State(Scope.Thread)
+public class DashboardBenchmark {
+    private static final int NOW = 1571000000;
+    // rows a phone screen shows at once
+    private static final int VISIBLE_ROWS = 12;
+    // far enough out that the running valves keep counting down and stay online for the whole run
+    private static final int FAR_FUTURE = NOW + 400000000;
+
+    @Param({"200"})
+    public int valves;
+
+    private RowTicker ticker;
+    private RowTicker.Row[] allRows;
+    private ValveList list;
+    private List<String> names;
+    private Map<String, Timer> unchanged;
+    private Map<String, Timer> twoChanged;
+    private PollScheduler scheduler;
+    private int tick = 0;
+    private int changedRows;
+
+    @Setup
+    public void setUp() {
+        ticker = new RowTicker();
+        allRows = new RowTicker.Row[valves];
+        names = new ArrayList<>();
+        unchanged = new HashMap<>();
+        for (int i = 0; i < valves; i++) {
+            final StatusRenderer renderer = new StatusRenderer(new StatusRenderer.Display() {
+                @Override
+                public void setLayoutVisible(int layout, boolean visible) {
+                }
+
+                @Override
+                public void setLengthText(char[] text, int length) {
+                }
+
+                @Override
+                public void setLastSeenText(char[] text, int length) {
+                }
+            }, 10, "Offline for %d:%02d", "Offline for one hour", "Offline for %d hours");
+            // every third valve is running, the rest are idle
+            final Timer timer = new Timer(String.valueOf(i), Fixtures.NAME + i, i % 3 == 0 ? FAR_FUTURE : 0,
+                    FAR_FUTURE);
+            allRows[i] = new RowTicker.Row() {
+                @Override
+                public int render(int now) {
+                    return renderer.render(timer, now);
+                }
+            };
+            if (i < VISIBLE_ROWS) {
+                ticker.attach(allRows[i], NOW);
+            }
+            names.add(timer.getName());
+            unchanged.put(timer.getName(), timer);
+        }
+        twoChanged = new HashMap<>(unchanged);
+        twoChanged.put(names.get(1), unchanged.get(names.get(1)).withEnd(NOW + 600));
+        twoChanged.put(names.get(valves - 1), unchanged.get(names.get(valves - 1)).withEnd(NOW + 600));
+        list = new ValveList(new ValveList.Listener() {
+            @Override
+            public void onInserted(int position, int count) {
+            }
+
+            @Override
+            public void onRemoved(int position, int count) {
+            }
+
+            @Override
+            public void onMoved(int fromPosition, int toPosition) {
+            }
+
+            @Override
+            public void onChanged(int position) {
+                changedRows++;
+            }
+        });
+        list.setNames(names);
+        scheduler = new PollScheduler(10);
+    }
+
+    /* The shared ticker, only attached rows that are out of date are rendered. The clock only moves forward,
+     * a row rendered for a later second would not be due again */
+    @Benchmark
+    public int tick_sharedTicker() {
+        tick++;
+        return ticker.tick(NOW + tick);
+    }
+
+    /* Every valve rendered every second, as a handler loop per valve would */
+    @Benchmark
+    public int tick_everyRow() {
+        tick++;
+        int next = 0;
+        for (RowTicker.Row row : allRows) {
+            next = row.render(NOW + tick);
+        }
+        return next;
+    }
+
+    /* A poll answer for every valve, alternating so two rows change each time */
+    @Benchmark
+    public int poll_twoChanged() {
+        tick++;
+        list.onPolled(names, tick % 2 == 0 ? unchanged : twoChanged, NOW, scheduler);
+        return changedRows;
+    }
+}
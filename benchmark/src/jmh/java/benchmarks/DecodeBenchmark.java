@@ -0,0 +1,68 @@
+package benchmarks;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import common.TimerDecoder;
+import models.Timer;
+
+/* Decoding a poll response: the streaming decoder against the org.json parsing the client started with */
+@State(Scope.Thread)
+public class DecodeBenchmark {
+    private static final int BATCH_SIZE = 100;
+
+    private final TimerDecoder decoder = new TimerDecoder();
+    private byte[] single;
+    private byte[] batch;
+    private ByteArrayInputStream singleStream;
+    private ByteArrayInputStream batchStream;
+
+    @Setup
+    public void setUp() {
+        single = Fixtures.result(1).getBytes(Fixtures.UTF_8);
+        batch = Fixtures.result(BATCH_SIZE).getBytes(Fixtures.UTF_8);
+        singleStream = new ByteArrayInputStream(single);
+        batchStream = new ByteArrayInputStream(batch);
+    }
+
+    @Benchmark
+    public Timer single_streaming() throws IOException {
+        singleStream.reset();
+        return decoder.decodeFirst(singleStream, Fixtures.NAME);
+    }
+
+    @Benchmark
+    public Timer single_orgJson() throws Exception {
+        return legacyTimer(new JSONArray(new String(single, Fixtures.UTF_8)).getJSONObject(0), Fixtures.NAME);
+    }
+
+    @Benchmark
+    public List<Timer> batch_streaming() throws IOException {
+        batchStream.reset();
+        return decoder.decodeAll(batchStream);
+    }
+
+    @Benchmark
+    public List<Timer> batch_orgJson() throws Exception {
+        JSONArray array = new JSONArray(new String(batch, Fixtures.UTF_8));
+        List<Timer> timers = new ArrayList<>(array.length());
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject object = array.getJSONObject(i);
+            timers.add(legacyTimer(object, object.getString("name")));
+        }
+        return timers;
+    }
+
+    private static Timer legacyTimer(JSONObject object, String name) throws Exception {
+        return new Timer(object.getString("_id"), name, object.getInt("end"), object.getInt("last_seen"));
+    }
+}
@@ -0,0 +1,39 @@
+package benchmarks;
+
+import java.nio.charset.Charset;
+
+/* Response bodies shaped like what RESTdb returns for the timers collection */
+final class Fixtures {
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+    static final String NAME = "Valve";
+
+    private Fixtures() {
+    }
+
+    /* A whole timer document with the metadata fields RESTdb adds */
+    static String document(int i) {
+        return String.format("{\"_id\":\"5d9e0b4c1f0a3c5e%08d\",\"name\":\"%s\",\"end\":%d,\"last_seen\":%d,"
+                        + "\"description\":\"Garden drip line, north beds\",\"location\":{\"lat\":44.9778,"
+                        + "\"lng\":-93.265},\"_parent_id\":null,\"_created\":\"2019-10-09T16:12:28.417Z\","
+                        + "\"_changed\":\"2019-10-13T21:06:44.102Z\",\"_createdby\":\"api\",\"_changedby\":\"api\","
+                        + "\"_keywords\":[\"valve\",\"garden\",\"drip\"],\"_version\":%d}",
+                i, i == 0 ? NAME : NAME + i, 1571000000 + i, 1571000004 + i, 4213 + i);
+    }
+
+    /* A query result with `count` documents */
+    static String result(int count) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(document(i));
+        }
+        return sb.append(']').toString();
+    }
+
+    /* The single valve query with only the projected fields */
+    static String projectedResult() {
+        return "[{\"_id\":\"5d9e0b4c1f0a3c5e00000000\",\"end\":1571000000,\"last_seen\":1571000004}]";
+    }
+}
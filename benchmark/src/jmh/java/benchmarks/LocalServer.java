@@ -0,0 +1,74 @@
+package benchmarks;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+/* Embedded stand-in for the RESTdb collection that answers every request with the same body */
+class LocalServer implements HttpHandler {
+    static {
+        // without this the JDK server's delayed ACKs dominate every measured latency
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final byte[] body;
+    private final byte[] compressedBody;
+    private final boolean compression;
+
+    LocalServer(String body, boolean compression) throws IOException {
+        this.body = body.getBytes(Fixtures.UTF_8);
+        this.compressedBody = gzip(this.body);
+        this.compression = compression;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/rest/timers", this);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/rest/timers";
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        byte[] buffer = new byte[1024];
+        while (in.read(buffer) != -1) {
+            // discard
+        }
+        byte[] response = body;
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("accept-encoding");
+        if (compression && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            response = compressedBody;
+            exchange.getResponseHeaders().set("content-encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(200, response.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(response);
+        exchange.close();
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(compressed);
+        out.write(bytes);
+        out.close();
+        return compressed.toByteArray();
+    }
+}
@@ -0,0 +1,82 @@
+package benchmarks;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import common.HttpTransport;
+import common.TimerDecoder;
+import models.Timer;
+
+/* A whole poll against an embedded server: the shared transport and streaming decoder, and the original
+ * connection per request with org.json */
+@State(Scope.Thread)
+public class RequestCycleBenchmark {
+    private static final String QUERY = "?q=%7B%22name%22%3A%22Valve%22%7D";
+
+    // the full document, or the projected fields the client asks for now
+    @Param({"full", "projected"})
+    public String document;
+
+    @Param({"false", "true"})
+    public boolean compression;
+
+    private LocalServer server;
+    private HttpTransport transport;
+    private final TimerDecoder decoder = new TimerDecoder();
+    private final HttpTransport.ResponseReader<Timer> reader = new HttpTransport.ResponseReader<Timer>() {
+        @Override
+        public Timer read(InputStream in) throws IOException {
+            return decoder.decodeFirst(in, Fixtures.NAME);
+        }
+    };
+
+    @Setup
+    public void setUp() throws IOException {
+        server = new LocalServer(document.equals("full") ? Fixtures.result(1) : Fixtures.projectedResult(),
+                compression);
+        transport = new HttpTransport(server.getUrl(), "key", 1000, 1000);
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Benchmark
+    public Timer poll_transport() throws IOException {
+        return transport.get(QUERY, reader);
+    }
+
+    @Benchmark
+    public Timer poll_legacy() throws Exception {
+        HttpURLConnection urlConnection = (HttpURLConnection) new URL(server.getUrl() + QUERY).openConnection();
+        // disconnect() closes the socket on Android, the desktop JVM pools it anyway unless asked not to
+        urlConnection.setRequestProperty("connection", "close");
+        try {
+            InputStreamReader isw = new InputStreamReader(urlConnection.getInputStream(), Fixtures.UTF_8);
+            StringBuilder sb = new StringBuilder();
+            int data = isw.read();
+            while (data != -1) {
+                sb.append((char) data);
+                data = isw.read();
+            }
+            isw.close();
+            JSONObject object = new JSONArray(sb.toString()).getJSONObject(0);
+            return new Timer(object.getString("_id"), Fixtures.NAME, object.getInt("end"), object.getInt("last_seen"));
+        } finally {
+            urlConnection.disconnect();
+        }
+    }
+}
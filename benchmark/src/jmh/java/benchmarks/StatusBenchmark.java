@@ -0,0 +1,78 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import common.StatusRenderer;
+import models.Timer;
+
+/* One status tick: the countdown and offline texts, rendered against String.format as updateValveStatus did */
+@State(Scope.Thread)
+public class StatusBenchmark {
+    private static final int NOW = 1571000000;
+    private static final String OFFLINE_MINUTES_FORMAT = "Offline for %d:%02d";
+
+    private StatusRenderer renderer;
+    private Timer on;
+    private Timer offline;
+    private int tick = 0;
+    // keeps the texts reachable so the formatting can't be optimised away
+    private char[] lastText;
+    private int lastLength;
+
+    @Setup
+    public void setUp() {
+        StatusRenderer.Display display = new StatusRenderer.Display() {
+            @Override
+            public void setLayoutVisible(int layout, boolean visible) {
+            }
+
+            @Override
+            public void setLengthText(char[] text, int length) {
+                lastText = text;
+                lastLength = length;
+            }
+
+            @Override
+            public void setLastSeenText(char[] text, int length) {
+                lastText = text;
+                lastLength = length;
+            }
+        };
+        renderer = new StatusRenderer(display, 10, OFFLINE_MINUTES_FORMAT, "Offline for one hour",
+                "Offline for %d hours");
+        on = new Timer("1", Fixtures.NAME, NOW + 3600, NOW);
+        offline = new Timer("1", Fixtures.NAME, 0, NOW - 3600);
+    }
+
+    /* Every tick moves the countdown by a second so the text changes each time */
+    @Benchmark
+    public int countdown_renderer() {
+        tick = (tick + 1) % 3000;
+        renderer.render(on, NOW + tick);
+        return lastLength;
+    }
+
+    @Benchmark
+    public String countdown_stringFormat() {
+        tick = (tick + 1) % 3000;
+        int timerLength = on.getEnd() - (NOW + tick);
+        return String.format("%d:%02d", timerLength / 60, timerLength % 60);
+    }
+
+    @Benchmark
+    public int offline_renderer() {
+        tick = (tick + 1) % 3000;
+        renderer.render(offline, NOW - 3000 + tick);
+        return lastLength;
+    }
+
+    @Benchmark
+    public String offline_stringFormat() {
+        tick = (tick + 1) % 3000;
+        int lastSeenLength = 600 + tick;
+        return String.format(OFFLINE_MINUTES_FORMAT, lastSeenLength / 60, lastSeenLength % 60);
+    }
+}
@@ -0,0 +1,48 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import common.ServerClock;
+import models.Timer;
+
+/* The timer getters the status tick calls, on the server clock and on the phone's clock */
+@State(Scope.Thread)
+public class TimerBenchmark {
+    private Timer serverTimer;
+    private Timer localTimer;
+
+    @Setup
+    public void setUp() {
+        ServerClock clock = new ServerClock();
+        long sentAt = clock.monotonicMillis();
+        clock.onResponse(sentAt, sentAt + 40, System.currentTimeMillis() + 73000);
+        int now = clock.currentTimeSeconds();
+        serverTimer = new Timer("1", Fixtures.NAME, now + 600, now, clock);
+        localTimer = new Timer("1", Fixtures.NAME, now + 600, now);
+    }
+
+    @Benchmark
+    public int getLength_serverClock() {
+        return serverTimer.getLength();
+    }
+
+    @Benchmark
+    public int getTimeSinceLastSeen_serverClock() {
+        return serverTimer.getTimeSinceLastSeen();
+    }
+
+    @Benchmark
+    public int getLength_localClock() {
+        return localTimer.getLength();
+    }
+
+    /* What the getters cost before the server clock, as a baseline */
+    @Benchmark
+    public int getLength_wallClock() {
+        int now = (int) (System.currentTimeMillis() / 1000);
+        return Math.max(0, serverTimer.getEnd() - now);
+    }
+}
@@ -0,0 +1,242 @@
+package gateway;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import common.HttpStatusException;
+import common.HttpTransport;
+import common.ValveClient;
+import models.Timer;
+
+/* Serves the timers collection API the app uses from the cache, with writes passed through to the upstream.
+ *
+ * Name queries, `{"name":"a"}` and `{"name":{"$in":[...]}}`, are answered from the ValveCache. Other reads go
+ * to the upstream as they are. A PATCH of a document is sent upstream and invalidates the valve once it went
+ * through, so the response and the next read both reflect the write. The upstream's status is passed on for
+ * failed requests. */
+class CachingGateway implements HttpHandler {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String STRING = "\"((?:[^\"\\\\]|\\\\.)*)\"";
+    private static final Pattern NAME_QUERY = Pattern.compile("\\{\\s*\"name\"\\s*:\\s*" + STRING + "\\s*}");
+    private static final Pattern IN_QUERY = Pattern.compile(
+            "\\{\\s*\"name\"\\s*:\\s*\\{\\s*\"\\$in\"\\s*:\\s*\\[([^]]*)]\\s*}\\s*}");
+    private static final Pattern QUOTED = Pattern.compile(STRING);
+
+    private final String contextPath;
+    private final HttpTransport upstream;
+    private final ValveClient upstreamClient;
+    private final ValveCache cache;
+    // the key clients must send, null to accept any
+    private final String clientKey;
+    private final ValveCache.Loader loader = new ValveCache.Loader() {
+        @Override
+        public Map<String, Timer> load(Collection<String> names) throws IOException {
+            return upstreamClient.fetchAll(names);
+        }
+    };
+
+    CachingGateway(String contextPath, ValveClient upstreamClient, ValveCache cache, String clientKey) {
+        this.contextPath = contextPath;
+        this.upstream = upstreamClient.getTransport();
+        this.upstreamClient = upstreamClient;
+        this.cache = cache;
+        this.clientKey = clientKey;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            String requestBody = readFully(exchange.getRequestBody());
+            if (clientKey != null && !clientKey.equals(exchange.getRequestHeaders().getFirst("x-apikey"))) {
+                send(exchange, 401, message("unauthorized"));
+                return;
+            }
+            String method = exchange.getRequestMethod();
+            String override = exchange.getRequestHeaders().getFirst("x-http-method-override");
+            if (override != null) {
+                method = override;
+            }
+            String rawPath = exchange.getRequestURI().getRawPath();
+            String rawQuery = exchange.getRequestURI().getRawQuery();
+            String path = rawPath.substring(Math.min(rawPath.length(), contextPath.length()))
+                    + (rawQuery != null ? "?" + rawQuery : "");
+            if (method.equals("GET") && path.startsWith("?")) {
+                send(exchange, 200, query(path, rawQuery));
+            } else if (method.equals("GET")) {
+                send(exchange, 200, upstream.get(path));
+            } else if (method.equals("PATCH") && path.startsWith("/")) {
+                String response = upstream.patch(path, requestBody);
+                String id = path.substring(1).replaceAll("[?/].*", "");
+                cache.invalidateId(URLDecoder.decode(id, "UTF-8"));
+                send(exchange, 200, response);
+            } else {
+                send(exchange, 405, message("not supported by the gateway"));
+            }
+        } catch (HttpStatusException e) {
+            send(exchange, e.getStatus(), message(e.getMessage()));
+        } catch (IOException e) {
+            send(exchange, 502, message(e.getMessage()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /* Answer a name query from the cache, anything else from the upstream */
+    private String query(String path, String rawQuery) throws IOException {
+        List<String> names = parseNames(parameter(rawQuery, "q"));
+        if (names == null) {
+            return upstream.get(path);
+        }
+        Map<String, Timer> timers = cache.getAll(names, loader);
+        StringBuilder body = new StringBuilder("[");
+        for (String name : names) {
+            Timer timer = timers.get(name);
+            if (timer == null) {
+                continue;
+            }
+            if (body.length() > 1) {
+                body.append(',');
+            }
+            appendTimer(body, timer);
+        }
+        return body.append(']').toString();
+    }
+
+    /* The names of a name or $in query, null for any other query */
+    static List<String> parseNames(String q) {
+        if (q == null) {
+            return null;
+        }
+        q = q.trim();
+        Matcher matcher = NAME_QUERY.matcher(q);
+        if (matcher.matches()) {
+            List<String> names = new ArrayList<>();
+            names.add(unescape(matcher.group(1)));
+            return names;
+        }
+        matcher = IN_QUERY.matcher(q);
+        if (!matcher.matches()) {
+            return null;
+        }
+        List<String> names = new ArrayList<>();
+        Matcher quoted = QUOTED.matcher(matcher.group(1));
+        while (quoted.find()) {
+            names.add(unescape(quoted.group(1)));
+        }
+        return names;
+    }
+
+    private static String parameter(String rawQuery, String name) throws IOException {
+        if (rawQuery == null) {
+            return null;
+        }
+        for (String parameter : rawQuery.split("&")) {
+            if (parameter.startsWith(name + "=")) {
+                return URLDecoder.decode(parameter.substring(name.length() + 1), "UTF-8");
+            }
+        }
+        return null;
+    }
+
+    static void appendTimer(StringBuilder sb, Timer timer) {
+        sb.append("{\"_id\":");
+        ValveClient.appendJsonString(sb, timer.getId());
+        sb.append(",\"name\":");
+        ValveClient.appendJsonString(sb, timer.getName());
+        sb.append(",\"end\":").append(timer.getEnd()).append(",\"last_seen\":").append(timer.getLastSeen())
+                .append('}');
+    }
+
+    private static String message(String message) {
+        StringBuilder sb = new StringBuilder("{\"message\":");
+        ValveClient.appendJsonString(sb, message == null ? "" : message);
+        return sb.append('}').toString();
+    }
+
+    /* Undo the escapes of a JSON string */
+    static String unescape(String value) {
+        if (value.indexOf('\\') < 0) {
+            return value;
+        }
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c != '\\' || i + 1 >= value.length()) {
+                sb.append(c);
+                continue;
+            }
+            c = value.charAt(++i);
+            switch (c) {
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'u':
+                    if (i + 4 < value.length()) {
+                        sb.append((char) Integer.parseInt(value.substring(i + 1, i + 5), 16));
+                        i += 4;
+                    }
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(UTF_8);
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("accept-encoding");
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            bytes = gzip(bytes);
+            exchange.getResponseHeaders().set("content-encoding", "gzip");
+        }
+        exchange.getResponseHeaders().set("content-type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(compressed);
+        out.write(bytes);
+        out.close();
+        return compressed.toByteArray();
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return new String(out.toByteArray(), UTF_8);
+    }
+}
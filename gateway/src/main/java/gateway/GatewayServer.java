@@ -0,0 +1,168 @@
+package gateway;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import common.HttpTransport;
+import common.NetworkMetrics;
+import common.ServerClock;
+import common.ValveClient;
+
+/* A caching gateway in front of the RESTdb timers collection that phones can use as their RESTDB_URL.
+ *
+ * Serves the collection at /rest/timers through a CachingGateway, and what it did at /stats. With many phones
+ * watching the same valves the upstream sees about one query per valve and TTL instead of one per phone and
+ * poll interval. */
+public class GatewayServer {
+    public static final String PATH = "/rest/timers";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 15000;
+    // a valve's last_seen is this much older at most when served, well under the app's offline threshold
+    static final long DEFAULT_TTL = 2000;
+    static final int DEFAULT_MAX_ENTRIES = 100000;
+    private static final int DEFAULT_THREADS = 32;
+    private static final String USAGE = "usage: gateway [--port N] [--upstream URL] [--upstream-key KEY] "
+            + "[--client-key KEY] [--ttl MS] [--max-entries N] [--threads N]\n"
+            + "\n"
+            + "The upstream url and key default to the VALVE_TIMER_RESTDB_URL and VALVE_TIMER_RESTDB_KEY\n"
+            + "environment variables. Without --client-key any client may read and write through the gateway.\n";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService sweeper;
+    private final ValveClient upstreamClient;
+    private final ValveCache cache;
+    private final NetworkMetrics upstreamMetrics = new NetworkMetrics();
+
+    /* Start serving on the port, 0 for any free one */
+    public GatewayServer(int port, String upstreamUrl, String upstreamKey, String clientKey, long ttlMillis,
+                         int maxEntries, int threads) throws IOException {
+        HttpTransport upstream = new HttpTransport(upstreamUrl, upstreamKey, CONNECT_TIMEOUT, READ_TIMEOUT);
+        upstream.setListener(upstreamMetrics);
+        upstreamClient = new ValveClient(upstream, 1);
+        cache = new ValveCache(ttlMillis, maxEntries, ServerClock.SYSTEM_SOURCE);
+        executor = Executors.newFixedThreadPool(threads, daemonThreads("GatewayServer"));
+        server = HttpServer.create(new InetSocketAddress(port), 1024);
+        server.createContext(PATH, new CachingGateway(PATH, upstreamClient, cache, clientKey));
+        server.createContext("/stats", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = (cache.dump() + upstreamMetrics.dump()).getBytes(UTF_8);
+                exchange.getResponseHeaders().set("content-type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                exchange.close();
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+        final long sweepInterval = Math.max(1000, ttlMillis * 10);
+        sweeper = Executors.newSingleThreadScheduledExecutor(daemonThreads("GatewayServer sweeper"));
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                cache.removeExpired();
+            }
+        }, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> env = System.getenv();
+        String upstreamUrl = env.get("VALVE_TIMER_RESTDB_URL");
+        String upstreamKey = env.get("VALVE_TIMER_RESTDB_KEY");
+        String clientKey = null;
+        int port = 8080;
+        long ttl = DEFAULT_TTL;
+        int maxEntries = DEFAULT_MAX_ENTRIES;
+        int threads = DEFAULT_THREADS;
+        try {
+            for (int i = 0; i < args.length; i += 2) {
+                if (i + 1 >= args.length) {
+                    usage("missing value for " + args[i]);
+                }
+                String value = args[i + 1];
+                if (args[i].equals("--port")) {
+                    port = Integer.parseInt(value);
+                } else if (args[i].equals("--upstream")) {
+                    upstreamUrl = value;
+                } else if (args[i].equals("--upstream-key")) {
+                    upstreamKey = value;
+                } else if (args[i].equals("--client-key")) {
+                    clientKey = value;
+                } else if (args[i].equals("--ttl")) {
+                    ttl = Long.parseLong(value);
+                } else if (args[i].equals("--max-entries")) {
+                    maxEntries = Integer.parseInt(value);
+                } else if (args[i].equals("--threads")) {
+                    threads = Integer.parseInt(value);
+                } else {
+                    usage("unknown option " + args[i]);
+                }
+            }
+        } catch (NumberFormatException e) {
+            usage("not a number: " + e.getMessage());
+        }
+        if (upstreamUrl == null || upstreamKey == null) {
+            usage("no upstream url or api key");
+        }
+        GatewayServer gateway = new GatewayServer(port, upstreamUrl, upstreamKey, clientKey, ttl, maxEntries,
+                threads);
+        System.out.println("Serving " + upstreamUrl + " at " + gateway.getUrl());
+    }
+
+    private static void usage(String problem) {
+        System.err.println("gateway: " + problem);
+        System.err.print(USAGE);
+        System.exit(2);
+    }
+
+    /* The collection url for clients on this machine */
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + PATH;
+    }
+
+    public ValveCache getCache() {
+        return cache;
+    }
+
+    /* The requests the gateway sent upstream */
+    public NetworkMetrics getUpstreamMetrics() {
+        return upstreamMetrics;
+    }
+
+    public void stop() {
+        server.stop(0);
+        sweeper.shutdownNow();
+        executor.shutdownNow();
+        upstreamClient.shutdown();
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + " " + count.incrementAndGet());
+                // main returns once the server is up, the non-daemon dispatcher thread keeps it running
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -0,0 +1,278 @@
+package gateway;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.ServerClock;
+import common.SettableFuture;
+import models.Timer;
+
+/* The gateway's timers by valve name, read through to the upstream at most once per valve and TTL.
+ *
+ * A read of a fresh entry is a map lookup. Names that are missing or expired are loaded together in one call,
+ * and a read that needs a name another read is already loading waits for that load instead of starting its
+ * own, so the upstream sees at most one request per valve in flight no matter how many clients ask. Valves
+ * the upstream doesn't know are cached as well. The least recently read entries are dropped beyond
+ * maxEntries. A write invalidates the valve's entry and any load in flight for it, or every load in flight if the
+ * valve's id isn't cached yet, so the next read gets the upstream's state after the write. The read that started
+ * an invalidated load still gets its result, reads that joined it load again. */
+public class ValveCache {
+    /* Loads the named timers from the upstream, names it doesn't know are left out */
+    public interface Loader {
+        Map<String, Timer> load(Collection<String> names) throws IOException;
+    }
+
+    /* A load in flight for one name */
+    private static class Load {
+        final SettableFuture<Timer> future = new SettableFuture<>();
+        // a write came in while loading, the result may predate it
+        volatile boolean invalidated = false;
+    }
+
+    private static class CachedTimer {
+        // null if the upstream has no such valve
+        final Timer timer;
+        final long loadedAt;
+
+        CachedTimer(Timer timer, long loadedAt) {
+            this.timer = timer;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    private final long ttlMillis;
+    private final ServerClock.Source clock;
+    private final LinkedHashMap<String, CachedTimer> entries;
+    private final Map<String, Load> loading = new HashMap<>();
+    // the valve names of the cached ids, writes address valves by id
+    private final Map<String, String> namesById = new HashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong joined = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public ValveCache(long ttlMillis, final int maxEntries, ServerClock.Source clock) {
+        this.ttlMillis = ttlMillis;
+        this.clock = clock;
+        entries = new LinkedHashMap<String, CachedTimer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedTimer> eldest) {
+                if (size() <= maxEntries) {
+                    return false;
+                }
+                evictions.incrementAndGet();
+                Timer timer = eldest.getValue().timer;
+                if (timer != null) {
+                    namesById.remove(timer.getId());
+                }
+                return true;
+            }
+        };
+    }
+
+    /* The named timers, from the cache where fresh, missing valves are left out of the map */
+    public Map<String, Timer> getAll(Collection<String> names, Loader loader) throws IOException {
+        Map<String, Timer> timers = new HashMap<>();
+        Map<String, Load> ours = new LinkedHashMap<>();
+        Map<String, Load> theirs = new HashMap<>();
+        long now = clock.monotonicMillis();
+        synchronized (this) {
+            for (String name : new LinkedHashSet<>(names)) {
+                CachedTimer entry = entries.get(name);
+                if (entry != null && now - entry.loadedAt < ttlMillis) {
+                    hits.incrementAndGet();
+                    if (entry.timer != null) {
+                        timers.put(name, entry.timer);
+                    }
+                    continue;
+                }
+                Load load = loading.get(name);
+                if (load != null) {
+                    joined.incrementAndGet();
+                    theirs.put(name, load);
+                } else {
+                    misses.incrementAndGet();
+                    load = new Load();
+                    loading.put(name, load);
+                    ours.put(name, load);
+                }
+            }
+        }
+        if (!ours.isEmpty()) {
+            load(ours, loader);
+        }
+        List<Map.Entry<String, Load>> pending = new ArrayList<>(ours.entrySet());
+        pending.addAll(theirs.entrySet());
+        List<String> reread = new ArrayList<>();
+        for (Map.Entry<String, Load> entry : pending) {
+            Timer timer = await(entry.getValue().future);
+            if (theirs.containsKey(entry.getKey()) && entry.getValue().invalidated) {
+                // joined a load that a write overtook, this read may have started after the write
+                reread.add(entry.getKey());
+            } else if (timer != null) {
+                timers.put(entry.getKey(), timer);
+            }
+        }
+        if (!reread.isEmpty()) {
+            timers.putAll(getAll(reread, loader));
+        }
+        return timers;
+    }
+
+    private void load(Map<String, Load> batch, Loader loader) {
+        loads.incrementAndGet();
+        Map<String, Timer> loaded;
+        try {
+            loaded = loader.load(batch.keySet());
+        } catch (Exception e) {
+            synchronized (this) {
+                for (Map.Entry<String, Load> entry : batch.entrySet()) {
+                    removeLoading(entry.getKey(), entry.getValue());
+                    entry.getValue().future.setException(e);
+                }
+            }
+            return;
+        }
+        long now = clock.monotonicMillis();
+        synchronized (this) {
+            for (Map.Entry<String, Load> entry : batch.entrySet()) {
+                String name = entry.getKey();
+                Timer timer = loaded.get(name);
+                // a write since the load started invalidated it, the result may predate the write
+                if (removeLoading(name, entry.getValue())) {
+                    entries.put(name, new CachedTimer(timer, now));
+                    if (timer != null) {
+                        namesById.put(timer.getId(), name);
+                    }
+                }
+                entry.getValue().future.set(timer);
+            }
+        }
+    }
+
+    private boolean removeLoading(String name, Load load) {
+        if (loading.get(name) != load) {
+            return false;
+        }
+        loading.remove(name);
+        return true;
+    }
+
+    private void invalidateLoading(String name) {
+        Load load = loading.remove(name);
+        if (load != null) {
+            load.invalidated = true;
+        }
+    }
+
+    /* Forget the valve with the given id, called once a write to it went through */
+    public synchronized void invalidateId(String id) {
+        invalidations.incrementAndGet();
+        String name = namesById.remove(id);
+        if (name != null) {
+            entries.remove(name);
+            invalidateLoading(name);
+        } else {
+            // the valve's first load may be in flight without its id known yet, none of them may be cached
+            for (Load load : loading.values()) {
+                load.invalidated = true;
+            }
+            loading.clear();
+        }
+    }
+
+    /* Forget everything about the named valve */
+    public synchronized void invalidate(String name) {
+        CachedTimer entry = entries.remove(name);
+        if (entry != null && entry.timer != null) {
+            namesById.remove(entry.timer.getId());
+        }
+        invalidateLoading(name);
+        invalidations.incrementAndGet();
+    }
+
+    /* Drop the expired entries, reads do this lazily but idle valves would stay in memory otherwise */
+    public synchronized int removeExpired() {
+        long now = clock.monotonicMillis();
+        int removed = 0;
+        for (Iterator<CachedTimer> it = entries.values().iterator(); it.hasNext(); ) {
+            CachedTimer entry = it.next();
+            if (now - entry.loadedAt >= ttlMillis) {
+                if (entry.timer != null) {
+                    namesById.remove(entry.timer.getId());
+                }
+                it.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /* Counters since the start as text, one per line */
+    public String dump() {
+        return String.format("entries: %d\nhits: %d\nmisses: %d\njoined loads: %d\nupstream loads: %d\n"
+                        + "evictions: %d\ninvalidations: %d\n", size(), hits.get(), misses.get(), joined.get(),
+                loads.get(), evictions.get(), invalidations.get());
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /* Reads that waited for another read's load */
+    public long getJoined() {
+        return joined.get();
+    }
+
+    /* Calls to the loader */
+    public long getLoads() {
+        return loads.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    private static Timer await(SettableFuture<Timer> future) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
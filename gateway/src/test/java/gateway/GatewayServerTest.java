@@ -0,0 +1,172 @@
+package gateway;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import common.HttpStatusException;
+import common.HttpTransport;
+import common.ValveClient;
+import models.Timer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class GatewayServerTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Pattern END = Pattern.compile("\"end\":(-?\\d+)");
+
+    private HttpServer upstream;
+    private GatewayServer gateway;
+    private ValveClient client;
+    // the upstream's valves by name, the id is the name
+    private final Map<String, Integer> ends = new ConcurrentHashMap<>();
+    private final AtomicInteger upstreamQueries = new AtomicInteger();
+    private final AtomicInteger upstreamPatches = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        upstream = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        upstream.createContext(GatewayServer.PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String requestBody = readFully(exchange.getRequestBody());
+                String path = exchange.getRequestURI().getPath();
+                String body;
+                int status = 200;
+                if (path.length() > GatewayServer.PATH.length()) {
+                    upstreamPatches.incrementAndGet();
+                    String id = path.substring(GatewayServer.PATH.length() + 1);
+                    Matcher matcher = END.matcher(requestBody);
+                    if (ends.containsKey(id) && matcher.find()) {
+                        ends.put(id, Integer.parseInt(matcher.group(1)));
+                        body = document(id);
+                    } else {
+                        status = 404;
+                        body = "{\"message\":\"not found\"}";
+                    }
+                } else {
+                    upstreamQueries.incrementAndGet();
+                    String q = URLDecoder.decode(exchange.getRequestURI().getRawQuery()
+                            .replaceAll("^q=([^&]*).*", "$1"), "UTF-8");
+                    List<String> names = CachingGateway.parseNames(q);
+                    StringBuilder sb = new StringBuilder("[");
+                    for (String name : names != null ? names : new ArrayList<String>(ends.keySet())) {
+                        if (ends.containsKey(name)) {
+                            sb.append(sb.length() > 1 ? "," : "").append(document(name));
+                        }
+                    }
+                    body = sb.append(']').toString();
+                }
+                byte[] bytes = body.getBytes(UTF_8);
+                exchange.sendResponseHeaders(status, bytes.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(bytes);
+                exchange.close();
+            }
+        });
+        upstream.start();
+        String upstreamUrl = "http://127.0.0.1:" + upstream.getAddress().getPort() + GatewayServer.PATH;
+        gateway = new GatewayServer(0, upstreamUrl, "key", null, 60000, 100, 8);
+        client = new ValveClient(new HttpTransport(gateway.getUrl(), "key", 1000, 5000), 20);
+    }
+
+    @After
+    public void tearDown() {
+        client.shutdown();
+        gateway.stop();
+        upstream.stop(0);
+    }
+
+    private String document(String name) {
+        return String.format("{\"_id\":\"%s\",\"name\":\"%s\",\"end\":%d,\"last_seen\":500}", name, name,
+                ends.get(name));
+    }
+
+    /* A hundred phones polling the same two valves make one upstream query per valve */
+    @Test
+    public void reads_shareOneUpstreamQuery() throws Exception {
+        ends.put("a", 100);
+        ends.put("b", 200);
+        List<Future<Timer>> results = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            results.add(client.get(i % 2 == 0 ? "a" : "b"));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i % 2 == 0 ? 100 : 200, results.get(i).get(5, TimeUnit.SECONDS).getEnd());
+        }
+        assertEquals(2, upstreamQueries.get());
+        assertNull(client.fetch("c"));
+        assertNull(client.fetch("c"));
+
+        Map<String, Timer> timers = client.fetchAll(Arrays.asList("a", "b", "c", "d"));
+        assertEquals(2, timers.size());
+        assertEquals(4, upstreamQueries.get());
+        assertEquals(4, gateway.getCache().getMisses());
+    }
+
+    /* A write goes upstream and the next read sees it without waiting for the TTL */
+    @Test
+    public void writes_invalidate() throws Exception {
+        ends.put("a", 100);
+        assertEquals(100, client.fetch("a").getEnd());
+        Timer updated = client.patchEnd(client.fetch("a"), 1300);
+        assertEquals(1300, updated.getEnd());
+        assertEquals(1, upstreamPatches.get());
+        assertEquals(1300, client.fetch("a").getEnd());
+        assertEquals(2, upstreamQueries.get());
+    }
+
+    @Test
+    public void upstreamErrors_arePassedOn() throws InterruptedException {
+        try {
+            client.patchEnd(new Timer("missing", "missing", 0, 0), 1300);
+            fail();
+        } catch (HttpStatusException e) {
+            assertEquals(404, e.getStatus());
+        } catch (IOException e) {
+            fail(e.toString());
+        }
+        upstream.stop(0);
+        try {
+            client.get("a").get();
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals(502, ((HttpStatusException) e.getCause()).getStatus());
+        }
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return new String(out.toByteArray(), UTF_8);
+    }
+}
@@ -0,0 +1,278 @@
+package gateway;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import common.ServerClock;
+import models.Timer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ValveCacheTest {
+    private static final long TTL = 2000;
+
+    private volatile long now = 0;
+    private final ServerClock.Source clock = new ServerClock.Source() {
+        @Override
+        public long monotonicMillis() {
+            return now;
+        }
+
+        @Override
+        public long wallMillis() {
+            return now;
+        }
+    };
+    // the upstream's valves
+    private final Map<String, Integer> ends = new HashMap<>();
+    private final AtomicInteger loads = new AtomicInteger();
+    private final List<String> loadedNames = Collections.synchronizedList(new ArrayList<String>());
+    private volatile CountDownLatch gate = new CountDownLatch(0);
+    private volatile CountDownLatch loadStarted = new CountDownLatch(1);
+    private volatile boolean failing = false;
+    private final ValveCache.Loader loader = new ValveCache.Loader() {
+        @Override
+        public Map<String, Timer> load(Collection<String> names) throws IOException {
+            loads.incrementAndGet();
+            loadedNames.addAll(names);
+            // the upstream reads its state right away, the answer takes until the gate opens
+            Map<String, Timer> timers = new HashMap<>();
+            synchronized (ends) {
+                for (String name : names) {
+                    if (ends.containsKey(name)) {
+                        timers.put(name, new Timer("id " + name, name, ends.get(name), 0));
+                    }
+                }
+            }
+            loadStarted.countDown();
+            try {
+                gate.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (failing) {
+                throw new IOException("upstream down");
+            }
+            return timers;
+        }
+    };
+
+    @Test
+    public void getAll_servesFreshEntriesFromTheCache() throws IOException {
+        ValveCache cache = new ValveCache(TTL, 100, clock);
+        ends.put("a", 100);
+        ends.put("b", 200);
+        assertEquals(2, cache.getAll(Arrays.asList("a", "b", "c"), loader).size());
+        assertEquals(1, loads.get());
+
+        now = TTL - 1;
+        ends.put("a", 101);
+        Map<String, Timer> timers = cache.getAll(Arrays.asList("a", "c"), loader);
+        assertEquals(100, timers.get("a").getEnd());
+        assertFalse(timers.containsKey("c"));
+        assertEquals(1, loads.get());
+        assertEquals(2, cache.getHits());
+
+        now = TTL;
+        assertEquals(101, cache.getAll(Collections.singletonList("a"), loader).get("a").getEnd());
+        assertEquals(2, loads.get());
+        assertEquals(Arrays.asList("a", "b", "c", "a"), loadedNames);
+    }
+
+    /* Fifty readers of a valve that isn't cached make one upstream load */
+    @Test
+    public void getAll_joinsTheLoadInFlight() throws Exception {
+        final ValveCache cache = new ValveCache(TTL, 100, clock);
+        ends.put("a", 100);
+        gate = new CountDownLatch(1);
+        ExecutorService readers = Executors.newFixedThreadPool(50);
+        try {
+            List<Future<Map<String, Timer>>> results = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                results.add(readers.submit(new Callable<Map<String, Timer>>() {
+                    @Override
+                    public Map<String, Timer> call() throws IOException {
+                        return cache.getAll(Collections.singletonList("a"), loader);
+                    }
+                }));
+            }
+            assertTrue(loadStarted.await(5, TimeUnit.SECONDS));
+            // let the other readers reach the cache
+            while (cache.getJoined() < 49) {
+                Thread.sleep(1);
+            }
+            gate.countDown();
+            for (Future<Map<String, Timer>> result : results) {
+                assertEquals(100, result.get(5, TimeUnit.SECONDS).get("a").getEnd());
+            }
+        } finally {
+            readers.shutdownNow();
+        }
+        assertEquals(1, loads.get());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void getAll_failedLoadIsNotCached() throws IOException {
+        ValveCache cache = new ValveCache(TTL, 100, clock);
+        ends.put("a", 100);
+        failing = true;
+        try {
+            cache.getAll(Collections.singletonList("a"), loader);
+            fail();
+        } catch (IOException expected) {
+        }
+        failing = false;
+        assertEquals(100, cache.getAll(Collections.singletonList("a"), loader).get("a").getEnd());
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void getAll_evictsLeastRecentlyRead() throws IOException {
+        ValveCache cache = new ValveCache(TTL, 2, clock);
+        ends.put("a", 100);
+        ends.put("b", 200);
+        ends.put("c", 300);
+        cache.getAll(Collections.singletonList("a"), loader);
+        cache.getAll(Collections.singletonList("b"), loader);
+        cache.getAll(Collections.singletonList("a"), loader);
+        cache.getAll(Collections.singletonList("c"), loader);
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertEquals(3, loads.get());
+        cache.getAll(Collections.singletonList("a"), loader);
+        assertEquals(3, loads.get());
+        cache.getAll(Collections.singletonList("b"), loader);
+        assertEquals(4, loads.get());
+    }
+
+    @Test
+    public void invalidateId_dropsTheEntry() throws IOException {
+        ValveCache cache = new ValveCache(TTL, 100, clock);
+        ends.put("a", 100);
+        cache.getAll(Collections.singletonList("a"), loader);
+        ends.put("a", 500);
+        cache.invalidateId("id a");
+        assertEquals(500, cache.getAll(Collections.singletonList("a"), loader).get("a").getEnd());
+        assertEquals(2, loads.get());
+    }
+
+    /* A load that started before a write may return the old state, it is handed out but not cached */
+    @Test
+    public void invalidate_duringLoadDoesNotCacheTheResult() throws Exception {
+        final ValveCache cache = new ValveCache(TTL, 100, clock);
+        ends.put("a", 100);
+        gate = new CountDownLatch(1);
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        try {
+            Future<Map<String, Timer>> stale = reader.submit(new Callable<Map<String, Timer>>() {
+                @Override
+                public Map<String, Timer> call() throws IOException {
+                    return cache.getAll(Collections.singletonList("a"), loader);
+                }
+            });
+            assertTrue(loadStarted.await(5, TimeUnit.SECONDS));
+            cache.invalidate("a");
+            gate.countDown();
+            assertEquals(100, stale.get(5, TimeUnit.SECONDS).get("a").getEnd());
+        } finally {
+            reader.shutdownNow();
+        }
+        assertEquals(0, cache.size());
+        ends.put("a", 500);
+        assertEquals(500, cache.getAll(Collections.singletonList("a"), loader).get("a").getEnd());
+    }
+
+    /* A write to a valve whose first load is in flight doesn't know its name, the load must not be cached */
+    @Test
+    public void invalidateId_ofAnUnknownValveDuringLoadDoesNotCacheTheResult() throws Exception {
+        final ValveCache cache = new ValveCache(TTL, 100, clock);
+        ends.put("a", 100);
+        gate = new CountDownLatch(1);
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        try {
+            Future<Map<String, Timer>> stale = reader.submit(new Callable<Map<String, Timer>>() {
+                @Override
+                public Map<String, Timer> call() throws IOException {
+                    return cache.getAll(Collections.singletonList("a"), loader);
+                }
+            });
+            assertTrue(loadStarted.await(5, TimeUnit.SECONDS));
+            cache.invalidateId("id a");
+            gate.countDown();
+            assertEquals(100, stale.get(5, TimeUnit.SECONDS).get("a").getEnd());
+        } finally {
+            reader.shutdownNow();
+        }
+        assertEquals(0, cache.size());
+        ends.put("a", 500);
+        assertEquals(500, cache.getAll(Collections.singletonList("a"), loader).get("a").getEnd());
+    }
+
+    /* A read that joined a load a write overtook may have started after the write, it loads again */
+    @Test
+    public void invalidateId_duringLoadMakesJoinedReadsLoadAgain() throws Exception {
+        final ValveCache cache = new ValveCache(TTL, 100, clock);
+        ends.put("a", 100);
+        gate = new CountDownLatch(1);
+        ExecutorService readers = Executors.newFixedThreadPool(2);
+        try {
+            Callable<Map<String, Timer>> read = new Callable<Map<String, Timer>>() {
+                @Override
+                public Map<String, Timer> call() throws IOException {
+                    return cache.getAll(Collections.singletonList("a"), loader);
+                }
+            };
+            Future<Map<String, Timer>> first = readers.submit(read);
+            assertTrue(loadStarted.await(5, TimeUnit.SECONDS));
+            Future<Map<String, Timer>> joiner = readers.submit(read);
+            while (cache.getJoined() < 1) {
+                Thread.sleep(1);
+            }
+            synchronized (ends) {
+                ends.put("a", 500);
+            }
+            cache.invalidateId("id a");
+            gate.countDown();
+            assertEquals(100, first.get(5, TimeUnit.SECONDS).get("a").getEnd());
+            assertEquals(500, joiner.get(5, TimeUnit.SECONDS).get("a").getEnd());
+        } finally {
+            readers.shutdownNow();
+        }
+        assertEquals(2, loads.get());
+        assertEquals(500, cache.getAll(Collections.singletonList("a"), loader).get("a").getEnd());
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void removeExpired() throws IOException {
+        ValveCache cache = new ValveCache(TTL, 100, clock);
+        cache.getAll(Collections.singletonList("a"), loader);
+        now = TTL / 2;
+        cache.getAll(Collections.singletonList("b"), loader);
+        now = TTL;
+        assertEquals(1, cache.removeExpired());
+        assertEquals(1, cache.size());
+        assertNull(cache.getAll(Collections.singletonList("b"), loader).get("b"));
+        assertEquals(2, loads.get());
+    }
+}
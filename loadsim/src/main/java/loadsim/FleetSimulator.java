@@ -0,0 +1,298 @@
+package loadsim;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import common.HttpTransport;
+import common.LatencyHistogram;
+import common.ValveClient;
+import gateway.GatewayServer;
+
+/* Runs fleets of virtual clients against the RESTdb stand-in and prints what they cost the backend.
+ *
+ * Every combination of client count and poll interval given on the command line is one run: a fresh
+ * stand-in with the valves, the clients ticking once a second at random offsets, a warm-up that is not
+ * measured and then the measured window. Each run prints a line with the request rate, client side latency
+ * percentiles and the stand-in's CPU and allocation. With a gateway TTL the clients go through a caching
+ * gateway and the stand-in's request rate is what the gateway sends upstream. Runs are in real time, so the
+ * client intervals show up in the request rate exactly as they would on phones. */
+public class FleetSimulator {
+    // clients are ticked in this many slots per second so their requests don't all start at once
+    private static final int TICK_SLOTS = 100;
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 15000;
+    private static final String USAGE = "usage: loadsim [options]\n"
+            + "\n"
+            + "  --clients N,N...          virtual clients per run (default 100,1000)\n"
+            + "  --poll adaptive|SECONDS,...  poll schedule per run, a number is a fixed interval (default adaptive,10)\n"
+            + "  --valves N                valves the clients are spread over (default 100)\n"
+            + "  --duration SECONDS        measured time per run, several idle poll intervals (default 900)\n"
+            + "  --warmup SECONDS          unmeasured time before it, past the start-up burst (default 240)\n"
+            + "  --commands-per-hour N     on and off commands per client (default 4)\n"
+            + "  --failure-rate F          fraction of requests the stand-in fails with 503 (default 0)\n"
+            + "  --server-delay MS         time the stand-in holds every request (default 0)\n"
+            + "  --server-threads N        stand-in handler threads (default 16)\n"
+            + "  --client-threads N        threads sending the clients' requests (default 64)\n"
+            + "  --gateway-ttl MS,...      put a caching gateway with this TTL in front, 0 for none (default 0)\n";
+
+    /* One run */
+    static class Config {
+        int clients = 100;
+        // seconds, 0 for the adaptive schedule
+        int pollInterval = 0;
+        int valves = 100;
+        // the adaptive schedule polls idle valves every PollScheduler.IDLE_INTERVAL, its steady state needs
+        // a warm-up longer than that and a measurement over several of them
+        int durationSeconds = 900;
+        int warmupSeconds = 240;
+        double commandsPerHour = 4;
+        double failureRate = 0;
+        long serverDelay = 0;
+        int serverThreads = 16;
+        int clientThreads = 64;
+        // milliseconds, 0 for clients talking to the stand-in directly
+        long gatewayTtl = 0;
+
+        Config copy() {
+            Config copy = new Config();
+            copy.clients = clients;
+            copy.pollInterval = pollInterval;
+            copy.valves = valves;
+            copy.durationSeconds = durationSeconds;
+            copy.warmupSeconds = warmupSeconds;
+            copy.commandsPerHour = commandsPerHour;
+            copy.failureRate = failureRate;
+            copy.serverDelay = serverDelay;
+            copy.serverThreads = serverThreads;
+            copy.clientThreads = clientThreads;
+            copy.gatewayTtl = gatewayTtl;
+            return copy;
+        }
+    }
+
+    /* What a run measured */
+    static class Result {
+        final Config config;
+        final double seconds;
+        final long queries;
+        final long updates;
+        final long serverErrors;
+        final double serverCpuNanos;
+        final long serverAllocatedBytes;
+        final long serverBytesOut;
+        final long peakHeapBytes;
+        final FleetStats stats;
+
+        Result(Config config, double seconds, RestDbStandIn server, long peakHeapBytes, FleetStats stats) {
+            this.config = config;
+            this.seconds = seconds;
+            this.queries = server.getQueries();
+            this.updates = server.getUpdates();
+            this.serverErrors = server.getErrors();
+            this.serverCpuNanos = server.getCpuNanos();
+            this.serverAllocatedBytes = server.getAllocatedBytes();
+            this.serverBytesOut = server.getBytesOut();
+            this.peakHeapBytes = peakHeapBytes;
+            this.stats = stats;
+        }
+
+        /* Requests that reached the stand-in, through the gateway if there is one */
+        double requestsPerSecond() {
+            return (queries + updates) / seconds;
+        }
+
+        /* Requests the clients sent */
+        double clientRequestsPerSecond() {
+            return (stats.polls.get() + stats.commands.get()) / seconds;
+        }
+
+        /* Share of one core the stand-in used */
+        double serverCpuPercent() {
+            return serverCpuNanos / (seconds * 1e9) * 100;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<Config> configs;
+        try {
+            configs = parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println("loadsim: " + e.getMessage());
+            System.err.print(USAGE);
+            System.exit(2);
+            return;
+        }
+        // each phone has its own connection, don't let the JVM's keep-alive cache close most of ours
+        System.setProperty("http.maxConnections", String.valueOf(configs.get(0).clientThreads));
+        PrintStream out = System.out;
+        out.println(header());
+        for (Config config : configs) {
+            out.println(format(run(config)));
+        }
+    }
+
+    /* Every combination of the comma separated --clients, --poll and --gateway-ttl values */
+    static List<Config> parse(String[] args) {
+        Config base = new Config();
+        String clients = "100,1000";
+        String polls = "adaptive,10";
+        String gatewayTtls = "0";
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("missing value for " + args[i]);
+            }
+            String option = args[i];
+            String value = args[i + 1];
+            try {
+                if (option.equals("--clients")) {
+                    clients = value;
+                } else if (option.equals("--poll")) {
+                    polls = value;
+                } else if (option.equals("--valves")) {
+                    base.valves = Integer.parseInt(value);
+                } else if (option.equals("--duration")) {
+                    base.durationSeconds = Integer.parseInt(value);
+                } else if (option.equals("--warmup")) {
+                    base.warmupSeconds = Integer.parseInt(value);
+                } else if (option.equals("--commands-per-hour")) {
+                    base.commandsPerHour = Double.parseDouble(value);
+                } else if (option.equals("--failure-rate")) {
+                    base.failureRate = Double.parseDouble(value);
+                } else if (option.equals("--server-delay")) {
+                    base.serverDelay = Long.parseLong(value);
+                } else if (option.equals("--server-threads")) {
+                    base.serverThreads = Integer.parseInt(value);
+                } else if (option.equals("--client-threads")) {
+                    base.clientThreads = Integer.parseInt(value);
+                } else if (option.equals("--gateway-ttl")) {
+                    gatewayTtls = value;
+                } else {
+                    throw new IllegalArgumentException("unknown option " + option);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("not a number: " + value);
+            }
+        }
+        List<Config> configs = new ArrayList<>();
+        for (String gatewayTtl : gatewayTtls.split(",")) {
+            for (String poll : polls.split(",")) {
+                for (String count : clients.split(",")) {
+                    Config config = base.copy();
+                    try {
+                        config.clients = Integer.parseInt(count.trim());
+                        config.pollInterval = poll.trim().equals("adaptive") ? 0 : Integer.parseInt(poll.trim());
+                        config.gatewayTtl = Long.parseLong(gatewayTtl.trim());
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("not a number in " + count + ", " + poll + " or "
+                                + gatewayTtl);
+                    }
+                    configs.add(config);
+                }
+            }
+        }
+        return configs;
+    }
+
+    /* Run one fleet against a fresh stand-in */
+    static Result run(Config config) throws IOException, InterruptedException {
+        final RestDbStandIn server = new RestDbStandIn(config.serverThreads);
+        server.setFailureRate(config.failureRate);
+        server.setDelay(config.serverDelay);
+        Random random = new Random(config.clients * 31L + config.pollInterval);
+        int now = (int) (System.currentTimeMillis() / 1000);
+        for (int i = 0; i < config.valves; i++) {
+            // a few valves are running when the clients start
+            server.put(valveName(i), random.nextInt(10) == 0 ? now + random.nextInt(600) : now - random.nextInt(86400));
+        }
+
+        GatewayServer gateway = null;
+        String url = server.getUrl();
+        if (config.gatewayTtl > 0) {
+            gateway = new GatewayServer(0, server.getUrl(), "key", null, config.gatewayTtl, config.valves * 2,
+                    config.serverThreads);
+            url = gateway.getUrl();
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(config.clientThreads, config.clientThreads, 30,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        ValveClient client = new ValveClient(new HttpTransport(url, "key", CONNECT_TIMEOUT, READ_TIMEOUT), executor);
+        final FleetStats stats = new FleetStats();
+        final List<List<VirtualClient>> slots = new ArrayList<>();
+        for (int i = 0; i < TICK_SLOTS; i++) {
+            slots.add(new ArrayList<VirtualClient>());
+        }
+        for (int i = 0; i < config.clients; i++) {
+            VirtualClient virtualClient = new VirtualClient(valveName(i % config.valves), client, executor, stats,
+                    config.pollInterval, config.commandsPerHour, random.nextLong());
+            slots.get(random.nextInt(TICK_SLOTS)).add(virtualClient);
+        }
+
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor();
+        ticker.scheduleAtFixedRate(new Runnable() {
+            private int slot = 0;
+
+            @Override
+            public void run() {
+                for (VirtualClient virtualClient : slots.get(slot)) {
+                    virtualClient.tick();
+                }
+                slot = (slot + 1) % TICK_SLOTS;
+            }
+        }, 0, 1000 / TICK_SLOTS, TimeUnit.MILLISECONDS);
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long peakHeap = 0;
+        try {
+            Thread.sleep(config.warmupSeconds * 1000L);
+            server.resetCounters();
+            stats.reset();
+            long start = System.nanoTime();
+            long end = start + config.durationSeconds * 1000000000L;
+            while (System.nanoTime() < end) {
+                Thread.sleep(Math.max(1, Math.min(500, (end - System.nanoTime()) / 1000000)));
+                peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed());
+            }
+            return new Result(config, (System.nanoTime() - start) / 1e9, server, peakHeap, stats);
+        } finally {
+            ticker.shutdownNow();
+            client.shutdown();
+            executor.awaitTermination(READ_TIMEOUT, TimeUnit.MILLISECONDS);
+            if (gateway != null) {
+                gateway.stop();
+            }
+            server.stop();
+        }
+    }
+
+    static String valveName(int i) {
+        return "valve " + i;
+    }
+
+    static String header() {
+        return String.format("%7s %8s %8s %9s %10s %7s %7s %7s %7s %7s %6s %9s %8s %8s %7s",
+                "clients", "poll", "gateway", "client/s", "upstream/s", "p50 ms", "p99 ms", "p99.9", "max ms", "cmd p99", "errors",
+                "srv cpu%", "srv MB/s", "heap MB", "lag p99");
+    }
+
+    static String format(Result result) {
+        LatencyHistogram polls = result.stats.pollLatency;
+        return String.format("%7d %8s %8s %9.1f %10.1f %7.2f %7.2f %7.2f %7.1f %7.2f %6d %9.1f %8.2f %8.1f %7d",
+                result.config.clients, result.config.pollInterval == 0 ? "adaptive" : result.config.pollInterval + "s",
+                result.config.gatewayTtl == 0 ? "-" : result.config.gatewayTtl + "ms",
+                result.clientRequestsPerSecond(), result.requestsPerSecond(),
+                polls.getValueAtPercentile(50) / 1000.0, polls.getValueAtPercentile(99) / 1000.0,
+                polls.getValueAtPercentile(99.9) / 1000.0, polls.getMax() / 1000.0,
+                result.stats.commandLatency.getValueAtPercentile(99) / 1000.0, result.stats.failures.get(),
+                result.serverCpuPercent(), result.serverAllocatedBytes / result.seconds / 1e6,
+                result.peakHeapBytes / 1e6, result.stats.queueDelay.getValueAtPercentile(99));
+    }
+}
@@ -0,0 +1,31 @@
+package loadsim;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.LatencyHistogram;
+
+/* What the virtual clients of a run did, shared by all of them */
+class FleetStats {
+    // a request can take the connect and read timeouts and then some, longer is recorded as this
+    static final long MAX_LATENCY_MICROS = 3600L * 1000000;
+    // latencies in microseconds, local requests take less than the millisecond the app records in
+    final LatencyHistogram pollLatency = new LatencyHistogram(MAX_LATENCY_MICROS);
+    final LatencyHistogram commandLatency = new LatencyHistogram(MAX_LATENCY_MICROS);
+    // milliseconds from deciding to send a request until a client thread picked it up, the simulator's own lag
+    final LatencyHistogram queueDelay = new LatencyHistogram();
+    final AtomicLong polls = new AtomicLong();
+    final AtomicLong commands = new AtomicLong();
+    final AtomicLong failures = new AtomicLong();
+    // ticks where a client wanted to poll but the request policy held it back
+    final AtomicLong heldBack = new AtomicLong();
+
+    void reset() {
+        pollLatency.reset();
+        commandLatency.reset();
+        queueDelay.reset();
+        polls.set(0);
+        commands.set(0);
+        failures.set(0);
+        heldBack.set(0);
+    }
+}
@@ -0,0 +1,327 @@
+package loadsim;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/* An in-process stand-in for the RESTdb timers collection that measures what serving the fleet costs.
+ *
+ * It answers the two requests the client makes, a name or $in query on the collection and a PATCH of a
+ * document's end (sent as POST with x-http-method-override), with documents held in memory. Valves are
+ * assumed to check in on their own, so every document is served with last_seen set to now. Responses are
+ * gzipped for clients that accept it, like RESTdb does. The handler threads measure their own CPU time and
+ * allocation, which is what a backend would pay per request without the network and database in front. */
+public class RestDbStandIn implements HttpHandler {
+    static final String PATH = "/rest/timers";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Pattern QUOTED = Pattern.compile("\"((?:[^\"\\\\]|\\\\.)*)\"");
+    private static final Pattern END = Pattern.compile("\"end\"\\s*:\\s*(-?\\d+)");
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    static {
+        // without this the JDK server's delayed ACKs dominate every measured latency
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    /* A stored timer, replaced as a whole on every change */
+    private static class Document {
+        final String id;
+        final String name;
+        final int end;
+
+        Document(String id, String name, int end) {
+            this.id = id;
+            this.name = name;
+            this.end = end;
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ConcurrentHashMap<String, Document> byName = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Document> byId = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final Random random = new Random();
+    private volatile double failureRate = 0;
+    private volatile long delayMillis = 0;
+
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong updates = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong cpuNanos = new AtomicLong();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+
+    /* Start serving on a free local port with `threads` handler threads */
+    public RestDbStandIn(int threads) throws IOException {
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "RestDbStandIn " + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        server.createContext(PATH, this);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + PATH;
+    }
+
+    /* Add a valve, returns its id */
+    public String put(String name, int end) {
+        String id = Integer.toHexString(nextId.incrementAndGet());
+        Document document = new Document(id, name, end);
+        byId.put(id, document);
+        byName.put(name, document);
+        return id;
+    }
+
+    /* Answer this fraction of the requests with 503 */
+    public void setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+    }
+
+    /* Hold every request this long, for a backend further away than localhost */
+    public void setDelay(long delayMillis) {
+        this.delayMillis = delayMillis;
+    }
+
+    public long getQueries() {
+        return queries.get();
+    }
+
+    public long getUpdates() {
+        return updates.get();
+    }
+
+    /* Requests answered with an error, injected or not */
+    public long getErrors() {
+        return errors.get();
+    }
+
+    /* CPU time the handler threads spent on requests */
+    public long getCpuNanos() {
+        return cpuNanos.get();
+    }
+
+    /* Heap the handler threads allocated for requests */
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    /* Response bytes sent, after compression */
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    public void resetCounters() {
+        queries.set(0);
+        updates.set(0);
+        errors.set(0);
+        cpuNanos.set(0);
+        allocatedBytes.set(0);
+        bytesOut.set(0);
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        long threadId = Thread.currentThread().getId();
+        long cpuBefore = THREADS.getThreadCpuTime(threadId);
+        long allocatedBefore = THREADS.getThreadAllocatedBytes(threadId);
+        try {
+            if (delayMillis > 0) {
+                Thread.sleep(delayMillis);
+            }
+            respond(exchange);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+            cpuNanos.addAndGet(THREADS.getThreadCpuTime(threadId) - cpuBefore);
+            allocatedBytes.addAndGet(THREADS.getThreadAllocatedBytes(threadId) - allocatedBefore);
+        }
+    }
+
+    private void respond(HttpExchange exchange) throws IOException {
+        String requestBody = readFully(exchange.getRequestBody());
+        if (failureRate > 0 && nextDouble() < failureRate) {
+            send(exchange, 503, "{\"message\":\"unavailable\"}");
+            return;
+        }
+        String method = exchange.getRequestMethod();
+        String override = exchange.getRequestHeaders().getFirst("x-http-method-override");
+        if (override != null) {
+            method = override;
+        }
+        String path = exchange.getRequestURI().getPath();
+        if (method.equals("GET") && path.equals(PATH)) {
+            queries.incrementAndGet();
+            send(exchange, 200, query(exchange.getRequestURI().getRawQuery()));
+        } else if (method.equals("PATCH") && path.startsWith(PATH + "/")) {
+            updates.incrementAndGet();
+            Document updated = patch(path.substring(PATH.length() + 1), requestBody);
+            if (updated == null) {
+                send(exchange, 404, "{\"message\":\"not found\"}");
+            } else {
+                send(exchange, 200, toJson(updated, nowSeconds()));
+            }
+        } else {
+            send(exchange, 400, "{\"message\":\"unsupported\"}");
+        }
+    }
+
+    /* The documents whose names the query mentions, `{"name":"a"}` and `{"name":{"$in":["a","b"]}}` alike */
+    private String query(String rawQuery) throws UnsupportedEncodingException {
+        String q = null;
+        if (rawQuery != null) {
+            for (String parameter : rawQuery.split("&")) {
+                if (parameter.startsWith("q=")) {
+                    q = URLDecoder.decode(parameter.substring(2), "UTF-8");
+                }
+            }
+        }
+        List<Document> found = new ArrayList<>();
+        if (q != null) {
+            Matcher matcher = QUOTED.matcher(q);
+            while (matcher.find()) {
+                Document document = byName.get(unescape(matcher.group(1)));
+                if (document != null) {
+                    found.add(document);
+                }
+            }
+        }
+        int now = nowSeconds();
+        StringBuilder body = new StringBuilder("[");
+        for (int i = 0; i < found.size(); i++) {
+            if (i > 0) {
+                body.append(',');
+            }
+            body.append(toJson(found.get(i), now));
+        }
+        return body.append(']').toString();
+    }
+
+    private Document patch(String id, String requestBody) {
+        Matcher matcher = END.matcher(requestBody);
+        Document document = byId.get(id);
+        if (document == null || !matcher.find()) {
+            return null;
+        }
+        Document updated = new Document(id, document.name, Integer.parseInt(matcher.group(1)));
+        byId.put(id, updated);
+        byName.put(updated.name, updated);
+        return updated;
+    }
+
+    private void send(HttpExchange exchange, int status, String body) throws IOException {
+        if (status >= 400) {
+            errors.incrementAndGet();
+        }
+        byte[] bytes = body.getBytes(UTF_8);
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("accept-encoding");
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            bytes = gzip(bytes);
+            exchange.getResponseHeaders().set("content-encoding", "gzip");
+        }
+        exchange.getResponseHeaders().set("content-type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        bytesOut.addAndGet(bytes.length);
+    }
+
+    private static String toJson(Document document, int now) {
+        StringBuilder sb = new StringBuilder("{\"_id\":\"").append(document.id).append("\",\"name\":");
+        appendJsonString(sb, document.name);
+        return sb.append(",\"end\":").append(document.end).append(",\"last_seen\":").append(now).append('}')
+                .toString();
+    }
+
+    private static void appendJsonString(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        sb.append('"');
+    }
+
+    private static String unescape(String value) {
+        if (value.indexOf('\\') < 0) {
+            return value;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                c = value.charAt(++i);
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private synchronized double nextDouble() {
+        return random.nextDouble();
+    }
+
+    private static int nowSeconds() {
+        return (int) (System.currentTimeMillis() / 1000);
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(compressed);
+        out.write(bytes);
+        out.close();
+        return compressed.toByteArray();
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return new String(out.toByteArray(), UTF_8);
+    }
+}
@@ -0,0 +1,152 @@
+package loadsim;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import common.PollScheduler;
+import common.RequestPolicy;
+import common.ServerClock;
+import common.ValveClient;
+import models.Timer;
+
+/* One phone showing one valve, doing what MainActivity does every second.
+ *
+ * On every tick it polls when the next server check is due and the request policy allows it, never with more
+ * than one poll in flight, and schedules the next check from the poll scheduler, or after a fixed interval to
+ * model the client before adaptive polling. Now and then the user turns the valve on or off, which sends a
+ * PATCH and opens the poll scheduler's command window. */
+class VirtualClient {
+    private static final int LAST_SEEN_THRESHOLD = 10;
+    private static final int TIMER_LENGTH = 600;
+
+    private final String valveName;
+    private final ValveClient client;
+    private final Executor executor;
+    private final FleetStats stats;
+    // seconds between polls, 0 for the adaptive schedule
+    private final int fixedInterval;
+    private final double commandProbability;
+    private final Random random;
+    private final ServerClock clock;
+    private final PollScheduler pollScheduler = new PollScheduler(LAST_SEEN_THRESHOLD);
+    private final RequestPolicy requestPolicy = new RequestPolicy();
+
+    private volatile Timer timer;
+    private volatile int nextServerCheck = 0;
+    private volatile boolean polling = false;
+    private volatile boolean commanding = false;
+
+    /* `commandsPerHour` is how often the user turns the valve on or off while the app is open */
+    VirtualClient(String valveName, ValveClient client, Executor executor, FleetStats stats, int fixedInterval,
+                  double commandsPerHour, long seed) {
+        this.valveName = valveName;
+        this.client = client;
+        this.executor = executor;
+        this.stats = stats;
+        this.fixedInterval = fixedInterval;
+        this.commandProbability = commandsPerHour / 3600;
+        this.random = new Random(seed);
+        this.clock = client.getTransport().getServerClock();
+    }
+
+    /* The once a second runnable of MainActivity */
+    void tick() {
+        int now = clock.currentTimeSeconds();
+        if (now >= nextServerCheck && !polling) {
+            if (requestPolicy.allowRequest(clock.monotonicMillis())) {
+                poll();
+            } else {
+                stats.heldBack.incrementAndGet();
+            }
+        }
+        if (timer != null && !commanding && random.nextDouble() < commandProbability) {
+            command(now);
+        }
+    }
+
+    private void poll() {
+        polling = true;
+        final long submitted = System.nanoTime();
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                stats.queueDelay.record((start - submitted) / 1000000);
+                try {
+                    Timer result = client.fetch(valveName);
+                    stats.pollLatency.record((System.nanoTime() - start) / 1000);
+                    if (result != null) {
+                        timer = result;
+                        requestPolicy.onSuccess(clock.monotonicMillis());
+                        scheduleNextServerCheck();
+                    } else {
+                        requestPolicy.onNotFound(clock.monotonicMillis());
+                    }
+                } catch (IOException e) {
+                    stats.pollLatency.record((System.nanoTime() - start) / 1000);
+                    stats.failures.incrementAndGet();
+                    requestPolicy.onFailure(clock.monotonicMillis(), e);
+                } finally {
+                    stats.polls.incrementAndGet();
+                    polling = false;
+                }
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                polling = false;
+            }
+        });
+    }
+
+    private void command(int now) {
+        final Timer current = timer;
+        final int end = current.getEnd() > now ? now : now + TIMER_LENGTH;
+        commanding = true;
+        synchronized (pollScheduler) {
+            pollScheduler.onCommand(now);
+        }
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    timer = client.patchEnd(current, end);
+                } catch (IOException e) {
+                    stats.failures.incrementAndGet();
+                } finally {
+                    stats.commandLatency.record((System.nanoTime() - start) / 1000);
+                    stats.commands.incrementAndGet();
+                    commanding = false;
+                }
+                scheduleNextServerCheck();
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                commanding = false;
+            }
+        });
+    }
+
+    private void scheduleNextServerCheck() {
+        int now = clock.currentTimeSeconds();
+        if (fixedInterval > 0) {
+            nextServerCheck = now + fixedInterval;
+            return;
+        }
+        synchronized (pollScheduler) {
+            nextServerCheck = now + pollScheduler.getInterval(timer, now);
+        }
+    }
+
+    private void submit(Runnable task, Runnable onRejected) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            onRejected.run();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package loadsim;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import common.HttpStatusException;
+import common.HttpTransport;
+import common.ValveClient;
+import models.Timer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FleetSimulatorTest {
+    private RestDbStandIn server;
+    private ValveClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new RestDbStandIn(4);
+        client = new ValveClient(new HttpTransport(server.getUrl(), "key", 1000, 5000), 2);
+    }
+
+    @After
+    public void tearDown() {
+        client.shutdown();
+        server.stop();
+    }
+
+    /* The stand-in answers the client's queries and PATCHes like RESTdb */
+    @Test
+    public void standIn_servesTheClient() throws Exception {
+        server.put("Valve \"1\"", 1300);
+        server.put("Valve 2", 1400);
+        assertEquals(1300, client.fetch("Valve \"1\"").getEnd());
+        assertNull(client.fetch("Valve 3"));
+
+        Map<String, Timer> timers = client.getAll(Arrays.asList("Valve \"1\"", "Valve 2", "Valve 3"))
+                .get(5, TimeUnit.SECONDS);
+        assertEquals(2, timers.size());
+        assertTrue(timers.get("Valve 2").getLastSeen() > 1400);
+
+        assertTrue(client.set("Valve 2", 60).get(5, TimeUnit.SECONDS).getLength() >= 59);
+        // two single fetches, the batch and the lookup before the PATCH
+        assertEquals(4, server.getQueries());
+        assertEquals(1, server.getUpdates());
+        assertTrue(server.getCpuNanos() > 0);
+    }
+
+    @Test
+    public void standIn_injectsFailures() throws InterruptedException {
+        server.put("Valve", 0);
+        server.setFailureRate(1);
+        try {
+            client.get("Valve").get();
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals(503, ((HttpStatusException) e.getCause()).getStatus());
+        }
+        assertEquals(1, server.getErrors());
+    }
+
+    @Test
+    public void parse_everyCombination() {
+        List<FleetSimulator.Config> configs = FleetSimulator.parse(new String[]{"--clients", "10,20", "--poll",
+                "adaptive,5", "--duration", "3"});
+        assertEquals(4, configs.size());
+        assertEquals(0, configs.get(1).pollInterval);
+        assertEquals(20, configs.get(1).clients);
+        assertEquals(5, configs.get(2).pollInterval);
+        assertEquals(3, configs.get(3).durationSeconds);
+        assertEquals(0, configs.get(3).gatewayTtl);
+        assertEquals(2000, FleetSimulator.parse(new String[]{"--gateway-ttl", "2000"}).get(0).gatewayTtl);
+        try {
+            FleetSimulator.parse(new String[]{"--clients"});
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    /* 50 clients polling every 2 seconds make about 25 requests a second */
+    @Test
+    public void run_measuresTheFleet() throws Exception {
+        FleetSimulator.Config config = new FleetSimulator.Config();
+        config.clients = 50;
+        config.valves = 10;
+        config.pollInterval = 2;
+        config.warmupSeconds = 2;
+        config.durationSeconds = 4;
+        config.commandsPerHour = 0;
+        config.clientThreads = 4;
+        FleetSimulator.Result result = FleetSimulator.run(config);
+        assertEquals(25, result.requestsPerSecond(), 5);
+        assertEquals(0, result.stats.failures.get());
+        assertTrue(result.stats.pollLatency.getCount() > 50);
+        assertTrue(result.serverCpuPercent() > 0);
+    }
+
+    /* A slow server's tail is measured as it is, not cut off at a few seconds */
+    @Test
+    public void run_measuresLatenciesOverFiveSeconds() throws Exception {
+        FleetSimulator.Config config = new FleetSimulator.Config();
+        config.clients = 2;
+        config.valves = 2;
+        config.pollInterval = 60;
+        config.warmupSeconds = 0;
+        config.durationSeconds = 7;
+        config.commandsPerHour = 0;
+        config.clientThreads = 2;
+        config.serverDelay = 5500;
+        FleetSimulator.Result result = FleetSimulator.run(config);
+        assertTrue(result.stats.pollLatency.getCount() > 0);
+        assertTrue("max " + result.stats.pollLatency.getMax(), result.stats.pollLatency.getMax() >= 5500 * 1000);
+        assertTrue(result.stats.pollLatency.getValueAtPercentile(99.9) >= 5500 * 1000);
+    }
+
+    /* Through the gateway the stand-in sees about one query per valve and TTL instead of one per client poll */
+    @Test
+    public void run_throughTheGateway() throws Exception {
+        FleetSimulator.Config config = new FleetSimulator.Config();
+        config.clients = 50;
+        config.valves = 5;
+        config.pollInterval = 1;
+        config.warmupSeconds = 2;
+        config.durationSeconds = 4;
+        config.commandsPerHour = 0;
+        config.clientThreads = 4;
+        config.gatewayTtl = 2000;
+        FleetSimulator.Result result = FleetSimulator.run(config);
+        assertEquals(50, result.clientRequestsPerSecond(), 10);
+        assertTrue(result.requestsPerSecond() < 5);
+        assertEquals(0, result.stats.failures.get());
+    }
+}
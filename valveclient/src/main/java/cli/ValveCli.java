@@ -0,0 +1,230 @@
+package cli;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import common.HttpTransport;
+import common.ValveClient;
+import models.Timer;
+
+/* Command line front end of ValveClient for scripts and cron jobs.
+ *
+ * Prints one tab separated line per valve, in the order the names were given, and exits with 1 if anything
+ * failed for any of them. */
+public class ValveCli {
+    static final int EXIT_OK = 0;
+    static final int EXIT_FAILED = 1;
+    static final int EXIT_USAGE = 2;
+    private static final int DEFAULT_PARALLELISM = 8;
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 15000;
+    private static final String USAGE = "usage: valve [--url URL] [--key KEY] [--parallel N] COMMAND NAME...\n"
+            + "\n"
+            + "commands:\n"
+            + "  get NAME...              show the status of the valves\n"
+            + "  set SECONDS NAME...      turn the valves on for SECONDS\n"
+            + "  stop NAME...             turn the valves off\n"
+            + "  watch NAME...            print every change until interrupted\n"
+            + "\n"
+            + "A NAME of - reads more names from standard input, one per line. The url and key default to\n"
+            + "the VALVE_TIMER_RESTDB_URL and VALVE_TIMER_RESTDB_KEY environment variables.\n";
+
+    private final PrintStream out;
+    private final PrintStream err;
+    private final InputStream in;
+
+    ValveCli(PrintStream out, PrintStream err, InputStream in) {
+        this.out = out;
+        this.err = err;
+        this.in = in;
+    }
+
+    public static void main(String[] args) {
+        System.exit(new ValveCli(System.out, System.err, System.in).run(args, System.getenv()));
+    }
+
+    int run(String[] args, Map<String, String> env) {
+        String url = env.get("VALVE_TIMER_RESTDB_URL");
+        String key = env.get("VALVE_TIMER_RESTDB_KEY");
+        int parallelism = DEFAULT_PARALLELISM;
+        int i = 0;
+        try {
+            for (; i < args.length && args[i].startsWith("--"); i += 2) {
+                if (i + 1 >= args.length) {
+                    return usage("missing value for " + args[i]);
+                }
+                if (args[i].equals("--url")) {
+                    url = args[i + 1];
+                } else if (args[i].equals("--key")) {
+                    key = args[i + 1];
+                } else if (args[i].equals("--parallel")) {
+                    parallelism = Integer.parseInt(args[i + 1]);
+                } else {
+                    return usage("unknown option " + args[i]);
+                }
+            }
+        } catch (NumberFormatException e) {
+            return usage("not a number: " + args[i + 1]);
+        }
+        if (url == null || key == null) {
+            return usage("no server url or api key");
+        }
+        if (i >= args.length) {
+            return usage(null);
+        }
+        String command = args[i++];
+        int seconds = 0;
+        if (command.equals("set")) {
+            if (i >= args.length) {
+                return usage("missing SECONDS");
+            }
+            try {
+                seconds = Integer.parseInt(args[i++]);
+            } catch (NumberFormatException e) {
+                return usage("not a number: " + args[i - 1]);
+            }
+        }
+        List<String> names;
+        try {
+            names = readNames(args, i);
+        } catch (IOException e) {
+            err.println("failed to read names: " + e.getMessage());
+            return EXIT_FAILED;
+        }
+        if (names.isEmpty()) {
+            return usage("no valve names");
+        }
+
+        HttpTransport transport = new HttpTransport(url, key, CONNECT_TIMEOUT, READ_TIMEOUT);
+        ValveClient client = new ValveClient(transport, Math.max(1, parallelism));
+        try {
+            if (command.equals("get")) {
+                return get(client, names);
+            } else if (command.equals("set")) {
+                return report(client, client.setAll(names, seconds));
+            } else if (command.equals("stop")) {
+                return report(client, client.stopAll(names));
+            } else if (command.equals("watch")) {
+                return watch(client, names);
+            }
+            return usage("unknown command " + command);
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    private int get(ValveClient client, List<String> names) {
+        Map<String, Timer> timers;
+        try {
+            timers = client.getAll(names).get();
+        } catch (InterruptedException e) {
+            return EXIT_FAILED;
+        } catch (ExecutionException e) {
+            err.println("error: " + e.getCause().getMessage());
+            return EXIT_FAILED;
+        }
+        int now = client.getTransport().getServerClock().currentTimeSeconds();
+        int exit = EXIT_OK;
+        for (String name : names) {
+            Timer timer = timers.get(name);
+            out.println(name + "\t" + describe(timer, now));
+            if (timer == null) {
+                exit = EXIT_FAILED;
+            }
+        }
+        return exit;
+    }
+
+    /* Wait for every command in order and print how it went */
+    private int report(ValveClient client, Map<String, Future<Timer>> results) {
+        int exit = EXIT_OK;
+        for (Map.Entry<String, Future<Timer>> result : results.entrySet()) {
+            try {
+                Timer timer = result.getValue().get();
+                int now = client.getTransport().getServerClock().currentTimeSeconds();
+                out.println(result.getKey() + "\t" + describe(timer, now));
+            } catch (InterruptedException e) {
+                return EXIT_FAILED;
+            } catch (ExecutionException e) {
+                out.println(result.getKey() + "\terror: " + e.getCause().getMessage());
+                exit = EXIT_FAILED;
+            }
+        }
+        return exit;
+    }
+
+    private int watch(final ValveClient client, List<String> names) {
+        client.watch(names, new ValveClient.WatchListener() {
+            @Override
+            public void onTimerChanged(String name, Timer timer) {
+                int now = client.getTransport().getServerClock().currentTimeSeconds();
+                out.println(now + "\t" + name + "\t" + describe(timer, now));
+            }
+
+            @Override
+            public void onError(Exception e) {
+                err.println("error: " + e.getMessage());
+            }
+        });
+        try {
+            // until the process is interrupted
+            new CountDownLatch(1).await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return EXIT_OK;
+    }
+
+    /* The status of a valve like the app shows it */
+    static String describe(Timer timer, int now) {
+        if (timer == null) {
+            return "not found";
+        }
+        int timeSinceLastSeen = now - timer.getLastSeen();
+        if (timeSinceLastSeen >= ValveClient.LAST_SEEN_THRESHOLD) {
+            return "offline\tlast seen " + timeSinceLastSeen + "s ago";
+        }
+        if (timer.getEnd() > now) {
+            return "on\t" + (timer.getEnd() - now) + "s left";
+        }
+        return "off";
+    }
+
+    private List<String> readNames(String[] args, int start) throws IOException {
+        LinkedHashSet<String> names = new LinkedHashSet<>();
+        for (int i = start; i < args.length; i++) {
+            if (!args[i].equals("-")) {
+                names.add(args[i]);
+                continue;
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, Charset.forName("UTF-8")));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty()) {
+                    names.add(line);
+                }
+            }
+        }
+        return new ArrayList<>(names);
+    }
+
+    private int usage(String problem) {
+        if (problem != null) {
+            err.println("valve: " + problem);
+        }
+        err.print(USAGE);
+        return EXIT_USAGE;
+    }
+}
@@ -0,0 +1,473 @@
+package common;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import models.Timer;
+
+/* Append-only history of what the valves did, kept on disk in fixed size records.
+ *
+ * Every observed change of a valve's `end` or `last_seen` is one 20 byte record: time, valve, kind, end and
+ * last seen, all server seconds. Records are written in time order through a buffer and go to segment files
+ * named after their first record's time; a new segment starts each UTC day or when a segment is full, so old
+ * history can be dropped a segment at a time. The segments' first and last times are the time index: a query
+ * opens only the segments that overlap it and finds its start inside them by binary search over the fixed size
+ * records, then streams through them with one reused buffer. Valve names are numbered in a small dictionary
+ * file. A record torn by a crash is cut off when the log is opened. Not thread safe, one thread writes and
+ * queries. */
+public class ActivityLog implements Closeable {
+    public static final int KIND_SEEN = 0;
+    public static final int KIND_ON = 1;
+    public static final int KIND_OFF = 2;
+    public static final int KIND_END_CHANGED = 3;
+
+    static final int RECORD_SIZE = 20;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String VALVES_FILE = "valves";
+    private static final int DAY = 24 * 3600;
+    // runs that started this long before a query still count towards it
+    private static final int LOOKBACK = DAY;
+    // records per buffered write or read
+    private static final int BUFFER_RECORDS = 512;
+
+    /* One decoded record */
+    public static class Record {
+        int time;
+        int valve;
+        int kind;
+        int end;
+        int lastSeen;
+
+        public int getTime() {
+            return time;
+        }
+
+        public int getKind() {
+            return kind;
+        }
+
+        public int getEnd() {
+            return end;
+        }
+
+        public int getLastSeen() {
+            return lastSeen;
+        }
+    }
+
+    private static class Segment {
+        final File file;
+        final int firstTime;
+        int lastTime;
+        long records;
+
+        Segment(File file, int firstTime) {
+            this.file = file;
+            this.firstTime = firstTime;
+            this.lastTime = firstTime;
+        }
+    }
+
+    // the last observation of a valve, to tell what changed
+    private static class Observed {
+        int end;
+        int lastSeen;
+    }
+
+    private final File directory;
+    private final long maxSegmentRecords;
+    private final List<Segment> segments = new ArrayList<>();
+    private final List<String> valveNames = new ArrayList<>();
+    private final Map<String, Integer> valveIds = new HashMap<>();
+    private final Map<Integer, Observed> observed = new HashMap<>();
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(BUFFER_RECORDS * RECORD_SIZE);
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_RECORDS * RECORD_SIZE);
+    private FileChannel channel;
+    private DataOutputStream valvesOut;
+    private int lastTime = Integer.MIN_VALUE;
+
+    /* Open the log in the directory, creating it if needed */
+    public ActivityLog(File directory, long maxSegmentBytes) throws IOException {
+        this.directory = directory;
+        this.maxSegmentRecords = Math.max(1, maxSegmentBytes / RECORD_SIZE);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        loadValves();
+        loadSegments();
+    }
+
+    /* Record what changed since the valve was last observed, returns false if nothing did */
+    public boolean record(Timer timer, int now) throws IOException {
+        int valve = valveId(timer.getName());
+        Observed previous = observed.get(valve);
+        int kind;
+        if (previous == null) {
+            previous = new Observed();
+            observed.put(valve, previous);
+            kind = timer.getEnd() > now ? KIND_ON : KIND_SEEN;
+        } else if (previous.end != timer.getEnd()) {
+            boolean wasOn = previous.end > now;
+            boolean isOn = timer.getEnd() > now;
+            kind = isOn && !wasOn ? KIND_ON : wasOn && !isOn ? KIND_OFF : KIND_END_CHANGED;
+        } else if (previous.lastSeen != timer.getLastSeen()) {
+            kind = KIND_SEEN;
+        } else {
+            return false;
+        }
+        previous.end = timer.getEnd();
+        previous.lastSeen = timer.getLastSeen();
+        append(now, valve, kind, timer.getEnd(), timer.getLastSeen());
+        return true;
+    }
+
+    /* Append a record, times before the last record's are recorded at its time to keep the log in order */
+    public void append(int time, int valve, int kind, int end, int lastSeen) throws IOException {
+        time = Math.max(time, lastTime);
+        Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (segment == null || channel == null || time / DAY != segment.firstTime / DAY
+                || segment.records >= maxSegmentRecords) {
+            segment = startSegment(time);
+        }
+        if (!writeBuffer.hasRemaining()) {
+            flush();
+        }
+        writeBuffer.putInt(time).putInt(valve).putInt(kind).putInt(end).putInt(lastSeen);
+        segment.lastTime = time;
+        segment.records++;
+        lastTime = time;
+    }
+
+    /* Write the buffered records to the segment file */
+    public void flush() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            channel.write(writeBuffer);
+        }
+        writeBuffer.clear();
+    }
+
+    /* The number of a valve in the records, numbering it if it is new */
+    public int valveId(String name) throws IOException {
+        Integer id = valveIds.get(name);
+        if (id != null) {
+            return id;
+        }
+        if (valvesOut == null) {
+            valvesOut = new DataOutputStream(new FileOutputStream(new File(directory, VALVES_FILE), true));
+        }
+        valvesOut.writeUTF(name);
+        valvesOut.flush();
+        id = valveNames.size();
+        valveNames.add(name);
+        valveIds.put(name, id);
+        return id;
+    }
+
+    public String getValveName(int valve) {
+        return valveNames.get(valve);
+    }
+
+    /* Seconds each valve was on per day, for `days` days from the midnight in `zone` at or before `from`.
+     *
+     * A valve is on from a record until the record's end or the valve's next record, whichever is first. Only
+     * the segments that overlap the days, and the day before for runs already under way, are read. */
+    public Map<String, long[]> usageByDay(int from, int days, TimeZone zone) throws IOException {
+        return usageByDay(from, days, zone, -1);
+    }
+
+    /* usageByDay() of one valve, the other valves' records are skipped */
+    public long[] usageByDay(String valveName, int from, int days, TimeZone zone) throws IOException {
+        Integer valve = valveIds.get(valveName);
+        if (valve == null) {
+            return new long[days];
+        }
+        long[] usage = usageByDay(from, days, zone, valve).get(valveName);
+        return usage != null ? usage : new long[days];
+    }
+
+    private Map<String, long[]> usageByDay(int from, int days, TimeZone zone, int onlyValve) throws IOException {
+        flush();
+        int[] dayStarts = dayStarts(from, days, zone);
+        final int rangeEnd = dayStarts[days];
+        // per valve: the time of its last record and the end it had, a run is from one to the other
+        int[] runStarts = new int[valveNames.size()];
+        int[] runEnds = new int[valveNames.size()];
+        Arrays.fill(runStarts, Integer.MIN_VALUE);
+        Map<String, long[]> usage = new LinkedHashMap<>();
+        Record record = new Record();
+        for (Segment segment : segments) {
+            if (segment.lastTime < dayStarts[0] - LOOKBACK || segment.firstTime >= rangeEnd) {
+                continue;
+            }
+            FileChannel in = new RandomAccessFile(segment.file, "r").getChannel();
+            try {
+                long index = firstRecordAt(in, segment.records, dayStarts[0] - LOOKBACK);
+                readBuffer.clear().flip();
+                while (index < segment.records) {
+                    if (!read(in, index++, record) || record.time >= rangeEnd) {
+                        break;
+                    }
+                    int valve = record.valve;
+                    // a valve whose name was lost in a crash is skipped too
+                    if (onlyValve >= 0 ? valve != onlyValve : valve < 0 || valve >= runStarts.length) {
+                        continue;
+                    }
+                    if (runStarts[valve] != Integer.MIN_VALUE) {
+                        addRun(usage, valve, runStarts[valve], Math.min(runEnds[valve], record.time), dayStarts);
+                    }
+                    runStarts[valve] = record.time;
+                    runEnds[valve] = record.end;
+                }
+            } finally {
+                in.close();
+            }
+        }
+        for (int valve = 0; valve < runStarts.length; valve++) {
+            if (runStarts[valve] != Integer.MIN_VALUE) {
+                addRun(usage, valve, runStarts[valve], Math.min(runEnds[valve], rangeEnd), dayStarts);
+            }
+        }
+        return usage;
+    }
+
+    /* Visit the records from `from` until before `to` in time order, the visitor's record is reused */
+    public void scan(int from, int to, Visitor visitor) throws IOException {
+        flush();
+        Record record = new Record();
+        for (Segment segment : segments) {
+            if (segment.lastTime < from || segment.firstTime >= to) {
+                continue;
+            }
+            FileChannel in = new RandomAccessFile(segment.file, "r").getChannel();
+            try {
+                long index = firstRecordAt(in, segment.records, from);
+                readBuffer.clear().flip();
+                while (index < segment.records && read(in, index++, record) && record.time < to) {
+                    visitor.visit(record, record.valve);
+                }
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /* Told about each record of a scan */
+    public interface Visitor {
+        void visit(Record record, int valve);
+    }
+
+    /* Delete the segments that only hold records before `time`, returns how many were */
+    public int deleteBefore(int time) throws IOException {
+        int deleted = 0;
+        // the segment being written stays
+        while (segments.size() > 1 && segments.get(0).lastTime < time) {
+            if (!segments.remove(0).file.delete()) {
+                throw new IOException("Can't delete a segment");
+            }
+            deleted++;
+        }
+        return deleted;
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /* Records in the log, including buffered ones */
+    public long size() {
+        long records = 0;
+        for (Segment segment : segments) {
+            records += segment.records;
+        }
+        return records;
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+        if (valvesOut != null) {
+            valvesOut.close();
+            valvesOut = null;
+        }
+    }
+
+    private Segment startSegment(int time) throws IOException {
+        flush();
+        if (channel != null) {
+            channel.close();
+        }
+        // names sort in time order, the index in the name keeps same second segments apart
+        File file = new File(directory, String.format("%s%010d-%04d%s", SEGMENT_PREFIX, time, segments.size() % 10000,
+                SEGMENT_SUFFIX));
+        Segment segment = new Segment(file, time);
+        segments.add(segment);
+        channel = new FileOutputStream(file, true).getChannel();
+        return segment;
+    }
+
+    /* Read the record at the index, through the read buffer while reading forward */
+    private boolean read(FileChannel in, long index, Record record) throws IOException {
+        if (!readBuffer.hasRemaining()) {
+            readBuffer.clear();
+            long position = index * RECORD_SIZE;
+            while (readBuffer.hasRemaining()) {
+                int count = in.read(readBuffer, position);
+                if (count < 0) {
+                    break;
+                }
+                position += count;
+            }
+            readBuffer.flip();
+            // whole records only
+            readBuffer.limit(readBuffer.limit() / RECORD_SIZE * RECORD_SIZE);
+            if (!readBuffer.hasRemaining()) {
+                return false;
+            }
+        }
+        record.time = readBuffer.getInt();
+        record.valve = readBuffer.getInt();
+        record.kind = readBuffer.getInt();
+        record.end = readBuffer.getInt();
+        record.lastSeen = readBuffer.getInt();
+        return true;
+    }
+
+    /* The index of the first record at or after `time`, by binary search over the records' times */
+    private long firstRecordAt(FileChannel in, long records, int time) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        long low = 0;
+        long high = records;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            buffer.clear();
+            in.read(buffer, middle * RECORD_SIZE);
+            if (buffer.getInt(0) < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private void addRun(Map<String, long[]> usage, int valve, int start, int end, int[] dayStarts) {
+        int days = dayStarts.length - 1;
+        start = Math.max(start, dayStarts[0]);
+        end = Math.min(end, dayStarts[days]);
+        if (start >= end) {
+            return;
+        }
+        String name = valveNames.get(valve);
+        long[] seconds = usage.get(name);
+        if (seconds == null) {
+            seconds = new long[days];
+            usage.put(name, seconds);
+        }
+        int day = Arrays.binarySearch(dayStarts, start);
+        day = day >= 0 ? day : -day - 2;
+        for (; day < days && start < end; day++) {
+            int dayEnd = Math.min(end, dayStarts[day + 1]);
+            seconds[day] += dayEnd - start;
+            start = dayEnd;
+        }
+    }
+
+    /* The local midnights starting the days, and the end of the last day */
+    private static int[] dayStarts(int from, int days, TimeZone zone) {
+        Calendar calendar = Calendar.getInstance(zone);
+        calendar.setTimeInMillis(from * 1000L);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        int[] starts = new int[days + 1];
+        for (int i = 0; i <= days; i++) {
+            starts[i] = (int) (calendar.getTimeInMillis() / 1000);
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+        }
+        return starts;
+    }
+
+    private void loadValves() throws IOException {
+        File file = new File(directory, VALVES_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            while (true) {
+                String name = in.readUTF();
+                valveIds.put(name, valveNames.size());
+                valveNames.add(name);
+            }
+        } catch (EOFException e) {
+            // the end, or a name torn by a crash
+        } finally {
+            in.close();
+        }
+    }
+
+    private void loadSegments() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+                continue;
+            }
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                long records = raf.length() / RECORD_SIZE;
+                // cut off a record torn by a crash
+                raf.setLength(records * RECORD_SIZE);
+                if (records == 0) {
+                    raf.close();
+                    file.delete();
+                    continue;
+                }
+                raf.seek(0);
+                Segment segment = new Segment(file, raf.readInt());
+                raf.seek((records - 1) * RECORD_SIZE);
+                segment.lastTime = raf.readInt();
+                segment.records = records;
+                segments.add(segment);
+                lastTime = Math.max(lastTime, segment.lastTime);
+            } finally {
+                raf.close();
+            }
+        }
+        if (!segments.isEmpty()) {
+            Segment last = segments.get(segments.size() - 1);
+            channel = new FileOutputStream(last.file, true).getChannel();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package common;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import models.Timer;
+
+/* Sends set and stop commands with optimistic updates, at most one request per valve at a time.
+ *
+ * A command is shown as applied as soon as it is queued. While a valve has a request in flight, newer commands
+ * for it replace each other and only the latest is sent when the request finishes, so set-then-stop costs at
+ * most two round trips and usually one. The server response is the confirmed state; if the last command fails
+ * the valve is rolled back to the last confirmed timer. */
+public class CommandQueue {
+    /* Sends the new end time of a timer to the server and returns the updated document */
+    public interface Sender {
+        Timer send(Timer timer, int end) throws IOException;
+    }
+
+    /* Told about state changes on the callback executor */
+    public interface Listener {
+        /* A command was queued and the timer is shown with the new end */
+        void onOptimisticUpdate(Timer timer);
+
+        /* The server confirmed the latest command */
+        void onConfirmed(Timer timer);
+
+        /* The latest command failed, the timer is back to the last confirmed state */
+        void onRolledBack(Timer timer, Exception e);
+    }
+
+    private final Sender sender;
+    private final Executor executor;
+    private final Executor callbackExecutor;
+    private final Listener listener;
+    private final Map<String, ValveState> valves = new HashMap<>();
+
+    public CommandQueue(Sender sender, Executor executor, Executor callbackExecutor, Listener listener) {
+        this.sender = sender;
+        this.executor = executor;
+        this.callbackExecutor = callbackExecutor;
+        this.listener = listener;
+    }
+
+    /* Set the end of the timer, `timer` is the state the command was issued against */
+    public void setEnd(Timer timer, int end) {
+        final Timer optimistic = timer.withEnd(end);
+        boolean start;
+        synchronized (this) {
+            ValveState state = valves.get(timer.getId());
+            if (state == null) {
+                state = new ValveState(timer);
+                valves.put(timer.getId(), state);
+            }
+            state.pendingEnd = end;
+            state.hasPending = true;
+            start = !state.inFlight;
+            if (start) {
+                state.inFlight = true;
+            }
+        }
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onOptimisticUpdate(optimistic);
+            }
+        });
+        if (start) {
+            sendNext(timer.getId());
+        }
+    }
+
+    /* Whether a command for the valve is queued or in flight, server reads would show an outdated state */
+    public synchronized boolean isBusy(String timerId) {
+        return valves.containsKey(timerId);
+    }
+
+    private void sendNext(final String timerId) {
+        final Timer base;
+        final int end;
+        synchronized (this) {
+            ValveState state = valves.get(timerId);
+            base = state.confirmed;
+            end = state.pendingEnd;
+            state.hasPending = false;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Timer result = null;
+                    Exception error = null;
+                    try {
+                        result = sender.send(base, end);
+                    } catch (Exception e) {
+                        error = e;
+                    }
+                    onSent(timerId, result, error);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            onSent(timerId, null, e);
+        }
+    }
+
+    private void onSent(String timerId, final Timer result, final Exception error) {
+        final Timer rollback;
+        synchronized (this) {
+            ValveState state = valves.get(timerId);
+            if (result != null) {
+                state.confirmed = result;
+            }
+            if (state.hasPending) {
+                // a newer command supersedes this result, whether it worked or not
+                rollback = null;
+            } else {
+                valves.remove(timerId);
+                rollback = state.confirmed;
+            }
+        }
+        if (rollback == null) {
+            sendNext(timerId);
+            return;
+        }
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (error == null) {
+                    listener.onConfirmed(result);
+                } else {
+                    listener.onRolledBack(rollback, error);
+                }
+            }
+        });
+    }
+
+    private static class ValveState {
+        // the last state the server returned
+        Timer confirmed;
+        int pendingEnd;
+        boolean hasPending;
+        boolean inFlight;
+
+        ValveState(Timer confirmed) {
+            this.confirmed = confirmed;
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+
+import models.Timer;
+
+/* Keeps a server-sent events stream open and hands the timers it delivers to a listener.
+ *
+ * The stream is read on its own thread since it blocks for as long as the connection is up. Only `timer`
+ * events (or unnamed ones) are decoded, their data is a single timer document; comments serve as heartbeats
+ * and keep the read timeout from firing. When the stream drops the client reconnects with a growing delay
+ * and sends the last event id so the server can replay what was missed. The delay only starts over once a
+ * stream delivered an event or stayed up for MIN_HEALTHY_DURATION, so a server that accepts and closes at once
+ * is retried ever more slowly. A response that isn't an event stream, or a client error status, means the
+ * server has no stream to offer and the client gives up after reporting it. An event that can't be decoded is
+ * skipped. Listeners are told when the stream goes up or down so they can stop or resume polling. Times are in
+ * milliseconds. */
+public class EventStreamClient {
+    static final long MAX_RECONNECT_DELAY = 60000;
+    static final long MIN_HEALTHY_DURATION = 30000;
+    private static final String EVENT_STREAM_TYPE = "text/event-stream";
+    private static final String TIMER_EVENT = "timer";
+    private static final String MESSAGE_EVENT = "message";
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    /* The server answered with something other than an event stream */
+    public static class NotAnEventStreamException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public NotAnEventStreamException(String contentType) {
+            super("Not an event stream: " + contentType);
+        }
+    }
+
+    /* Told about the stream on the callback executor */
+    public interface Listener {
+        /* The stream is open, changes will arrive as events */
+        void onConnected();
+
+        void onTimer(Timer timer);
+
+        /* The stream dropped, changes are missed until it is open again */
+        void onDisconnected(Exception e);
+    }
+
+    private final HttpTransport transport;
+    private final String path;
+    private final String timerName;
+    private final Executor callbackExecutor;
+    private final Listener listener;
+    private final TimerDecoder decoder;
+    private long reconnectDelay;
+    // whether the current connection delivered an event, only touched by the reading thread
+    private boolean delivered;
+
+    private Thread thread;
+    private HttpURLConnection connection;
+    private volatile boolean running = false;
+    private String lastEventId;
+
+    /* Create a client for the stream at `path`, only timers named `timerName` are passed on */
+    public EventStreamClient(HttpTransport transport, String path, String timerName, long reconnectDelay,
+                             Executor callbackExecutor, Listener listener) {
+        this.transport = transport;
+        this.path = path;
+        this.timerName = timerName;
+        this.reconnectDelay = reconnectDelay;
+        this.callbackExecutor = callbackExecutor;
+        this.listener = listener;
+        decoder = new TimerDecoder(transport.getServerClock());
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runLoop();
+            }
+        }, "EventStream");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /* Close the stream, nothing is delivered after this returns */
+    public void stop() {
+        HttpURLConnection open;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            open = connection;
+            thread.interrupt();
+        }
+        if (open != null) {
+            // a blocked read only returns once the socket is closed
+            open.disconnect();
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /* Whether the calling thread is the one reading for the current start(), an old one may still be exiting */
+    private synchronized boolean isActive() {
+        return running && thread == Thread.currentThread();
+    }
+
+    private void runLoop() {
+        int failures = 0;
+        while (isActive()) {
+            Exception error;
+            long openedAt = -1;
+            delivered = false;
+            try {
+                HttpURLConnection open = transport.openEventStream(path, lastEventId);
+                synchronized (this) {
+                    if (!isActive()) {
+                        open.disconnect();
+                        return;
+                    }
+                    connection = open;
+                }
+                String contentType = open.getContentType();
+                if (contentType == null || !contentType.toLowerCase(Locale.US).startsWith(EVENT_STREAM_TYPE)) {
+                    throw new NotAnEventStreamException(contentType);
+                }
+                openedAt = transport.getServerClock().monotonicMillis();
+                deliverConnected();
+                InputStream in = open.getInputStream();
+                try {
+                    readEvents(in);
+                } finally {
+                    in.close();
+                }
+                error = new IOException("Event stream closed by the server");
+            } catch (IOException e) {
+                error = e;
+            } finally {
+                synchronized (this) {
+                    if (connection != null && thread == Thread.currentThread()) {
+                        connection.disconnect();
+                        connection = null;
+                    }
+                }
+            }
+            if (!isActive()) {
+                return;
+            }
+            if (delivered || openedAt >= 0
+                    && transport.getServerClock().monotonicMillis() - openedAt >= MIN_HEALTHY_DURATION) {
+                failures = 0;
+            }
+            failures++;
+            deliverDisconnected(error);
+            if (isPermanent(error)) {
+                return;
+            }
+            try {
+                Thread.sleep(backoff(failures));
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /* Whether retrying can't help, the server has no stream for this client */
+    private static boolean isPermanent(Exception error) {
+        return error instanceof NotAnEventStreamException
+                || RequestPolicy.isRejection(error);
+    }
+
+    /* The delay before the nth reconnect attempt in a row */
+    long backoff(int failures) {
+        return Math.min(MAX_RECONNECT_DELAY, reconnectDelay << Math.min(failures - 1, 16));
+    }
+
+    /* Parse events until the stream ends, see the server-sent events format */
+    void readEvents(InputStream in) throws IOException {
+        LineReader lines = new LineReader(in);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        boolean hasData = false;
+        String event = null;
+        String id = null;
+        while (isActive()) {
+            int length = lines.next();
+            if (length < 0) {
+                return;
+            }
+            byte[] line = lines.line;
+            if (length == 0) {
+                // a blank line dispatches the event
+                if (id != null) {
+                    lastEventId = id;
+                }
+                if (hasData && (event == null || TIMER_EVENT.equals(event) || MESSAGE_EVENT.equals(event))) {
+                    dispatch(data);
+                }
+                data.reset();
+                hasData = false;
+                event = null;
+                continue;
+            }
+            if (line[0] == ':') {
+                // comment, sent as a heartbeat
+                continue;
+            }
+            int colon = indexOf(line, length, (byte) ':');
+            String field = new String(line, 0, colon, HttpTransport.UTF_8);
+            int valueStart = colon + 1;
+            if (valueStart < length && line[valueStart] == ' ') {
+                valueStart++;
+            }
+            int valueLength = Math.max(0, length - valueStart);
+            if (field.equals("data")) {
+                if (hasData) {
+                    data.write('\n');
+                }
+                data.write(line, valueStart, valueLength);
+                hasData = true;
+            } else if (field.equals("event")) {
+                event = new String(line, valueStart, valueLength, HttpTransport.UTF_8);
+            } else if (field.equals("id")) {
+                id = new String(line, valueStart, valueLength, HttpTransport.UTF_8);
+            } else if (field.equals("retry")) {
+                try {
+                    reconnectDelay = Long.parseLong(new String(line, valueStart, valueLength, HttpTransport.UTF_8));
+                } catch (NumberFormatException e) {
+                    // ignored like the spec says
+                }
+            }
+        }
+    }
+
+    private void dispatch(ByteArrayOutputStream data) {
+        final Timer timer;
+        try {
+            timer = decoder.decodeObject(new ByteArrayInputStream(data.toByteArray()), null);
+        } catch (IOException e) {
+            // one bad event doesn't make the stream useless
+            return;
+        }
+        delivered = true;
+        if (!timerName.equals(timer.getName())) {
+            return;
+        }
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (running) {
+                    listener.onTimer(timer);
+                }
+            }
+        });
+    }
+
+    private void deliverConnected() {
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (running) {
+                    listener.onConnected();
+                }
+            }
+        });
+    }
+
+    private void deliverDisconnected(final Exception e) {
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (running) {
+                    listener.onDisconnected(e);
+                }
+            }
+        });
+    }
+
+    private static int indexOf(byte[] bytes, int length, byte b) {
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return length;
+    }
+
+    /* Splits the stream into lines ending in \n, \r\n or \r without decoding them */
+    private static class LineReader {
+        private final InputStream in;
+        private final byte[] buffer = new byte[4096];
+        private int position = 0;
+        private int limit = 0;
+        private boolean skipLineFeed = false;
+        byte[] line = new byte[256];
+
+        LineReader(InputStream in) {
+            this.in = in;
+        }
+
+        /* Read the next line into `line`, returns its length or -1 at the end of the stream */
+        int next() throws IOException {
+            int length = 0;
+            while (true) {
+                if (position == limit) {
+                    limit = in.read(buffer);
+                    position = 0;
+                    if (limit <= 0) {
+                        limit = 0;
+                        // an unterminated last line is dropped, like a half sent event
+                        return -1;
+                    }
+                }
+                byte b = buffer[position++];
+                if (skipLineFeed) {
+                    skipLineFeed = false;
+                    if (b == '\n') {
+                        continue;
+                    }
+                }
+                if (b == '\n') {
+                    return length;
+                }
+                if (b == '\r') {
+                    skipLineFeed = true;
+                    return length;
+                }
+                if (length == line.length) {
+                    if (length >= MAX_LINE_LENGTH) {
+                        throw new IOException("Event stream line too long");
+                    }
+                    byte[] larger = new byte[length * 2];
+                    System.arraycopy(line, 0, larger, 0, length);
+                    line = larger;
+                }
+                line[length++] = b;
+            }
+        }
+    }
+}
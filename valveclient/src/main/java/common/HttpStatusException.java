@@ -0,0 +1,24 @@
+package common;
+
+import java.io.IOException;
+
+/* The server answered with an error status */
+public class HttpStatusException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+
+    public HttpStatusException(int status, String message) {
+        super(String.format("HTTP %d %s", status, message));
+        this.status = status;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    /* Server errors and throttling are worth retrying, other client errors are not */
+    public boolean isRetryable() {
+        return status >= 500 || status == 429 || status == 408;
+    }
+}
@@ -0,0 +1,322 @@
+package common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPInputStream;
+
+/* Shared HTTP transport for the REST calls.
+ *
+ * Connections are never disconnect()ed: the response body is always read to the end and closed so the
+ * underlying socket goes back to the platform keep-alive pool and the next request to the same host skips
+ * the TCP and TLS handshakes. Bodies are read in bulk into per-thread buffers that are reused between calls.
+ * The Date header of every response is passed to the server clock together with when the request went out.
+ *
+ * Responses are requested gzip compressed and inflated while they are decoded. Asking for gzip explicitly turns
+ * off the platform's transparent decompression, which is what lets the listener see the bytes that were
+ * actually transferred. */
+public class HttpTransport {
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int CHUNK_SIZE = 4096;
+
+    /* Decodes a response body straight from the connection */
+    public interface ResponseReader<T> {
+        T read(InputStream in) throws IOException;
+    }
+
+    /* Told about every finished request on the thread that made it */
+    public interface Listener {
+        /* `status` is -1 if there was no response, byte counts are bodies as transferred, without headers, and
+         * `error` is what the request threw or null */
+        void onExchange(String method, String path, int status, long requestBytes, long responseBytes,
+                        long elapsedMillis, IOException error);
+    }
+
+    private final String baseUrl;
+    private final String apiKey;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final ServerClock serverClock;
+    private volatile Listener listener;
+
+    private final ThreadLocal<byte[]> chunkBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[CHUNK_SIZE];
+        }
+    };
+    private final ThreadLocal<ReusableByteArrayOutputStream> bodyBuffer = new ThreadLocal<ReusableByteArrayOutputStream>() {
+        @Override
+        protected ReusableByteArrayOutputStream initialValue() {
+            return new ReusableByteArrayOutputStream();
+        }
+    };
+
+    /* Create a transport for the given base url, timeouts are in milliseconds */
+    public HttpTransport(String baseUrl, String apiKey, int connectTimeout, int readTimeout) {
+        this(baseUrl, apiKey, connectTimeout, readTimeout, new ServerClock());
+    }
+
+    /* Create a transport that keeps the given clock in sync with the server */
+    public HttpTransport(String baseUrl, String apiKey, int connectTimeout, int readTimeout, ServerClock serverClock) {
+        this.baseUrl = baseUrl;
+        this.apiKey = apiKey;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.serverClock = serverClock;
+    }
+
+    public ServerClock getServerClock() {
+        return serverClock;
+    }
+
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /* Send a GET request for the path (relative to the base url) and return the response body */
+    public String get(String path) throws IOException {
+        return execute("GET", path, null);
+    }
+
+    /* Send a PATCH request with the given JSON body and return the response body */
+    public String patch(String path, String body) throws IOException {
+        return execute("PATCH", path, body);
+    }
+
+    /* Send a GET request and decode the response with the reader */
+    public <T> T get(String path, ResponseReader<T> reader) throws IOException {
+        return execute("GET", path, null, reader);
+    }
+
+    /* Send a PATCH request with the given JSON body and decode the response with the reader */
+    public <T> T patch(String path, String body, ResponseReader<T> reader) throws IOException {
+        return execute("PATCH", path, body, reader);
+    }
+
+    /* Open a server-sent events stream, the caller reads it and disconnect()s the connection when done */
+    public HttpURLConnection openEventStream(String path, String lastEventId) throws IOException {
+        long sentAt = serverClock.monotonicMillis();
+        HttpURLConnection connection = open("GET", path);
+        connection.setRequestProperty("accept", "text/event-stream");
+        // compressed events could sit in the server's deflate buffer instead of being sent
+        connection.setRequestProperty("accept-encoding", "identity");
+        if (lastEventId != null) {
+            connection.setRequestProperty("last-event-id", lastEventId);
+        }
+        try {
+            checkStatus(connection, sentAt);
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+        return connection;
+    }
+
+    String execute(String method, String path, String body) throws IOException {
+        return execute(method, path, body, new ResponseReader<String>() {
+            @Override
+            public String read(InputStream in) throws IOException {
+                return readBody(in);
+            }
+        });
+    }
+
+    <T> T execute(String method, String path, String body, ResponseReader<T> reader) throws IOException {
+        long sentAt = serverClock.monotonicMillis();
+        int status = -1;
+        long requestBytes = 0;
+        long responseBytes = 0;
+        IOException error = null;
+        CountingInputStream counted = null;
+        HttpURLConnection connection = open(method, path);
+        try {
+            if (body != null) {
+                requestBytes = writeBody(connection, body);
+            }
+            status = checkStatus(connection, sentAt);
+            counted = new CountingInputStream(connection.getInputStream());
+            InputStream in = decompress(connection, counted);
+            try {
+                T result = reader.read(in);
+                // the reader may stop early, the rest has to be consumed for the connection to be reused
+                drain(in);
+                drain(counted);
+                return result;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            error = e;
+            if (e instanceof HttpStatusException) {
+                status = ((HttpStatusException) e).getStatus();
+            }
+            responseBytes += drainErrorStream(connection);
+            throw e;
+        } finally {
+            Listener current = listener;
+            if (current != null) {
+                if (counted != null) {
+                    responseBytes += counted.count;
+                }
+                current.onExchange(method, path, status, requestBytes, responseBytes,
+                        serverClock.monotonicMillis() - sentAt, error);
+            }
+        }
+    }
+
+    /* Inflate the body while it is read if the server compressed it */
+    private static InputStream decompress(HttpURLConnection connection, InputStream in) throws IOException {
+        String encoding = connection.getContentEncoding();
+        if (encoding != null && encoding.equalsIgnoreCase("gzip")) {
+            return new GZIPInputStream(in, CHUNK_SIZE);
+        }
+        return in;
+    }
+
+    HttpURLConnection open(String method, String path) throws IOException {
+        URL url = new URL(baseUrl + path);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        try {
+            connection.setRequestMethod(method);
+        } catch (ProtocolException e) {
+            // the desktop JVM refuses PATCH, tunnel it through POST
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("x-http-method-override", method);
+        }
+        connection.setRequestProperty("content-type", "application/json");
+        connection.setRequestProperty("x-apikey", apiKey);
+        connection.setRequestProperty("cache-control", "no-cache");
+        connection.setRequestProperty("accept-encoding", "gzip");
+        return connection;
+    }
+
+    /* Send the body, returns its size in bytes */
+    private long writeBody(HttpURLConnection connection, String body) throws IOException {
+        byte[] bytes = body.getBytes(UTF_8);
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(bytes.length);
+        OutputStream out = connection.getOutputStream();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        return bytes.length;
+    }
+
+    private int checkStatus(HttpURLConnection connection, long sentAt) throws IOException {
+        int status = connection.getResponseCode();
+        serverClock.onResponse(sentAt, serverClock.monotonicMillis(), connection.getHeaderFieldDate("date", 0));
+        if (status >= 400) {
+            throw new HttpStatusException(status, connection.getResponseMessage());
+        }
+        return status;
+    }
+
+    /* Read the whole stream into the reusable buffer */
+    String readBody(InputStream in) throws IOException {
+        ReusableByteArrayOutputStream body = bodyBuffer.get();
+        body.reset();
+        byte[] chunk = chunkBuffer.get();
+        int count;
+        while ((count = in.read(chunk)) != -1) {
+            body.write(chunk, 0, count);
+        }
+        return body.decode(UTF_8);
+    }
+
+    /* Reading the error body lets the connection be reused after a failed request, returns its size */
+    private long drainErrorStream(HttpURLConnection connection) {
+        InputStream errorStream = connection.getErrorStream();
+        if (errorStream == null) {
+            return 0;
+        }
+        try {
+            long count = drain(errorStream);
+            errorStream.close();
+            return count;
+        } catch (IOException e) {
+            // the connection will not be reused
+            return 0;
+        }
+    }
+
+    private long drain(InputStream in) throws IOException {
+        byte[] chunk = chunkBuffer.get();
+        long total = 0;
+        int count;
+        while ((count = in.read(chunk)) != -1) {
+            total += count;
+        }
+        return total;
+    }
+
+    /* Counts the bytes read from the connection, before any decompression */
+    private static class CountingInputStream extends FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    /* ByteArrayOutputStream that decodes its contents without copying the array first */
+    private static class ReusableByteArrayOutputStream extends ByteArrayOutputStream {
+        private static final int MAX_RETAINED_SIZE = 256 * 1024;
+
+        ReusableByteArrayOutputStream() {
+            super(CHUNK_SIZE);
+        }
+
+        @Override
+        public synchronized void reset() {
+            super.reset();
+            // don't hold on to the memory of an unusually large response
+            if (buf.length > MAX_RETAINED_SIZE) {
+                buf = new byte[CHUNK_SIZE];
+            }
+        }
+
+        String decode(Charset charset) {
+            return new String(buf, 0, count, charset);
+        }
+    }
+}
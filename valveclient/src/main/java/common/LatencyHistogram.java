@@ -0,0 +1,109 @@
+package common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/* Fixed size histogram of latencies in milliseconds, laid out like an HDR histogram.
+ *
+ * Values below SUB_BUCKET_COUNT get a bucket each, above that every power of two is split into SUB_BUCKET_COUNT / 2
+ * buckets, so a recorded value is off by at most 1 / 8 of itself and the whole range up to MAX_VALUE fits in
+ * a few hundred longs; a histogram in finer units, like microseconds, is given a larger range instead. Recording
+ * is a couple of atomic increments without locks or allocation; readers see a slightly moving picture while
+ * values are being recorded. */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+    // a little over an hour, anything longer is recorded as this
+    static final long MAX_VALUE = (1L << 22) - 1;
+
+    private final long maxValue;
+    private final AtomicLongArray counts;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public LatencyHistogram() {
+        this(MAX_VALUE);
+    }
+
+    /* A histogram of values up to `maxValue`, anything larger is recorded as it */
+    public LatencyHistogram(long maxValue) {
+        this.maxValue = maxValue;
+        counts = new AtomicLongArray(indexOf(maxValue) + 1);
+    }
+
+    public void record(long value) {
+        long clamped = Math.max(0, Math.min(value, maxValue));
+        counts.incrementAndGet(indexOf(clamped));
+        count.incrementAndGet();
+        sum.addAndGet(clamped);
+        long previous;
+        while (clamped > (previous = max.get())) {
+            if (max.compareAndSet(previous, clamped)) {
+                break;
+            }
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /* The value that `percentile` percent of the recorded values are at or below, 0 if nothing was recorded */
+    public long getValueAtPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValueAt(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        // shift the value so it lands in the upper half of the sub-buckets
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return shift * SUB_BUCKET_HALF + (int) (value >>> shift);
+    }
+
+    /* The largest value that is recorded in the bucket */
+    static long highestValueAt(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_HALF - 1;
+        long subBucket = index % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,168 @@
+package common;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Collects what the transport reports into per-endpoint latency histograms and counters.
+ *
+ * Requests are sorted into a fixed set of endpoints by method and path shape, so recording takes no lookup
+ * or allocation beyond the first use of a named counter. Everything is kept since the app started (or the
+ * last reset) and can be read through the getters or as a text dump for the log. */
+public class NetworkMetrics implements HttpTransport.Listener {
+    public static final String QUERY = "GET query";
+    public static final String UPDATE = "PATCH document";
+    public static final String OTHER = "other";
+
+    // counters kept by the callers
+    public static final String POLLS = "polls";
+    public static final String PUSHED_UPDATES = "pushed updates";
+    public static final String COMMANDS = "commands";
+
+    /* What was recorded for one endpoint */
+    public static class Endpoint {
+        private final String name;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final AtomicLong successes = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong timeouts = new AtomicLong();
+        private final AtomicLong bytesOut = new AtomicLong();
+        private final AtomicLong bytesIn = new AtomicLong();
+
+        Endpoint(String name) {
+            this.name = name;
+        }
+
+        void record(long requestBytes, long responseBytes, long elapsedMillis, IOException error) {
+            latency.record(elapsedMillis);
+            if (error == null) {
+                successes.incrementAndGet();
+            } else if (error instanceof SocketTimeoutException) {
+                timeouts.incrementAndGet();
+            } else {
+                failures.incrementAndGet();
+            }
+            bytesOut.addAndGet(requestBytes);
+            bytesIn.addAndGet(responseBytes);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        public long getSuccesses() {
+            return successes.get();
+        }
+
+        /* Requests that failed other than by timing out, error statuses included */
+        public long getFailures() {
+            return failures.get();
+        }
+
+        public long getTimeouts() {
+            return timeouts.get();
+        }
+
+        public long getBytesOut() {
+            return bytesOut.get();
+        }
+
+        public long getBytesIn() {
+            return bytesIn.get();
+        }
+
+        void reset() {
+            latency.reset();
+            successes.set(0);
+            failures.set(0);
+            timeouts.set(0);
+            bytesOut.set(0);
+            bytesIn.set(0);
+        }
+    }
+
+    private final Endpoint query = new Endpoint(QUERY);
+    private final Endpoint update = new Endpoint(UPDATE);
+    private final Endpoint other = new Endpoint(OTHER);
+    private final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+
+    @Override
+    public void onExchange(String method, String path, int status, long requestBytes, long responseBytes,
+                           long elapsedMillis, IOException error) {
+        endpointFor(method, path).record(requestBytes, responseBytes, elapsedMillis, error);
+    }
+
+    /* Add one to the named counter */
+    public void increment(String counter) {
+        AtomicLong value = counters.get(counter);
+        if (value == null) {
+            AtomicLong created = new AtomicLong();
+            value = counters.putIfAbsent(counter, created);
+            if (value == null) {
+                value = created;
+            }
+        }
+        value.incrementAndGet();
+    }
+
+    public long getCounter(String counter) {
+        AtomicLong value = counters.get(counter);
+        return value == null ? 0 : value.get();
+    }
+
+    public Endpoint getEndpoint(String name) {
+        if (name.equals(QUERY)) {
+            return query;
+        }
+        if (name.equals(UPDATE)) {
+            return update;
+        }
+        return other;
+    }
+
+    public void reset() {
+        query.reset();
+        update.reset();
+        other.reset();
+        counters.clear();
+    }
+
+    /* Everything recorded as text, one line per endpoint and counter */
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        for (Endpoint endpoint : new Endpoint[]{query, update, other}) {
+            LatencyHistogram latency = endpoint.latency;
+            if (latency.getCount() == 0) {
+                continue;
+            }
+            sb.append(String.format("%s: %d ok, %d failed, %d timed out, %d B out, %d B in, "
+                            + "latency ms p50 %d p90 %d p99 %d max %d mean %.1f\n",
+                    endpoint.name, endpoint.getSuccesses(), endpoint.getFailures(), endpoint.getTimeouts(),
+                    endpoint.getBytesOut(), endpoint.getBytesIn(), latency.getValueAtPercentile(50),
+                    latency.getValueAtPercentile(90), latency.getValueAtPercentile(99), latency.getMax(),
+                    latency.getMean()));
+        }
+        for (Map.Entry<String, AtomicLong> counter : new TreeMap<>(counters).entrySet()) {
+            sb.append(counter.getKey()).append(": ").append(counter.getValue().get()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private Endpoint endpointFor(String method, String path) {
+        boolean collection = path.isEmpty() || path.charAt(0) == '?';
+        if (collection && method.equals("GET")) {
+            return query;
+        }
+        if (!collection && method.equals("PATCH")) {
+            return update;
+        }
+        return other;
+    }
+}
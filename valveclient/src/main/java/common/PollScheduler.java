@@ -0,0 +1,82 @@
+package common;
+
+import models.Timer;
+
+/* Decides how long to wait before polling the server again based on what the valve is doing.
+ *
+ * All times are in seconds since the epoch so the schedule can be simulated. Commands and the event stream may be
+ * reported from another thread than the one that polls. */
+public class PollScheduler {
+    // right after a set or stop, until the server state has settled
+    static final int COMMAND_INTERVAL = 5;
+    static final int COMMAND_WINDOW = 30;
+    // valve on, polls line up with the end of the countdown
+    static final int ON_MIN_INTERVAL = 5;
+    static final int ON_MAX_INTERVAL = 60;
+    static final int END_MARGIN = 2;
+    // valve off, slower the longer it has been off
+    static final int RECENTLY_OFF_INTERVAL = 30;
+    static final int RECENTLY_OFF_WINDOW = 120;
+    // an idle valve is most of the day and sets the request rate: two minutes stays an order of magnitude below
+    // the old fixed 10 s, and only bounds changes made elsewhere, this phone's own commands are seen at once
+    static final int IDLE_INTERVAL = 120;
+    // valve not reporting, back off in proportion to how long it has been gone
+    static final int DISCONNECTED_MIN_INTERVAL = 10;
+    static final int DISCONNECTED_MAX_INTERVAL = 300;
+    static final int DISCONNECTED_DIVISOR = 10;
+    // nothing known yet
+    static final int UNKNOWN_INTERVAL = 10;
+    // changes are pushed, polls only catch anything the stream missed
+    static final int PUSH_INTERVAL = 300;
+
+    private final int lastSeenThreshold;
+    private volatile int commandWindowEnd = 0;
+    private volatile boolean pushConnected = false;
+
+    public PollScheduler(int lastSeenThreshold) {
+        this.lastSeenThreshold = lastSeenThreshold;
+    }
+
+    /* A set or stop command was sent, poll fast for a while */
+    public void onCommand(int now) {
+        commandWindowEnd = now + COMMAND_WINDOW;
+    }
+
+    /* The event stream went up or down */
+    public void setPushConnected(boolean connected) {
+        pushConnected = connected;
+    }
+
+    /* Get the number of seconds to wait after a poll at `now` that returned the timer */
+    public int getInterval(Timer timer, int now) {
+        if (pushConnected && timer != null) {
+            return PUSH_INTERVAL;
+        }
+        if (now < commandWindowEnd) {
+            return COMMAND_INTERVAL;
+        }
+        if (timer == null) {
+            return UNKNOWN_INTERVAL;
+        }
+
+        int timeSinceLastSeen = now - timer.getLastSeen();
+        if (timeSinceLastSeen >= lastSeenThreshold) {
+            return clamp(timeSinceLastSeen / DISCONNECTED_DIVISOR, DISCONNECTED_MIN_INTERVAL,
+                    DISCONNECTED_MAX_INTERVAL);
+        }
+
+        int remaining = timer.getEnd() - now;
+        if (remaining > 0) {
+            // confirm the valve turned off soon after the countdown ends
+            return clamp(remaining + END_MARGIN, ON_MIN_INTERVAL, ON_MAX_INTERVAL);
+        }
+        if (-remaining < RECENTLY_OFF_WINDOW) {
+            return RECENTLY_OFF_INTERVAL;
+        }
+        return IDLE_INTERVAL;
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
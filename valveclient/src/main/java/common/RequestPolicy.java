@@ -0,0 +1,130 @@
+package common;
+
+import java.util.Random;
+
+/* Decides when a request to the server may be sent after earlier ones failed.
+ *
+ * Transport failures back off exponentially with jitter, and after FAILURE_THRESHOLD failures in a row the
+ * circuit opens: nothing is sent until the open period is over, then a single probe decides whether to close
+ * it again or stay open for twice as long. A probe that never reports, because the screen that sent it was
+ * stopped before it ran, lets the next probe through after PROBE_TIMEOUT. A valve name that doesn't exist and a
+ * request the server rejects for good, such as a wrong API key, are not server problems: they don't count toward
+ * opening the circuit and are only retried at a slow fixed rate. Times are in milliseconds. */
+public class RequestPolicy {
+    static final long BASE_BACKOFF = 2000;
+    static final long MAX_BACKOFF = 120000;
+    static final int FAILURE_THRESHOLD = 5;
+    static final long OPEN_DURATION = 60000;
+    static final long MAX_OPEN_DURATION = 600000;
+    static final long NOT_FOUND_INTERVAL = 30000;
+    static final long REJECTED_INTERVAL = 60000;
+    // longer than a request can take with the connect and read timeouts
+    static final long PROBE_TIMEOUT = 30000;
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final Random random;
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openDuration = OPEN_DURATION;
+    private long nextAllowed = 0;
+
+    public RequestPolicy() {
+        this(new Random());
+    }
+
+    RequestPolicy(Random random) {
+        this.random = random;
+    }
+
+    /* Check whether a request may be sent now, an open circuit lets a single probe through once it expires */
+    public synchronized boolean allowRequest(long now) {
+        if (now < nextAllowed) {
+            return false;
+        }
+        if (state == State.OPEN || state == State.HALF_OPEN) {
+            state = State.HALF_OPEN;
+            // no other request until the probe has finished or is given up on
+            nextAllowed = now + PROBE_TIMEOUT;
+        }
+        return true;
+    }
+
+    /* Forget the failures so far, for a screen that starts again */
+    public synchronized void reset() {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        openDuration = OPEN_DURATION;
+        nextAllowed = 0;
+    }
+
+    public synchronized void onSuccess(long now) {
+        reset();
+    }
+
+    /* The server answered but there is no such valve */
+    public synchronized void onNotFound(long now) {
+        onSuccess(now);
+        nextAllowed = now + NOT_FOUND_INTERVAL;
+    }
+
+    /* The server answered with a status that retrying won't change */
+    public synchronized void onRejected(long now) {
+        onSuccess(now);
+        nextAllowed = now + REJECTED_INTERVAL;
+    }
+
+    /* The request failed with the error, a non-retryable status is a rejection and anything else a failure */
+    public synchronized void onFailure(long now, Exception error) {
+        if (isRejection(error)) {
+            onRejected(now);
+        } else {
+            onFailure(now);
+        }
+    }
+
+    /* Whether the error is the server refusing the request rather than failing to answer it */
+    public static boolean isRejection(Exception error) {
+        return error instanceof HttpStatusException && !((HttpStatusException) error).isRetryable();
+    }
+
+    /* The request failed or timed out, or the server answered with a retryable error */
+    public synchronized void onFailure(long now) {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN) {
+            openDuration = Math.min(openDuration * 2, MAX_OPEN_DURATION);
+            open(now);
+        } else if (consecutiveFailures >= FAILURE_THRESHOLD) {
+            open(now);
+        } else {
+            nextAllowed = now + backoff(consecutiveFailures);
+        }
+    }
+
+    private void open(long now) {
+        state = State.OPEN;
+        nextAllowed = now + jitter(openDuration);
+    }
+
+    /* Exponential backoff for the nth failure in a row */
+    private long backoff(int failures) {
+        long delay = Math.min(MAX_BACKOFF, BASE_BACKOFF << Math.min(failures - 1, 16));
+        return jitter(delay);
+    }
+
+    /* Randomise the upper half of the delay so clients that failed together don't retry together */
+    private long jitter(long delay) {
+        long half = delay / 2;
+        return half + (long) (random.nextDouble() * (delay - half));
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+}
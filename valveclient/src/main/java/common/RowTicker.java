@@ -0,0 +1,72 @@
+package common;
+
+import java.util.ArrayList;
+
+/* One 1 Hz tick for all the rows on screen, instead of a handler loop per valve.
+ *
+ * Rows are registered while they are attached to the list. A tick renders only the rows whose status went out
+ * of date, so an idle valve costs a comparison, rows scrolled off screen cost nothing and a steady tick
+ * allocates nothing. */
+public class RowTicker {
+    /* A row that renders a valve status */
+    public interface Row {
+        /* Render the status at `now` (seconds), returns the time it next goes out of date */
+        int render(int now);
+    }
+
+    private final ArrayList<Row> rows = new ArrayList<>();
+    // parallel to rows
+    private int[] nextRenderTimes = new int[32];
+
+    /* Start ticking the row, it is rendered right away */
+    public void attach(Row row, int now) {
+        if (rows.indexOf(row) >= 0) {
+            refresh(row, now);
+            return;
+        }
+        if (rows.size() == nextRenderTimes.length) {
+            int[] grown = new int[nextRenderTimes.length * 2];
+            System.arraycopy(nextRenderTimes, 0, grown, 0, rows.size());
+            nextRenderTimes = grown;
+        }
+        nextRenderTimes[rows.size()] = row.render(now);
+        rows.add(row);
+    }
+
+    public void detach(Row row) {
+        int index = rows.indexOf(row);
+        if (index < 0) {
+            return;
+        }
+        // order doesn't matter, move the last row into the gap
+        int last = rows.size() - 1;
+        rows.set(index, rows.get(last));
+        nextRenderTimes[index] = nextRenderTimes[last];
+        rows.remove(last);
+    }
+
+    /* Render a row whose timer changed now, rows that aren't attached are rendered without being ticked */
+    public void refresh(Row row, int now) {
+        int next = row.render(now);
+        int index = rows.indexOf(row);
+        if (index >= 0) {
+            nextRenderTimes[index] = next;
+        }
+    }
+
+    /* Render the rows that are out of date at `now`, returns how many were */
+    public int tick(int now) {
+        int rendered = 0;
+        for (int i = 0; i < rows.size(); i++) {
+            if (now >= nextRenderTimes[i]) {
+                nextRenderTimes[i] = rows.get(i).render(now);
+                rendered++;
+            }
+        }
+        return rendered;
+    }
+
+    public int size() {
+        return rows.size();
+    }
+}
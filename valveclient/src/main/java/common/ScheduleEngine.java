@@ -0,0 +1,230 @@
+package common;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TimeZone;
+import java.util.concurrent.Future;
+
+import models.Schedule;
+import models.Timer;
+
+/* Decides when recurring schedules run, for any number of schedules at O(log n) per run.
+ *
+ * Each schedule has one pending run in a priority queue ordered by start time, so the caller only has to wake
+ * at getNextDueTime(). poll() takes the due runs and queues the next run of each. Removing a schedule marks its
+ * pending run, which is dropped when it reaches the head or when marked runs make up half the queue. A run
+ * that is still under way when it is polled, after the phone slept or the app was restarted, is due with the
+ * time it has left; runs that ended unseen are skipped. A run only counts as the last run of its schedule once
+ * the caller marks it sent, so a run that failed to go out is resumed after a restart. Times are local
+ * milliseconds so the engine can be driven by a simulated clock. */
+public class ScheduleEngine {
+    // compacting a small queue isn't worth it
+    private static final int MIN_COMPACT_SIZE = 64;
+
+    /* A run that is due, ending at the time the schedule's length after its start */
+    public static class Run {
+        private final Schedule schedule;
+        private final long start;
+        private final long end;
+
+        Run(Schedule schedule, long start, long end) {
+            this.schedule = schedule;
+            this.start = start;
+            this.end = end;
+        }
+
+        public Schedule getSchedule() {
+            return schedule;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getEnd() {
+            return end;
+        }
+
+        /* The seconds of the run left at `now`, rounded up */
+        public int getSecondsLeft(long now) {
+            return (int) ((end - now + 999) / 1000);
+        }
+    }
+
+    private static class Pending implements Comparable<Pending> {
+        final Schedule schedule;
+        final long start;
+        boolean removed = false;
+
+        Pending(Schedule schedule, long start) {
+            this.schedule = schedule;
+            this.start = start;
+        }
+
+        @Override
+        public int compareTo(Pending other) {
+            return start < other.start ? -1 : start == other.start ? 0 : 1;
+        }
+    }
+
+    // reused for the date arithmetic, guarded by the engine's lock
+    private final Calendar calendar;
+    private PriorityQueue<Pending> queue = new PriorityQueue<>();
+    private final Map<String, Pending> pendingById = new HashMap<>();
+    // the start of the last run of each schedule, so a restart doesn't repeat it
+    private final Map<String, Long> lastRuns = new HashMap<>();
+    private int removedCount = 0;
+
+    public ScheduleEngine(TimeZone timeZone) {
+        calendar = Calendar.getInstance(timeZone);
+    }
+
+    /* Add or replace the schedule, keeping the last run of the one it replaces */
+    public synchronized void add(Schedule schedule, long now) {
+        Long lastRun = lastRuns.get(schedule.getId());
+        add(schedule, lastRun != null ? lastRun : 0, now);
+    }
+
+    /* Add or replace the schedule that last ran at `lastRun`, 0 if never */
+    public synchronized void add(Schedule schedule, long lastRun, long now) {
+        remove(schedule.getId());
+        if (lastRun > 0) {
+            lastRuns.put(schedule.getId(), lastRun);
+        }
+        long after = Math.max(now - schedule.getLengthSeconds() * 1000L, lastRun);
+        enqueue(schedule, nextStart(schedule, after));
+    }
+
+    /* Remove the schedule, returns false if there was no such schedule */
+    public synchronized boolean remove(String id) {
+        Pending pending = pendingById.remove(id);
+        if (pending == null) {
+            return false;
+        }
+        lastRuns.remove(id);
+        pending.removed = true;
+        removedCount++;
+        if (queue.size() >= MIN_COMPACT_SIZE && removedCount > queue.size() / 2) {
+            PriorityQueue<Pending> compacted = new PriorityQueue<>(Math.max(1, pendingById.size()));
+            compacted.addAll(pendingById.values());
+            queue = compacted;
+            removedCount = 0;
+        }
+        return true;
+    }
+
+    /* When the next run is due, Long.MAX_VALUE if there are no schedules */
+    public synchronized long getNextDueTime() {
+        dropRemovedHead();
+        Pending head = queue.peek();
+        return head != null ? head.start : Long.MAX_VALUE;
+    }
+
+    /* Take the runs due at `now` and queue the next run of their schedules */
+    public synchronized List<Run> poll(long now) {
+        List<Run> due = new ArrayList<>();
+        while (true) {
+            dropRemovedHead();
+            Pending head = queue.peek();
+            if (head == null || head.start > now) {
+                return due;
+            }
+            queue.poll();
+            Schedule schedule = head.schedule;
+            long length = schedule.getLengthSeconds() * 1000L;
+            if (head.start + length > now) {
+                due.add(new Run(schedule, head.start, head.start + length));
+            }
+            enqueue(schedule, nextStart(schedule, Math.max(head.start, now - length)));
+        }
+    }
+
+    /* Record the run as the last run of its schedule once the command went out */
+    public synchronized void markSent(Run run) {
+        String id = run.getSchedule().getId();
+        if (pendingById.containsKey(id) && run.getStart() > getLastRun(id)) {
+            lastRuns.put(id, run.getStart());
+        }
+    }
+
+    public synchronized List<Schedule> getSchedules() {
+        List<Schedule> schedules = new ArrayList<>(pendingById.size());
+        for (Pending pending : pendingById.values()) {
+            schedules.add(pending.schedule);
+        }
+        return schedules;
+    }
+
+    /* The start of the schedule's last run, 0 if it never ran */
+    public synchronized long getLastRun(String id) {
+        Long lastRun = lastRuns.get(id);
+        return lastRun != null ? lastRun : 0;
+    }
+
+    public synchronized int size() {
+        return pendingById.size();
+    }
+
+    /* Send the runs as set commands, one batched setAll per distinct length. A valve with several runs due
+     * gets the longest. Returns the futures by valve name */
+    public static Map<String, Future<Timer>> send(ValveClient client, List<Run> runs, long now) {
+        Map<String, Integer> secondsByName = new LinkedHashMap<>();
+        for (Run run : runs) {
+            String name = run.getSchedule().getValveName();
+            int seconds = run.getSecondsLeft(now);
+            Integer current = secondsByName.get(name);
+            if (current == null || seconds > current) {
+                secondsByName.put(name, seconds);
+            }
+        }
+        Map<Integer, List<String>> namesBySeconds = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> entry : secondsByName.entrySet()) {
+            List<String> names = namesBySeconds.get(entry.getValue());
+            if (names == null) {
+                names = new ArrayList<>();
+                namesBySeconds.put(entry.getValue(), names);
+            }
+            names.add(entry.getKey());
+        }
+        Map<String, Future<Timer>> results = new LinkedHashMap<>();
+        for (Map.Entry<Integer, List<String>> entry : namesBySeconds.entrySet()) {
+            results.putAll(client.setAll(entry.getValue(), entry.getKey()));
+        }
+        return results;
+    }
+
+    private void enqueue(Schedule schedule, long start) {
+        Pending pending = new Pending(schedule, start);
+        pendingById.put(schedule.getId(), pending);
+        queue.add(pending);
+    }
+
+    private void dropRemovedHead() {
+        while (!queue.isEmpty() && queue.peek().removed) {
+            queue.poll();
+            removedCount--;
+        }
+    }
+
+    /* The first start of the schedule after `after` */
+    private long nextStart(Schedule schedule, long after) {
+        calendar.setTimeInMillis(after);
+        // a week and a day reaches every day of the week after today
+        for (int i = 0; i < 8; i++) {
+            calendar.set(Calendar.HOUR_OF_DAY, schedule.getStartMinute() / 60);
+            calendar.set(Calendar.MINUTE, schedule.getStartMinute() % 60);
+            calendar.set(Calendar.SECOND, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+            if (calendar.getTimeInMillis() > after && schedule.runsOn(calendar.get(Calendar.DAY_OF_WEEK))) {
+                return calendar.getTimeInMillis();
+            }
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+        }
+        throw new IllegalStateException("no start within a week: " + schedule);
+    }
+}
@@ -0,0 +1,91 @@
+package common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import models.Schedule;
+
+/* Keeps the schedules of a ScheduleEngine and when each last ran in one binary file.
+ *
+ * The file is written to a temporary file and renamed so a crash never leaves a half written list, and the
+ * last runs keep a restart from repeating a run that already went out. */
+public class ScheduleStore {
+    private static final int MAGIC = 0x56545331; // "VTS1"
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File file;
+
+    public ScheduleStore(File file) {
+        this.file = file;
+    }
+
+    /* Add the stored schedules to the engine, returns how many there were, 0 if the file is missing or corrupt */
+    public int load(ScheduleEngine engine, long now) {
+        if (!file.exists()) {
+            return 0;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Not a schedule file");
+                }
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    Schedule schedule;
+                    try {
+                        schedule = new Schedule(in.readUTF(), in.readUTF(), in.readShort(), in.readInt(),
+                                in.readByte());
+                    } catch (IllegalArgumentException e) {
+                        throw new IOException(e);
+                    }
+                    engine.add(schedule, in.readLong(), now);
+                }
+                return count;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // a corrupt list is as good as none, schedules added so far stay
+            return 0;
+        }
+    }
+
+    /* Store the engine's schedules, returns false if they could not be written */
+    public boolean save(ScheduleEngine engine) {
+        File directory = file.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            return false;
+        }
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        List<Schedule> schedules = engine.getSchedules();
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(schedules.size());
+                for (Schedule schedule : schedules) {
+                    out.writeUTF(schedule.getId());
+                    out.writeUTF(schedule.getValveName());
+                    out.writeShort(schedule.getStartMinute());
+                    out.writeInt(schedule.getLengthSeconds());
+                    out.writeByte(schedule.getDays());
+                    out.writeLong(engine.getLastRun(schedule.getId()));
+                }
+            } finally {
+                out.close();
+            }
+            return temp.renameTo(file);
+        } catch (IOException e) {
+            temp.delete();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package common;
+
+/* Estimates the server's clock from the Date header of its responses and keeps time with a monotonic clock.
+ *
+ * The header only has whole seconds, so one response says the server clock was somewhere in a second long
+ * window while the request was out, which gives a range of possible offsets. The ranges of later responses
+ * are intersected with it, so after a few requests the offset is known much better than to the second even
+ * though no single response is. If a new range doesn't overlap, one of the clocks was adjusted or drifted
+ * and the estimate restarts from that response. For the same reason it also restarts once its oldest range
+ * is older than MAX_SAMPLE_AGE, however often responses come. Between responses the time is counted with the
+ * monotonic clock so changing the phone's clock doesn't move the countdown. Until the first response the
+ * phone's clock is used. Times are in milliseconds. */
+public class ServerClock {
+    static final long DATE_RESOLUTION = 1000;
+    static final long MAX_SAMPLE_AGE = 3600 * 1000;
+
+    /* The phone's clocks */
+    public interface Source {
+        /* Milliseconds that only ever go forward, from an arbitrary start, and keep counting while the phone
+         * sleeps */
+        long monotonicMillis();
+
+        /* The phone's wall clock in milliseconds since the epoch */
+        long wallMillis();
+    }
+
+    /* The JVM's clocks. On Android nanoTime stops in deep sleep, the app passes a source on elapsedRealtime() */
+    public static final Source SYSTEM_SOURCE = new Source() {
+        @Override
+        public long monotonicMillis() {
+            return System.nanoTime() / 1000000;
+        }
+
+        @Override
+        public long wallMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /* The phone's clock as it is set now, following changes to it, used by timers that don't come from a server */
+    public static final ServerClock LOCAL = new ServerClock(new Source() {
+        @Override
+        public long monotonicMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public long wallMillis() {
+            return System.currentTimeMillis();
+        }
+    });
+
+    private final Source source;
+    // server time minus monotonic time is somewhere in [minOffset, maxOffset]
+    private long minOffset;
+    private long maxOffset;
+    // when the first range of the current intersection was received
+    private long intersectedSince;
+    private boolean synced = false;
+
+    public ServerClock() {
+        this(SYSTEM_SOURCE);
+    }
+
+    public ServerClock(Source source) {
+        this.source = source;
+        long offset = source.wallMillis() - source.monotonicMillis();
+        minOffset = offset;
+        maxOffset = offset;
+    }
+
+    /* The current time on the monotonic clock, to stamp requests with */
+    public long monotonicMillis() {
+        return source.monotonicMillis();
+    }
+
+    /* Add a response that was requested at `sentAt` and received at `receivedAt` (both monotonic) with the
+     * server's Date header `serverDate` */
+    public synchronized void onResponse(long sentAt, long receivedAt, long serverDate) {
+        if (receivedAt < sentAt || serverDate <= 0) {
+            return;
+        }
+        // the server read its clock between sending and receiving, and the header drops the milliseconds
+        long min = serverDate - receivedAt;
+        long max = serverDate + DATE_RESOLUTION - sentAt;
+        boolean overlaps = min <= maxOffset && max >= minOffset;
+        if (!synced || !overlaps || receivedAt - intersectedSince > MAX_SAMPLE_AGE) {
+            minOffset = min;
+            maxOffset = max;
+            intersectedSince = receivedAt;
+        } else {
+            minOffset = Math.max(minOffset, min);
+            maxOffset = Math.min(maxOffset, max);
+        }
+        synced = true;
+    }
+
+    /* The estimated server time */
+    public synchronized long currentTimeMillis() {
+        return source.monotonicMillis() + (minOffset + maxOffset) / 2;
+    }
+
+    /* The estimated server time in seconds, like the timer documents use */
+    public int currentTimeSeconds() {
+        return (int) (currentTimeMillis() / 1000);
+    }
+
+    /* The estimated server time minus the phone's clock */
+    public synchronized long getOffset() {
+        return source.monotonicMillis() + (minOffset + maxOffset) / 2 - source.wallMillis();
+    }
+
+    /* How far off the estimate can be either way, only meaningful once a response was seen */
+    public synchronized long getUncertainty() {
+        return (maxOffset - minOffset) / 2;
+    }
+
+    public synchronized boolean isSynced() {
+        return synced;
+    }
+}
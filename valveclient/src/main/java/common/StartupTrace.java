@@ -0,0 +1,42 @@
+package common;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/* Times of the steps of starting the app, in milliseconds after the start, each step counted the first time */
+public class StartupTrace {
+    private final long start;
+    private final Map<String, Long> marks = new LinkedHashMap<>();
+
+    public StartupTrace(long start) {
+        this.start = start;
+    }
+
+    /* Mark the step as reached at `now`, returns false if it was reached before */
+    public synchronized boolean mark(String step, long now) {
+        if (marks.containsKey(step)) {
+            return false;
+        }
+        marks.put(step, now - start);
+        return true;
+    }
+
+    /* Milliseconds after the start the step was reached, -1 if it wasn't */
+    public synchronized long get(String step) {
+        Long time = marks.get(step);
+        return time != null ? time : -1;
+    }
+
+    /* The steps in the order they were reached, "step +12 ms, ..." */
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> mark : marks.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(mark.getKey()).append(" +").append(mark.getValue()).append(" ms");
+        }
+        return sb.toString();
+    }
+}
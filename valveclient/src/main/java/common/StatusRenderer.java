@@ -0,0 +1,130 @@
+package common;
+
+import models.Timer;
+
+/* Turns a timer snapshot into the valve status shown on screen, touching only what changed since the last call.
+ *
+ * The renderer remembers which layout is visible and which numbers the texts were built from, so a steady
+ * tick neither repeats view updates nor allocates: texts are formatted into reused buffers. */
+public class StatusRenderer {
+    public static final int LAYOUT_NONE = -1;
+    public static final int LAYOUT_CONNECTING = 0;
+    public static final int LAYOUT_DISCONNECTED = 1;
+    public static final int LAYOUT_OFF = 2;
+    public static final int LAYOUT_ON = 3;
+    static final int LAYOUT_COUNT = 4;
+
+    private static final String SECONDS_FORMAT = "%d seconds";
+    private static final String ONE_MOMENT = "One moment";
+    private static final String MINUTES_FORMAT = "%d:%02d";
+
+    /* The views the status is rendered into */
+    public interface Display {
+        void setLayoutVisible(int layout, boolean visible);
+
+        void setLengthText(char[] text, int length);
+
+        void setLastSeenText(char[] text, int length);
+    }
+
+    private final Display display;
+    private final int lastSeenThreshold;
+    private final String offlineMinutesFormat;
+    private final String offlineOneHour;
+    private final String offlineHoursFormat;
+
+    private final TextBuffer lengthText = new TextBuffer(16);
+    private final TextBuffer lastSeenText = new TextBuffer(32);
+    private int visibleLayout = LAYOUT_NONE;
+    // the values the texts were last built from, -1 when the text is unset
+    private int renderedLength = -1;
+    private int renderedLastSeen = -1;
+
+    public StatusRenderer(Display display, int lastSeenThreshold, String offlineMinutesFormat, String offlineOneHour,
+                          String offlineHoursFormat) {
+        this.display = display;
+        this.lastSeenThreshold = lastSeenThreshold;
+        this.offlineMinutesFormat = offlineMinutesFormat;
+        this.offlineOneHour = offlineOneHour;
+        this.offlineHoursFormat = offlineHoursFormat;
+    }
+
+    /* Render the status at `now` (seconds), returns the time the rendered status next goes out of date */
+    public int render(Timer timer, int now) {
+        if (timer == null) {
+            showLayout(LAYOUT_CONNECTING);
+            return Integer.MAX_VALUE;
+        }
+
+        int lastSeenLength = now - timer.getLastSeen();
+        if (lastSeenLength >= lastSeenThreshold) {
+            renderLastSeen(lastSeenLength);
+            showLayout(LAYOUT_DISCONNECTED);
+            if (lastSeenLength < 3600) {
+                return now + 1;
+            }
+            return timer.getLastSeen() + (lastSeenLength / 3600 + 1) * 3600;
+        }
+
+        int timerLength = Math.max(0, timer.getEnd() - now);
+        if (timerLength > 0) {
+            renderLength(timerLength);
+            showLayout(LAYOUT_ON);
+            return now + 1;
+        }
+        showLayout(LAYOUT_OFF);
+        // only going offline changes an idle valve
+        return timer.getLastSeen() + lastSeenThreshold;
+    }
+
+    private void showLayout(int layout) {
+        if (layout == visibleLayout) {
+            return;
+        }
+        if (visibleLayout == LAYOUT_NONE) {
+            // nothing is known about the views yet
+            for (int i = 0; i < LAYOUT_COUNT; i++) {
+                display.setLayoutVisible(i, i == layout);
+            }
+        } else {
+            display.setLayoutVisible(visibleLayout, false);
+            display.setLayoutVisible(layout, true);
+        }
+        visibleLayout = layout;
+    }
+
+    private void renderLength(int timerLength) {
+        if (timerLength == renderedLength) {
+            return;
+        }
+        if (timerLength == 1) {
+            lengthText.clear().append(ONE_MOMENT);
+        } else if (timerLength >= 60) {
+            lengthText.format(MINUTES_FORMAT, timerLength / 60, timerLength % 60);
+        } else {
+            lengthText.format(SECONDS_FORMAT, timerLength, 0);
+        }
+        display.setLengthText(lengthText.getChars(), lengthText.length());
+        renderedLength = timerLength;
+    }
+
+    private void renderLastSeen(int lastSeenLength) {
+        // past an hour the text only changes on the hour
+        int shown = lastSeenLength < 3600 ? lastSeenLength : lastSeenLength / 3600 * 3600;
+        if (shown == renderedLastSeen) {
+            return;
+        }
+        if (lastSeenLength < 3600) {
+            // under one hour
+            lastSeenText.format(offlineMinutesFormat, lastSeenLength / 60, lastSeenLength % 60);
+        } else if (lastSeenLength < 7200) {
+            // one hour
+            lastSeenText.clear().append(offlineOneHour);
+        } else {
+            // more than one hour
+            lastSeenText.format(offlineHoursFormat, lastSeenLength / 3600, 0);
+        }
+        display.setLastSeenText(lastSeenText.getChars(), lastSeenText.length());
+        renderedLastSeen = shown;
+    }
+}
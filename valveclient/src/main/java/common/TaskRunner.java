@@ -0,0 +1,178 @@
+package common;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/* Runs background work for one screen on a shared executor and hands the results back on the callback executor.
+ *
+ * Keyed tasks are single-flight: submitting a key that is already running attaches the callback to the running
+ * task instead of starting another one. Every task remembers the generation it was started in, and results
+ * from an older generation are dropped, so supersede() makes sure a slow response for a previous valve can't
+ * overwrite the current one. A blocked HTTP read can't be interrupted, so cancelled tasks may keep running
+ * until their timeout but their results are never delivered. */
+public class TaskRunner {
+    public interface Task<T> {
+        T run() throws Exception;
+    }
+
+    public interface Callback<T> {
+        void onSuccess(T result);
+
+        void onFailure(Exception e);
+    }
+
+    private final ExecutorService executor;
+    private final Executor callbackExecutor;
+    private final Map<String, Flight<?>> keyedFlights = new HashMap<>();
+    private final Set<Flight<?>> flights = new HashSet<>();
+    private int generation = 0;
+
+    public TaskRunner(ExecutorService executor, Executor callbackExecutor) {
+        this.executor = executor;
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    /* Run the task, or join the running task with the same key. Returns false if it joined */
+    public <T> boolean submit(String key, Task<T> task, Callback<T> callback) {
+        Flight<T> flight;
+        synchronized (this) {
+            @SuppressWarnings("unchecked")
+            Flight<T> running = (Flight<T>) keyedFlights.get(key);
+            if (running != null && running.generation == generation) {
+                running.callbacks.add(callback);
+                return false;
+            }
+            flight = new Flight<>(key, task, generation);
+            flight.callbacks.add(callback);
+            keyedFlights.put(key, flight);
+            flights.add(flight);
+        }
+        start(flight);
+        return true;
+    }
+
+    /* Run the task without coalescing */
+    public <T> void run(Task<T> task, Callback<T> callback) {
+        Flight<T> flight;
+        synchronized (this) {
+            flight = new Flight<>(null, task, generation);
+            flight.callbacks.add(callback);
+            flights.add(flight);
+        }
+        start(flight);
+    }
+
+    /* Drop the results of everything that is running now */
+    public synchronized void supersede() {
+        generation++;
+    }
+
+    /* Drop the results of everything that is running now and try to stop it */
+    public void cancelAll() {
+        List<Flight<?>> cancelled;
+        synchronized (this) {
+            generation++;
+            cancelled = new ArrayList<Flight<?>>(flights);
+            flights.clear();
+            keyedFlights.clear();
+        }
+        for (Flight<?> flight : cancelled) {
+            Future<?> future = flight.future;
+            if (future != null) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /* The number of tasks started in the current generation that haven't finished */
+    public synchronized int getInFlightCount() {
+        int count = 0;
+        for (Flight<?> flight : flights) {
+            if (flight.generation == generation) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private synchronized boolean isCurrent(int taskGeneration) {
+        return taskGeneration == generation;
+    }
+
+    private <T> void start(Flight<T> flight) {
+        try {
+            Future<?> future = executor.submit(flight);
+            synchronized (this) {
+                flight.future = future;
+            }
+        } catch (RejectedExecutionException e) {
+            flight.finish(null, e);
+        }
+    }
+
+    private class Flight<T> implements Callable<Void> {
+        final String key;
+        final Task<T> task;
+        final int generation;
+        final List<Callback<T>> callbacks = new ArrayList<>();
+        Future<?> future;
+
+        Flight(String key, Task<T> task, int generation) {
+            this.key = key;
+            this.task = task;
+            this.generation = generation;
+        }
+
+        @Override
+        public Void call() {
+            T result = null;
+            Exception error = null;
+            try {
+                result = task.run();
+            } catch (Exception e) {
+                error = e;
+            }
+            finish(result, error);
+            return null;
+        }
+
+        void finish(final T result, final Exception error) {
+            final List<Callback<T>> listeners;
+            synchronized (TaskRunner.this) {
+                flights.remove(this);
+                if (key != null && keyedFlights.get(key) == this) {
+                    keyedFlights.remove(key);
+                }
+                if (!isCurrent(generation)) {
+                    return;
+                }
+                listeners = new ArrayList<>(callbacks);
+            }
+            callbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // the generation may have changed while this was queued
+                    if (!isCurrent(generation)) {
+                        return;
+                    }
+                    for (Callback<T> callback : listeners) {
+                        if (error == null) {
+                            callback.onSuccess(result);
+                        } else {
+                            callback.onFailure(error);
+                        }
+                    }
+                }
+            });
+        }
+    }
+}
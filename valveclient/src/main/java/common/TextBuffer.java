@@ -0,0 +1,101 @@
+package common;
+
+/* Reusable character buffer for text that is rebuilt often, like a countdown.
+ *
+ * format() understands the %d, %0Nd and %% conversions of the string resources, so localised templates can be
+ * filled in without the allocations of String.format. */
+public class TextBuffer {
+    private char[] chars;
+    private int length;
+
+    public TextBuffer(int capacity) {
+        chars = new char[capacity];
+    }
+
+    public char[] getChars() {
+        return chars;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public TextBuffer clear() {
+        length = 0;
+        return this;
+    }
+
+    public TextBuffer append(char c) {
+        ensureCapacity(length + 1);
+        chars[length++] = c;
+        return this;
+    }
+
+    public TextBuffer append(String s) {
+        ensureCapacity(length + s.length());
+        s.getChars(0, s.length(), chars, length);
+        length += s.length();
+        return this;
+    }
+
+    /* Append the number padded with zeros to at least minDigits digits */
+    public TextBuffer append(int value, int minDigits) {
+        long remaining = value;
+        if (remaining < 0) {
+            append('-');
+            remaining = -remaining;
+        }
+        int digits = 1;
+        for (long limit = 10; limit <= remaining && digits < 19; limit *= 10) {
+            digits++;
+        }
+        digits = Math.max(digits, minDigits);
+        ensureCapacity(length + digits);
+        for (int i = length + digits - 1; i >= length; i--) {
+            chars[i] = (char) ('0' + remaining % 10);
+            remaining /= 10;
+        }
+        length += digits;
+        return this;
+    }
+
+    /* Replace the contents with the template, filling its %d conversions with the arguments in order */
+    public TextBuffer format(String template, int first, int second) {
+        clear();
+        int argument = 0;
+        int i = 0;
+        while (i < template.length()) {
+            char c = template.charAt(i++);
+            if (c != '%' || i == template.length()) {
+                append(c);
+                continue;
+            }
+            if (template.charAt(i) == '%') {
+                append('%');
+                i++;
+                continue;
+            }
+            int minDigits = 0;
+            while (i < template.length() && Character.isDigit(template.charAt(i))) {
+                minDigits = minDigits * 10 + (template.charAt(i++) - '0');
+            }
+            // skip the conversion character
+            i++;
+            append(argument++ == 0 ? first : second, minDigits);
+        }
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return new String(chars, 0, length);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > chars.length) {
+            char[] larger = new char[Math.max(capacity, chars.length * 2)];
+            System.arraycopy(chars, 0, larger, 0, length);
+            chars = larger;
+        }
+    }
+}
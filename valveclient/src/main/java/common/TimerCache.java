@@ -0,0 +1,146 @@
+package common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import models.Timer;
+
+/* Keeps the last known timer of each valve on disk so it can be shown before the first fetch completes.
+ *
+ * Each valve gets a small binary file named after the hex encoded valve name. Files are written to a temporary
+ * file of their own and renamed so a crash or a concurrent write never leaves a half written entry, and entries
+ * older than the TTL are deleted when read or evicted. Times are in milliseconds. */
+public class TimerCache {
+    private static final int MAGIC = 0x56544331; // "VTC1"
+    private static final String SUFFIX = ".timer";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /* A cached timer and when it was fetched */
+    public static class Entry {
+        private final Timer timer;
+        private final long fetchedAt;
+
+        Entry(Timer timer, long fetchedAt) {
+            this.timer = timer;
+            this.fetchedAt = fetchedAt;
+        }
+
+        public Timer getTimer() {
+            return timer;
+        }
+
+        public long getFetchedAt() {
+            return fetchedAt;
+        }
+    }
+
+    private final File directory;
+    private final long ttl;
+    private final ServerClock clock;
+
+    public TimerCache(File directory, long ttl) {
+        this(directory, ttl, ServerClock.LOCAL);
+    }
+
+    /* Create a cache whose timers count down on the given server clock */
+    public TimerCache(File directory, long ttl, ServerClock clock) {
+        this.directory = directory;
+        this.ttl = ttl;
+        this.clock = clock;
+    }
+
+    /* Get the cached timer for the valve, null if there is none or it expired */
+    public Entry get(String timerName, long now) {
+        File file = fileFor(timerName);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Not a timer cache file");
+                }
+                long fetchedAt = in.readLong();
+                String id = in.readUTF();
+                String name = in.readUTF();
+                int end = in.readInt();
+                int lastSeen = in.readInt();
+                if (now - fetchedAt > ttl || !name.equals(timerName)) {
+                    file.delete();
+                    return null;
+                }
+                return new Entry(new Timer(id, name, end, lastSeen, clock), fetchedAt);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // a corrupt entry is as good as none
+            file.delete();
+            return null;
+        }
+    }
+
+    /* Store the timer, returns false if it could not be written */
+    public boolean put(Timer timer, long fetchedAt) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            return false;
+        }
+        File file = fileFor(timer.getName());
+        File temp = null;
+        try {
+            // each write has its own temporary file, the last rename wins
+            temp = File.createTempFile(file.getName(), TEMP_SUFFIX, directory);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeLong(fetchedAt);
+                out.writeUTF(timer.getId());
+                out.writeUTF(timer.getName());
+                out.writeInt(timer.getEnd());
+                out.writeInt(timer.getLastSeen());
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            if (temp != null) {
+                temp.delete();
+            }
+            return false;
+        }
+    }
+
+    /* Delete the entries that have expired, and temporary files a crash left behind */
+    public void evictExpired(long now) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            boolean cacheFile = file.getName().endsWith(SUFFIX) || file.getName().endsWith(TEMP_SUFFIX);
+            if (cacheFile && now - file.lastModified() > ttl) {
+                file.delete();
+            }
+        }
+    }
+
+    private File fileFor(String timerName) {
+        byte[] bytes = timerName.getBytes(HttpTransport.UTF_8);
+        StringBuilder name = new StringBuilder(bytes.length * 2 + SUFFIX.length());
+        for (byte b : bytes) {
+            name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return new File(directory, name.append(SUFFIX).toString());
+    }
+}
@@ -0,0 +1,472 @@
+package common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import models.Timer;
+
+/* Streaming decoder for RESTdb timer documents.
+ *
+ * Reads `_id`, `name`, `end` and `last_seen` straight from the response bytes and skips every other value
+ * without building it, so the memory used does not depend on the size of the document or the result array. */
+public class TimerDecoder {
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_DEPTH = 512;
+    // integers with more digits may not fit a long and are parsed as doubles
+    private static final int MAX_LONG_DIGITS = 18;
+    private static final int REPLACEMENT_CHARACTER = 0xfffd;
+
+    private static final int FIELD_OTHER = 0;
+    private static final int FIELD_ID = 1;
+    private static final int FIELD_NAME = 2;
+    private static final int FIELD_END = 3;
+    private static final int FIELD_LAST_SEEN = 4;
+    private static final byte[][] FIELD_NAMES = {
+            null,
+            "_id".getBytes(HttpTransport.UTF_8),
+            "name".getBytes(HttpTransport.UTF_8),
+            "end".getBytes(HttpTransport.UTF_8),
+            "last_seen".getBytes(HttpTransport.UTF_8),
+    };
+
+    private final ServerClock clock;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private byte[] scratch = new byte[64];
+    private InputStream in;
+    private int position;
+    private int limit;
+    private long offset;
+
+    // fields of the object being decoded
+    private String id;
+    private String name;
+    private long end;
+    private long lastSeen;
+    private int found;
+
+    public TimerDecoder() {
+        this(ServerClock.LOCAL);
+    }
+
+    /* Create a decoder for responses from the server whose clock is given */
+    public TimerDecoder(ServerClock clock) {
+        this.clock = clock;
+    }
+
+    /* Decode the first timer of a query result array, null if the array is empty */
+    public Timer decodeFirst(InputStream in, String timerName) throws IOException {
+        reset(in);
+        expect('[');
+        if (peek() == ']') {
+            return null;
+        }
+        return readTimer(timerName);
+    }
+
+    /* Decode every timer of a query result array, names are taken from the documents */
+    public List<Timer> decodeAll(InputStream in) throws IOException {
+        reset(in);
+        List<Timer> timers = new ArrayList<>();
+        expect('[');
+        if (peek() == ']') {
+            return timers;
+        }
+        do {
+            timers.add(readTimer(null));
+        } while (nextSeparator(']'));
+        return timers;
+    }
+
+    /* Decode a single timer document, like the response to a PATCH */
+    public Timer decodeObject(InputStream in, String timerName) throws IOException {
+        reset(in);
+        return readTimer(timerName);
+    }
+
+    private void reset(InputStream in) {
+        this.in = in;
+        position = 0;
+        limit = 0;
+        offset = 0;
+    }
+
+    /* Read one object, the name from the document takes precedence over the given one */
+    private Timer readTimer(String timerName) throws IOException {
+        id = null;
+        name = null;
+        found = 0;
+        expect('{');
+        if (peek() == '}') {
+            position++;
+        } else {
+            do {
+                int field = readFieldName();
+                expect(':');
+                readFieldValue(field);
+            } while (nextSeparator('}'));
+        }
+        int required = (1 << FIELD_ID) | (1 << FIELD_END) | (1 << FIELD_LAST_SEEN);
+        if ((found & required) != required) {
+            throw new IOException("Timer document is missing _id, end or last_seen");
+        }
+        return new Timer(id, name != null ? name : timerName, (int) end, (int) lastSeen, clock);
+    }
+
+    private void readFieldValue(int field) throws IOException {
+        byte next = peek();
+        if (field == FIELD_ID && next == '"') {
+            id = readString();
+        } else if (field == FIELD_NAME && next == '"') {
+            name = readString();
+        } else if (field == FIELD_END && isNumberStart(next)) {
+            end = readLong();
+        } else if (field == FIELD_LAST_SEEN && isNumberStart(next)) {
+            lastSeen = readLong();
+        } else {
+            skipValue();
+            return;
+        }
+        found |= 1 << field;
+    }
+
+    /* Consume a ',' and return true, or consume the closing bracket and return false */
+    private boolean nextSeparator(char close) throws IOException {
+        byte c = nextToken();
+        if (c == ',') {
+            return true;
+        }
+        if (c != close) {
+            throw syntaxError("Expected ',' or '" + close + "'");
+        }
+        return false;
+    }
+
+    /* Match the key against the fields we want without decoding it */
+    private int readFieldName() throws IOException {
+        expect('"');
+        int length = 0;
+        boolean escaped = false;
+        while (true) {
+            byte c = readByte();
+            if (c == '"') {
+                break;
+            }
+            if (c == '\\') {
+                escaped = true;
+                readByte();
+            }
+            if (length < scratch.length) {
+                scratch[length] = c;
+            }
+            length++;
+        }
+        if (escaped) {
+            return FIELD_OTHER;
+        }
+        for (int field = FIELD_ID; field < FIELD_NAMES.length; field++) {
+            if (matches(FIELD_NAMES[field], length)) {
+                return field;
+            }
+        }
+        return FIELD_OTHER;
+    }
+
+    private boolean matches(byte[] fieldName, int length) {
+        if (fieldName.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (scratch[i] != fieldName[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String readString() throws IOException {
+        expect('"');
+        int length = 0;
+        // a high surrogate from a \\u escape waiting for the low one that completes it
+        int highSurrogate = -1;
+        while (true) {
+            byte c = readByte();
+            if (c == '\\' && peekRaw() == 'u') {
+                position++;
+                int unit = readHexChar();
+                if (highSurrogate >= 0 && Character.isLowSurrogate((char) unit)) {
+                    length = appendCodePoint(length, Character.toCodePoint((char) highSurrogate, (char) unit));
+                    highSurrogate = -1;
+                    continue;
+                }
+                if (highSurrogate >= 0) {
+                    length = appendCodePoint(length, REPLACEMENT_CHARACTER);
+                }
+                if (Character.isHighSurrogate((char) unit)) {
+                    highSurrogate = unit;
+                    continue;
+                }
+                // an unpaired surrogate can't be encoded and is replaced like String does
+                highSurrogate = -1;
+                length = appendCodePoint(length, Character.isLowSurrogate((char) unit) ? REPLACEMENT_CHARACTER : unit);
+                continue;
+            }
+            if (highSurrogate >= 0) {
+                length = appendCodePoint(length, REPLACEMENT_CHARACTER);
+                highSurrogate = -1;
+            }
+            if (c == '"') {
+                break;
+            }
+            if (c == '\\') {
+                c = readByte();
+                switch (c) {
+                    case 'b':
+                        c = '\b';
+                        break;
+                    case 'f':
+                        c = '\f';
+                        break;
+                    case 'n':
+                        c = '\n';
+                        break;
+                    case 'r':
+                        c = '\r';
+                        break;
+                    case 't':
+                        c = '\t';
+                        break;
+                    default:
+                        // '"', '\\' and '/' stand for themselves
+                        break;
+                }
+            }
+            length = append(length, c);
+        }
+        return new String(scratch, 0, length, HttpTransport.UTF_8);
+    }
+
+    private int readHexChar() throws IOException {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            int digit = Character.digit(readByte(), 16);
+            if (digit < 0) {
+                throw syntaxError("Invalid unicode escape");
+            }
+            value = value * 16 + digit;
+        }
+        return value;
+    }
+
+    /* Append a code point from \\u escapes as UTF-8, a surrogate pair is combined into one four byte sequence */
+    private int appendCodePoint(int length, int c) {
+        if (c < 0x80) {
+            return append(length, (byte) c);
+        }
+        if (c < 0x800) {
+            length = append(length, (byte) (0xc0 | (c >> 6)));
+        } else if (c < 0x10000) {
+            length = append(length, (byte) (0xe0 | (c >> 12)));
+            length = append(length, (byte) (0x80 | ((c >> 6) & 0x3f)));
+        } else {
+            length = append(length, (byte) (0xf0 | (c >> 18)));
+            length = append(length, (byte) (0x80 | ((c >> 12) & 0x3f)));
+            length = append(length, (byte) (0x80 | ((c >> 6) & 0x3f)));
+        }
+        return append(length, (byte) (0x80 | (c & 0x3f)));
+    }
+
+    private int append(int length, byte c) {
+        if (length == scratch.length) {
+            byte[] larger = new byte[scratch.length * 2];
+            System.arraycopy(scratch, 0, larger, 0, length);
+            scratch = larger;
+        }
+        scratch[length] = c;
+        return length + 1;
+    }
+
+    /* Read a number, one with a fraction or exponent is rounded toward zero like JSONObject.getLong does */
+    private long readLong() throws IOException {
+        nextToken();
+        position--;
+        int length = 0;
+        boolean negative = false;
+        if (peekRaw() == '-') {
+            negative = true;
+            length = append(length, buffer[position++]);
+        }
+        long value = 0;
+        int digits = 0;
+        while (ensure() && isDigit(buffer[position])) {
+            value = value * 10 + (buffer[position] - '0');
+            length = append(length, buffer[position++]);
+            digits++;
+        }
+        if (digits == 0) {
+            throw syntaxError("Expected a number");
+        }
+        boolean integer = digits <= MAX_LONG_DIGITS;
+        while (ensure() && isNumberTail(buffer[position])) {
+            length = append(length, buffer[position++]);
+            integer = false;
+        }
+        if (integer) {
+            return negative ? -value : value;
+        }
+        try {
+            return (long) Double.parseDouble(new String(scratch, 0, length, HttpTransport.UTF_8));
+        } catch (NumberFormatException e) {
+            throw syntaxError("Invalid number");
+        }
+    }
+
+    /* Skip any value, nested containers are tracked with a depth counter instead of recursion */
+    private void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            byte c = nextToken();
+            switch (c) {
+                case '{':
+                case '[':
+                    if (++depth > MAX_DEPTH) {
+                        throw syntaxError("Nesting too deep");
+                    }
+                    break;
+                case '}':
+                case ']':
+                    depth--;
+                    break;
+                case '"':
+                    skipStringBody();
+                    break;
+                case ',':
+                case ':':
+                    if (depth == 0) {
+                        throw syntaxError("Unexpected '" + (char) c + "'");
+                    }
+                    break;
+                default:
+                    if (!isNumberStart(c) && !isLetter(c)) {
+                        throw syntaxError("Unexpected character");
+                    }
+                    skipLiteral();
+                    break;
+            }
+        } while (depth > 0);
+        if (depth < 0) {
+            throw syntaxError("Unbalanced brackets");
+        }
+    }
+
+    /* Skip to the closing quote, scanning the buffer directly since most skipped bytes are in strings */
+    private void skipStringBody() throws IOException {
+        while (true) {
+            if (!ensure()) {
+                throw syntaxError("Unexpected end of input");
+            }
+            int end = limit;
+            for (int i = position; i < end; i++) {
+                byte c = buffer[i];
+                if (c == '"') {
+                    position = i + 1;
+                    return;
+                }
+                if (c == '\\') {
+                    position = i + 1;
+                    readByte();
+                    break;
+                }
+                position = i + 1;
+            }
+        }
+    }
+
+    /* Skip the rest of a number, true, false or null */
+    private void skipLiteral() throws IOException {
+        while (ensure()) {
+            byte c = buffer[position];
+            if (isDigit(c) || isLetter(c) || c == '.' || c == '+' || c == '-') {
+                position++;
+            } else {
+                break;
+            }
+        }
+    }
+
+    private void expect(char expected) throws IOException {
+        if (nextToken() != expected) {
+            throw syntaxError("Expected '" + expected + "'");
+        }
+    }
+
+    /* Peek at the next non-whitespace byte without consuming it */
+    private byte peek() throws IOException {
+        byte c = nextToken();
+        position--;
+        return c;
+    }
+
+    private byte peekRaw() throws IOException {
+        if (!ensure()) {
+            throw syntaxError("Unexpected end of input");
+        }
+        return buffer[position];
+    }
+
+    /* Consume and return the next non-whitespace byte */
+    private byte nextToken() throws IOException {
+        while (true) {
+            byte c = readByte();
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return c;
+            }
+        }
+    }
+
+    private byte readByte() throws IOException {
+        if (!ensure()) {
+            throw syntaxError("Unexpected end of input");
+        }
+        return buffer[position++];
+    }
+
+    /* Make sure there is at least one unread byte in the buffer, false at the end of the stream */
+    private boolean ensure() throws IOException {
+        if (position < limit) {
+            return true;
+        }
+        offset += limit;
+        position = 0;
+        limit = 0;
+        while (limit == 0) {
+            int count = in.read(buffer, 0, buffer.length);
+            if (count == -1) {
+                return false;
+            }
+            limit = count;
+        }
+        return true;
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException(String.format("%s at byte %d", message, offset + position));
+    }
+
+    private static boolean isDigit(byte c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isLetter(byte c) {
+        return c >= 'a' && c <= 'z';
+    }
+
+    private static boolean isNumberTail(byte c) {
+        return isDigit(c) || c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-';
+    }
+
+    private static boolean isNumberStart(byte c) {
+        return c == '-' || isDigit(c);
+    }
+}
@@ -0,0 +1,59 @@
+package common;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import models.Timer;
+
+/* One fetch of a valve's timer started before the screen that shows it exists, which then takes it over.
+ *
+ * The fetch also opens the keep-alive connection to the server, so the screen's later requests skip the DNS,
+ * TCP and TLS setup. A prefetch is taken at most once, and not at all once it is older than the maximum age or
+ * if it is for another valve, the caller fetches as usual then. Times are milliseconds of any monotonic clock. */
+public class TimerPrefetch {
+    private final long maxAge;
+    private String name;
+    private Future<Timer> future;
+    private long startTime;
+
+    public TimerPrefetch(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /* Start fetching the named timer, replacing a prefetch that was not taken */
+    public synchronized void start(ValveClient client, String name, long now) {
+        this.name = name;
+        this.future = client.get(name);
+        this.startTime = now;
+    }
+
+    /* The prefetch of the named timer, null if there is none to take over */
+    public synchronized Future<Timer> take(String name, long now) {
+        Future<Timer> taken = future;
+        boolean usable = taken != null && this.name.equals(name) && now - startTime <= maxAge;
+        future = null;
+        this.name = null;
+        return usable ? taken : null;
+    }
+
+    /* Wait for a taken prefetch, null if there is no such timer, throws what the fetch threw */
+    public static Timer await(Future<Timer> prefetch, long timeoutMillis) throws IOException {
+        try {
+            return prefetch.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new InterruptedIOException("Prefetch timed out");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the prefetch");
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package common;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import models.Timer;
+
+/* Holds the current timer snapshot for readers on any thread.
+ *
+ * Every snapshot is published, but subscribers are only told when it changes what the status shows: the valve,
+ * the end of its countdown, or when it was last seen while it is offline. A valve that reports in every few
+ * seconds moves `last_seen` on every poll without changing the screen. A listener is always handed the latest
+ * snapshot at the time it runs rather than the one that triggered it, so when sets race the last notification
+ * reflects the final state. */
+public class TimerStore {
+    public interface Listener {
+        void onTimerChanged(Timer timer);
+    }
+
+    private final int lastSeenThreshold;
+    private final AtomicReference<Timer> current = new AtomicReference<>();
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /* Create a store for a screen that shows a valve offline once it wasn't seen for `lastSeenThreshold` seconds */
+    public TimerStore(int lastSeenThreshold) {
+        this.lastSeenThreshold = lastSeenThreshold;
+    }
+
+    /* The current snapshot, null if nothing is known */
+    public Timer get() {
+        return current.get();
+    }
+
+    /* Publish a new snapshot, returns false if it shows the same as the current one and nobody was told */
+    public boolean set(Timer timer) {
+        Timer previous = current.getAndSet(timer);
+        if (showsTheSame(previous, timer)) {
+            return false;
+        }
+        notifyListeners();
+        return true;
+    }
+
+    public void subscribe(Listener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    private boolean showsTheSame(Timer a, Timer b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        if (!equal(a.getId(), b.getId()) || !equal(a.getName(), b.getName()) || a.getEnd() != b.getEnd()) {
+            return false;
+        }
+        // how long ago an online valve was seen isn't shown
+        return a.getLastSeen() == b.getLastSeen() || isOnline(a) && isOnline(b);
+    }
+
+    private boolean isOnline(Timer timer) {
+        return timer.getTimeSinceLastSeen() < lastSeenThreshold;
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private void notifyListeners() {
+        for (Listener listener : listeners) {
+            listener.onTimerChanged(current.get());
+        }
+    }
+}
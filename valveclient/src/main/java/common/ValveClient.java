@@ -0,0 +1,462 @@
+package common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import models.Timer;
+
+/* Client for the timers collection that runs on any JVM, used by the app and the command line alike.
+ *
+ * The blocking calls run on the caller's thread. The async calls run on the executor, where every task is a
+ * single request that never waits for another one: work that needs several requests submits the next one
+ * when the previous is done, so the executor's size is the number of requests in flight and a large batch
+ * can't starve itself. Looking up many valves takes one query per MAX_NAMES_PER_QUERY names, and the commands
+ * for a batch start as soon as its query is back. Timer ends are server time in seconds. */
+public class ValveClient {
+    // keeps the query url at a reasonable length
+    static final int MAX_NAMES_PER_QUERY = 100;
+    // a valve that hasn't checked in for this many seconds is offline
+    public static final int LAST_SEEN_THRESHOLD = 10;
+    private static final long WATCH_TICK = 1000;
+    // only the fields the client reads are sent back, a single valve query already knows the name
+    private static final String TIMER_FIELDS = fieldsHint("_id", "end", "last_seen");
+    private static final String NAMED_TIMER_FIELDS = fieldsHint("_id", "name", "end", "last_seen");
+
+    /* The valve a command was for doesn't exist */
+    public static class NotFoundException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+
+        public NotFoundException(String name) {
+            super("No valve named " + name);
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    /* Told about the valves of a watch on the client's executor */
+    public interface WatchListener {
+        /* The valve was seen for the first time or changed, `timer` is null if there is no such valve */
+        void onTimerChanged(String name, Timer timer);
+
+        /* A poll failed, the watch backs off and keeps going */
+        void onError(Exception e);
+    }
+
+    private final HttpTransport transport;
+    private final ExecutorService executor;
+    private ScheduledExecutorService scheduler;
+    private final ThreadLocal<TimerDecoder> decoders = new ThreadLocal<TimerDecoder>() {
+        @Override
+        protected TimerDecoder initialValue() {
+            return new TimerDecoder(transport.getServerClock());
+        }
+    };
+
+    /* Create a client with its own pool that keeps at most `parallelism` requests in flight */
+    public ValveClient(HttpTransport transport, int parallelism) {
+        this(transport, createExecutor(parallelism));
+    }
+
+    /* Create a client that runs its async calls on the given executor */
+    public ValveClient(HttpTransport transport, ExecutorService executor) {
+        this.transport = transport;
+        this.executor = executor;
+    }
+
+    private static ExecutorService createExecutor(int parallelism) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(parallelism, parallelism, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), daemonThreads("ValveClient"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    public HttpTransport getTransport() {
+        return transport;
+    }
+
+    /* Get the named timer, null if there is no such timer, throws if the request failed */
+    public Timer fetch(final String name) throws IOException {
+        return transport.get("?q=" + encode(nameQuery(name)) + "&h=" + TIMER_FIELDS,
+                new HttpTransport.ResponseReader<Timer>() {
+                    @Override
+                    public Timer read(InputStream in) throws IOException {
+                        return decoders.get().decodeFirst(in, name);
+                    }
+                });
+    }
+
+    /* Get the named timers one query per batch, missing names are left out of the map */
+    public Map<String, Timer> fetchAll(Collection<String> names) throws IOException {
+        Map<String, Timer> timers = new HashMap<>();
+        for (List<String> batch : batches(names)) {
+            timers.putAll(fetchBatch(batch));
+        }
+        return timers;
+    }
+
+    /* Set the end of the timer to the given server time in seconds and return the updated timer */
+    public Timer patchEnd(final Timer timer, int end) throws IOException {
+        String body = String.format("{\"end\":%d}", end);
+        return transport.patch("/" + timer.getId() + "?h=" + TIMER_FIELDS, body,
+                new HttpTransport.ResponseReader<Timer>() {
+                    @Override
+                    public Timer read(InputStream in) throws IOException {
+                        return decoders.get().decodeObject(in, timer.getName());
+                    }
+                });
+    }
+
+    /* Get the named timer, the future holds null if there is no such timer */
+    public Future<Timer> get(final String name) {
+        final SettableFuture<Timer> result = new SettableFuture<>();
+        submit(result, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result.set(fetch(name));
+                } catch (Exception e) {
+                    result.setException(e);
+                }
+            }
+        });
+        return result;
+    }
+
+    /* Get the named timers with the batches queried in parallel, missing names are left out of the map */
+    public Future<Map<String, Timer>> getAll(Collection<String> names) {
+        final SettableFuture<Map<String, Timer>> result = new SettableFuture<>();
+        final List<List<String>> batches = batches(names);
+        final Map<String, Timer> timers = new HashMap<>();
+        if (batches.isEmpty()) {
+            result.set(timers);
+            return result;
+        }
+        final AtomicInteger remaining = new AtomicInteger(batches.size());
+        for (final List<String> batch : batches) {
+            submit(result, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Map<String, Timer> found = fetchBatch(batch);
+                        synchronized (timers) {
+                            timers.putAll(found);
+                        }
+                        if (remaining.decrementAndGet() == 0) {
+                            synchronized (timers) {
+                                result.set(new HashMap<>(timers));
+                            }
+                        }
+                    } catch (Exception e) {
+                        result.setException(e);
+                    }
+                }
+            });
+        }
+        return result;
+    }
+
+    /* Turn the valve on for `seconds`, fails with NotFoundException if there is no such valve */
+    public Future<Timer> set(String name, int seconds) {
+        return setAll(Collections.singletonList(name), seconds).get(name);
+    }
+
+    /* Turn the valve off */
+    public Future<Timer> stop(String name) {
+        return set(name, 0);
+    }
+
+    /* Turn every named valve on for `seconds`, returns a future per distinct name in the given order */
+    public Map<String, Future<Timer>> setAll(Collection<String> names, final int seconds) {
+        final Map<String, Future<Timer>> results = new LinkedHashMap<>();
+        for (List<String> batch : batches(names)) {
+            final Map<String, SettableFuture<Timer>> batchResults = new LinkedHashMap<>();
+            for (String name : batch) {
+                SettableFuture<Timer> result = new SettableFuture<>();
+                batchResults.put(name, result);
+                results.put(name, result);
+            }
+            submit(batchResults.values(), new Runnable() {
+                @Override
+                public void run() {
+                    Map<String, Timer> found;
+                    try {
+                        found = fetchBatch(batchResults.keySet());
+                    } catch (Exception e) {
+                        for (SettableFuture<Timer> result : batchResults.values()) {
+                            result.setException(e);
+                        }
+                        return;
+                    }
+                    for (Map.Entry<String, SettableFuture<Timer>> entry : batchResults.entrySet()) {
+                        Timer timer = found.get(entry.getKey());
+                        if (timer == null) {
+                            entry.getValue().setException(new NotFoundException(entry.getKey()));
+                        } else {
+                            sendEnd(timer, seconds, entry.getValue());
+                        }
+                    }
+                }
+            });
+        }
+        return results;
+    }
+
+    /* Turn every named valve off */
+    public Map<String, Future<Timer>> stopAll(Collection<String> names) {
+        return setAll(names, 0);
+    }
+
+    /* Poll the named valves until the watch is cancelled, as often as the busiest of them needs */
+    public synchronized Watch watch(Collection<String> names, WatchListener listener) {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads("ValveClient watch"));
+        }
+        Watch watch = new Watch(new ArrayList<>(new LinkedHashSet<>(names)), listener);
+        watch.future = scheduler.scheduleWithFixedDelay(watch, 0, WATCH_TICK, TimeUnit.MILLISECONDS);
+        return watch;
+    }
+
+    /* Stop the threads of the client, requests in flight are finished */
+    public synchronized void shutdown() {
+        executor.shutdown();
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+
+    /* A running watch, see watch() */
+    public class Watch implements Runnable {
+        private final List<String> names;
+        private final WatchListener listener;
+        private final PollScheduler pollScheduler = new PollScheduler(LAST_SEEN_THRESHOLD);
+        private final RequestPolicy requestPolicy = new RequestPolicy();
+        private final Map<String, Timer> known = new HashMap<>();
+        private volatile boolean cancelled = false;
+        private boolean polling = false;
+        private int nextPoll = 0;
+        ScheduledFuture<?> future;
+
+        Watch(List<String> names, WatchListener listener) {
+            this.names = names;
+            this.listener = listener;
+        }
+
+        public void cancel() {
+            cancelled = true;
+            future.cancel(false);
+        }
+
+        /* A tick on the scheduler, starts a poll when one is due */
+        @Override
+        public void run() {
+            ServerClock clock = transport.getServerClock();
+            synchronized (this) {
+                if (cancelled || polling || clock.currentTimeSeconds() < nextPoll
+                        || !requestPolicy.allowRequest(clock.monotonicMillis())) {
+                    return;
+                }
+                polling = true;
+            }
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        poll();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    polling = false;
+                }
+            }
+        }
+
+        private void poll() {
+            ServerClock clock = transport.getServerClock();
+            try {
+                Map<String, Timer> timers = fetchAll(names);
+                int now = clock.currentTimeSeconds();
+                int interval = Integer.MAX_VALUE;
+                for (String name : names) {
+                    Timer timer = timers.get(name);
+                    boolean changed = !known.containsKey(name) || !equal(known.get(name), timer);
+                    known.put(name, timer);
+                    if (changed && !cancelled) {
+                        listener.onTimerChanged(name, timer);
+                    }
+                    interval = Math.min(interval, pollScheduler.getInterval(timer, now));
+                }
+                synchronized (this) {
+                    requestPolicy.onSuccess(clock.monotonicMillis());
+                    nextPoll = now + interval;
+                    polling = false;
+                }
+            } catch (Exception e) {
+                synchronized (this) {
+                    requestPolicy.onFailure(clock.monotonicMillis(), e);
+                    polling = false;
+                }
+                if (!cancelled) {
+                    listener.onError(e);
+                }
+            }
+        }
+    }
+
+    private void sendEnd(final Timer timer, final int seconds, final SettableFuture<Timer> result) {
+        submit(result, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result.set(patchEnd(timer, transport.getServerClock().currentTimeSeconds() + seconds));
+                } catch (Exception e) {
+                    result.setException(e);
+                }
+            }
+        });
+    }
+
+    private Map<String, Timer> fetchBatch(Collection<String> batch) throws IOException {
+        List<Timer> found = transport.get("?q=" + encode(nameInQuery(batch)) + "&h=" + NAMED_TIMER_FIELDS,
+                new HttpTransport.ResponseReader<List<Timer>>() {
+                    @Override
+                    public List<Timer> read(InputStream in) throws IOException {
+                        return decoders.get().decodeAll(in);
+                    }
+                });
+        Map<String, Timer> timers = new HashMap<>();
+        for (Timer timer : found) {
+            // keep the first match like fetch() does
+            if (timer.getName() != null && !timers.containsKey(timer.getName())) {
+                timers.put(timer.getName(), timer);
+            }
+        }
+        return timers;
+    }
+
+    private void submit(SettableFuture<?> result, Runnable task) {
+        submit(Collections.<SettableFuture<?>>singletonList(result), task);
+    }
+
+    private void submit(Collection<? extends SettableFuture<?>> results, Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            for (SettableFuture<?> result : results) {
+                result.setException(e);
+            }
+        }
+    }
+
+    /* Split the distinct names into query sized batches */
+    static List<List<String>> batches(Collection<String> names) {
+        List<String> distinct = new ArrayList<>(new LinkedHashSet<>(names));
+        List<List<String>> batches = new ArrayList<>();
+        for (int start = 0; start < distinct.size(); start += MAX_NAMES_PER_QUERY) {
+            batches.add(distinct.subList(start, Math.min(distinct.size(), start + MAX_NAMES_PER_QUERY)));
+        }
+        return batches;
+    }
+
+    /* Build a query matching the name: {"name":"a"} */
+    public static String nameQuery(String name) {
+        StringBuilder query = new StringBuilder("{\"name\":");
+        appendJsonString(query, name);
+        return query.append('}').toString();
+    }
+
+    /* Build a query matching any of the names: {"name":{"$in":["a","b"]}} */
+    static String nameInQuery(Collection<String> names) {
+        StringBuilder query = new StringBuilder("{\"name\":{\"$in\":[");
+        boolean first = true;
+        for (String name : names) {
+            if (!first) {
+                query.append(',');
+            }
+            appendJsonString(query, name);
+            first = false;
+        }
+        return query.append("]}}").toString();
+    }
+
+    /* Build the url encoded RESTdb hint that limits the returned fields: {"$fields":{"a":1,"b":1}} */
+    static String fieldsHint(String... fields) {
+        StringBuilder hint = new StringBuilder("{\"$fields\":{");
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                hint.append(',');
+            }
+            appendJsonString(hint, fields[i]);
+            hint.append(":1");
+        }
+        return encode(hint.append("}}").toString());
+    }
+
+    /* Append the value as a quoted JSON string */
+    public static void appendJsonString(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    /* Url encode a query parameter */
+    public static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + " " + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
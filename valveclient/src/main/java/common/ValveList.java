@@ -0,0 +1,160 @@
+package common;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import models.Timer;
+
+/* The valves of the dashboard in display order, with their timers and when each is due for a poll.
+ *
+ * Every change is reported to the listener as the smallest set of row operations, in the shape RecyclerView's
+ * adapter notifications take: editing the list of names inserts, removes and moves rows by name, and a poll
+ * result only reports the rows whose timer actually changed. Names are unique, so a keyed diff is enough and
+ * no general list diff has to run. */
+public class ValveList {
+    /* Row operations, positions are in the list as it is after the operations reported before */
+    public interface Listener {
+        void onInserted(int position, int count);
+
+        void onRemoved(int position, int count);
+
+        void onMoved(int fromPosition, int toPosition);
+
+        void onChanged(int position);
+    }
+
+    private static class Row {
+        final String name;
+        // null until the first poll and for names the server doesn't know
+        Timer timer;
+        int nextCheck = 0;
+
+        Row(String name) {
+            this.name = name;
+        }
+    }
+
+    private final Listener listener;
+    private final ArrayList<Row> rows = new ArrayList<>();
+    private final Map<String, Row> rowsByName = new HashMap<>();
+
+    public ValveList(Listener listener) {
+        this.listener = listener;
+    }
+
+    /* Show these valves in this order, keeping the timers of the names that stay */
+    public void setNames(List<String> names) {
+        Set<String> wanted = new HashSet<>(names);
+        for (int i = rows.size() - 1; i >= 0; i--) {
+            if (!wanted.contains(rows.get(i).name)) {
+                rowsByName.remove(rows.remove(i).name);
+                listener.onRemoved(i, 1);
+            }
+        }
+        int position = 0;
+        for (String name : names) {
+            if (position < rows.size() && rows.get(position).name.equals(name)) {
+                position++;
+                continue;
+            }
+            Row row = rowsByName.get(name);
+            if (row == null) {
+                row = new Row(name);
+                rowsByName.put(name, row);
+                rows.add(position, row);
+                listener.onInserted(position, 1);
+            } else {
+                int from = indexOf(name, position);
+                if (from < 0) {
+                    // a duplicate of a name placed earlier
+                    continue;
+                }
+                rows.add(position, rows.remove(from));
+                listener.onMoved(from, position);
+            }
+            position++;
+        }
+    }
+
+    /* Add the names whose poll is due at `now` (seconds) to `out` */
+    public void collectDue(int now, Collection<String> out) {
+        for (int i = 0; i < rows.size(); i++) {
+            Row row = rows.get(i);
+            if (now >= row.nextCheck) {
+                out.add(row.name);
+            }
+        }
+    }
+
+    /* Take the result of a poll at `now` for the names, names missing from the map have no timer */
+    public void onPolled(Collection<String> names, Map<String, Timer> timers, int now, PollScheduler scheduler) {
+        for (String name : names) {
+            Row row = rowsByName.get(name);
+            if (row == null) {
+                // removed while the poll was running
+                continue;
+            }
+            Timer timer = timers.get(name);
+            row.nextCheck = now + scheduler.getInterval(timer, now);
+            update(row, timer);
+        }
+    }
+
+    /* Show a timer that didn't come from a poll, such as a pushed change */
+    public void setTimer(Timer timer) {
+        Row row = rowsByName.get(timer.getName());
+        if (row != null) {
+            update(row, timer);
+        }
+    }
+
+    /* Poll every valve on the next tick */
+    public void checkAll() {
+        for (int i = 0; i < rows.size(); i++) {
+            rows.get(i).nextCheck = 0;
+        }
+    }
+
+    public int size() {
+        return rows.size();
+    }
+
+    public String getName(int position) {
+        return rows.get(position).name;
+    }
+
+    public Timer getTimer(int position) {
+        return rows.get(position).timer;
+    }
+
+    public List<String> getNames() {
+        List<String> names = new ArrayList<>(rows.size());
+        for (Row row : rows) {
+            names.add(row.name);
+        }
+        return Collections.unmodifiableList(names);
+    }
+
+    private void update(Row row, Timer timer) {
+        if (timer == null ? row.timer == null : timer.equals(row.timer)) {
+            return;
+        }
+        row.timer = timer;
+        listener.onChanged(indexOf(row.name, 0));
+    }
+
+    private int indexOf(String name, int from) {
+        for (int i = from; i < rows.size(); i++) {
+            if (rows.get(i).name.equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,85 @@
+package models;
+
+/* Immutable recurring run of a valve: on at a local time of day for a fixed length, on some days of the week.
+ *
+ * Days are a bit mask with bit 0 for Sunday, in the order of Calendar.DAY_OF_WEEK. */
+public final class Schedule {
+    public static final int EVERY_DAY = 0x7f;
+
+    private final String id;
+    private final String valveName;
+    // minutes after local midnight
+    private final int startMinute;
+    private final int lengthSeconds;
+    private final int days;
+
+    public Schedule(String id, String valveName, int startMinute, int lengthSeconds, int days) {
+        if (startMinute < 0 || startMinute >= 24 * 60) {
+            throw new IllegalArgumentException("start minute out of range: " + startMinute);
+        }
+        if (lengthSeconds <= 0) {
+            throw new IllegalArgumentException("length must be positive: " + lengthSeconds);
+        }
+        if ((days & EVERY_DAY) == 0) {
+            throw new IllegalArgumentException("no days: " + days);
+        }
+        this.id = id;
+        this.valveName = valveName;
+        this.startMinute = startMinute;
+        this.lengthSeconds = lengthSeconds;
+        this.days = days & EVERY_DAY;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getValveName() {
+        return valveName;
+    }
+
+    public int getStartMinute() {
+        return startMinute;
+    }
+
+    public int getLengthSeconds() {
+        return lengthSeconds;
+    }
+
+    public int getDays() {
+        return days;
+    }
+
+    /* Whether the schedule runs on the day, 1 for Sunday to 7 for Saturday as in Calendar.DAY_OF_WEEK */
+    public boolean runsOn(int dayOfWeek) {
+        return (days & (1 << (dayOfWeek - 1))) != 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Schedule)) {
+            return false;
+        }
+        Schedule other = (Schedule) o;
+        return startMinute == other.startMinute && lengthSeconds == other.lengthSeconds && days == other.days
+                && id.equals(other.id) && valveName.equals(other.valveName);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = id.hashCode();
+        result = 31 * result + valveName.hashCode();
+        result = 31 * result + startMinute;
+        result = 31 * result + lengthSeconds;
+        return 31 * result + days;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Schedule{id=%s, valve=%s, start=%02d:%02d, length=%ds, days=%s}", id, valveName,
+                startMinute / 60, startMinute % 60, lengthSeconds, Integer.toBinaryString(days));
+    }
+}
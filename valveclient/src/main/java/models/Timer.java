@@ -0,0 +1,98 @@
+package models;
+
+import common.ServerClock;
+
+/* Immutable snapshot of a timer document, safe to share between threads.
+ *
+ * `end` and `last_seen` are server times, so the timer keeps the clock of the server it came from and counts
+ * down against that instead of the phone's clock. The clock is not part of the snapshot's value. */
+public final class Timer {
+    private final String id;
+    private final String name;
+    private final int end;
+    private final int lastSeen;
+    private final ServerClock clock;
+
+    public Timer(String id, String name, int end, int lastSeen) {
+        this(id, name, end, lastSeen, ServerClock.LOCAL);
+    }
+
+    public Timer(String id, String name, int end, int lastSeen, ServerClock clock) {
+        this.id = id;
+        this.name = name;
+        this.end = end;
+        this.lastSeen = lastSeen;
+        this.clock = clock;
+    }
+
+    /* A copy of this timer with a different end */
+    public Timer withEnd(int end) {
+        return new Timer(id, name, end, lastSeen, clock);
+    }
+
+    /* The seconds left on the countdown, 0 if it is over */
+    public int getLength() {
+        return getLength(clock.currentTimeSeconds());
+    }
+
+    /* The seconds left on the countdown at the server time `now` */
+    public int getLength(int now) {
+        if (end > now) {
+            return end - now;
+        }
+        return 0;
+    }
+
+    public int getTimeSinceLastSeen() {
+        return clock.currentTimeSeconds() - lastSeen;
+    }
+
+    public ServerClock getClock() {
+        return clock;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getEnd() {
+        return end;
+    }
+
+    public int getLastSeen() {
+        return lastSeen;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Timer)) {
+            return false;
+        }
+        Timer other = (Timer) o;
+        return end == other.end && lastSeen == other.lastSeen && equal(id, other.id) && equal(name, other.name);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = id != null ? id.hashCode() : 0;
+        result = 31 * result + (name != null ? name.hashCode() : 0);
+        result = 31 * result + end;
+        return 31 * result + lastSeen;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Timer{id=%s, name=%s, end=%d, lastSeen=%d}", id, name, end, lastSeen);
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
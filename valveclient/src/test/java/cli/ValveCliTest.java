@@ -0,0 +1,55 @@
+package cli;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import models.Timer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ValveCliTest {
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+    private int run(Map<String, String> env, String... args) {
+        return new ValveCli(new PrintStream(out), new PrintStream(err), new ByteArrayInputStream(new byte[0]))
+                .run(args, env);
+    }
+
+    @Test
+    public void run_usageErrors() {
+        Map<String, String> env = new HashMap<>();
+        env.put("VALVE_TIMER_RESTDB_URL", "http://127.0.0.1:1/rest/timers");
+        env.put("VALVE_TIMER_RESTDB_KEY", "key");
+        assertEquals(ValveCli.EXIT_USAGE, run(Collections.<String, String>emptyMap(), "get", "Valve"));
+        assertEquals(ValveCli.EXIT_USAGE, run(env));
+        assertEquals(ValveCli.EXIT_USAGE, run(env, "get"));
+        assertEquals(ValveCli.EXIT_USAGE, run(env, "set", "soon", "Valve"));
+        assertEquals(ValveCli.EXIT_USAGE, run(env, "--parallel"));
+        assertEquals(ValveCli.EXIT_USAGE, run(env, "open", "Valve"));
+        assertTrue(err.toString().contains("unknown command open"));
+        assertEquals("", out.toString());
+    }
+
+    @Test
+    public void run_failsWithoutServer() {
+        assertEquals(ValveCli.EXIT_FAILED, run(Collections.<String, String>emptyMap(),
+                "--url", "http://127.0.0.1:1/rest/timers", "--key", "key", "get", "Valve"));
+        assertTrue(err.toString().startsWith("error: "));
+    }
+
+    @Test
+    public void describe() {
+        assertEquals("not found", ValveCli.describe(null, 1000));
+        assertEquals("on\t300s left", ValveCli.describe(new Timer("1", "Valve", 1300, 995), 1000));
+        assertEquals("off", ValveCli.describe(new Timer("1", "Valve", 900, 995), 1000));
+        assertEquals("offline\tlast seen 60s ago", ValveCli.describe(new Timer("1", "Valve", 1300, 940), 1000));
+    }
+}
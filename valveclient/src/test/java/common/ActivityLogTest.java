@@ -0,0 +1,182 @@
+package common;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import models.Timer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ActivityLogTest {
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    private static final int DAY = 24 * 3600;
+    // midnight UTC
+    private static final int MIDNIGHT = 1570924800;
+    private static final long SEGMENT_BYTES = 1 << 20;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("activity", "");
+        assertTrue(directory.delete());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void record_writesOnlyChangesWithTheirKind() throws IOException {
+        ActivityLog log = new ActivityLog(directory, SEGMENT_BYTES);
+        int now = MIDNIGHT + 3600;
+        assertTrue(log.record(new Timer("1", "Lawn", now - 100, now), now));
+        assertFalse(log.record(new Timer("1", "Lawn", now - 100, now), now + 1));
+        assertTrue(log.record(new Timer("1", "Lawn", now - 100, now + 2), now + 2));
+        assertTrue(log.record(new Timer("1", "Lawn", now + 600, now + 3), now + 3));
+        assertTrue(log.record(new Timer("1", "Lawn", now + 900, now + 4), now + 4));
+        assertTrue(log.record(new Timer("1", "Lawn", now + 5, now + 5), now + 5));
+        assertTrue(log.record(new Timer("2", "Garden", now + 60, now + 5), now + 6));
+
+        final List<Integer> kinds = new ArrayList<>();
+        final List<Integer> ends = new ArrayList<>();
+        log.scan(MIDNIGHT, MIDNIGHT + DAY, new ActivityLog.Visitor() {
+            @Override
+            public void visit(ActivityLog.Record record, int valve) {
+                kinds.add(record.getKind());
+                ends.add(record.getEnd());
+            }
+        });
+        assertEquals(ActivityLog.KIND_SEEN, (int) kinds.get(0));
+        assertEquals(ActivityLog.KIND_SEEN, (int) kinds.get(1));
+        assertEquals(ActivityLog.KIND_ON, (int) kinds.get(2));
+        assertEquals(ActivityLog.KIND_END_CHANGED, (int) kinds.get(3));
+        assertEquals(ActivityLog.KIND_OFF, (int) kinds.get(4));
+        assertEquals(ActivityLog.KIND_ON, (int) kinds.get(5));
+        assertEquals(now + 600, (int) ends.get(2));
+        assertEquals(6, log.size());
+        log.close();
+    }
+
+    @Test
+    public void usageByDay_endsRunsAtTheNextRecordAndSplitsThemAtMidnight() throws IOException {
+        ActivityLog log = new ActivityLog(directory, SEGMENT_BYTES);
+        int lawn = log.valveId("Lawn");
+        int garden = log.valveId("Garden");
+        // 30 minutes set, stopped after 10
+        log.append(MIDNIGHT + 3600, lawn, ActivityLog.KIND_ON, MIDNIGHT + 3600 + 1800, 0);
+        log.append(MIDNIGHT + 4200, lawn, ActivityLog.KIND_OFF, MIDNIGHT + 4200, 0);
+        // an hour from 23:30, into the next day
+        log.append(MIDNIGHT + DAY - 1800, garden, ActivityLog.KIND_ON, MIDNIGHT + DAY + 1800, 0);
+        // seen again during the run, its end unchanged
+        log.append(MIDNIGHT + DAY + 60, garden, ActivityLog.KIND_SEEN, MIDNIGHT + DAY + 1800, 0);
+
+        Map<String, long[]> usage = log.usageByDay(MIDNIGHT + 5000, 3, UTC);
+        assertArrayEquals(new long[]{600, 0, 0}, usage.get("Lawn"));
+        assertArrayEquals(new long[]{1800, 1800, 0}, usage.get("Garden"));
+        assertArrayEquals(new long[]{1800, 1800}, log.usageByDay("Garden", MIDNIGHT, 2, UTC));
+        assertArrayEquals(new long[]{0, 0}, log.usageByDay("Unknown", MIDNIGHT, 2, UTC));
+        // the day before the range holds the start of the run
+        assertArrayEquals(new long[]{1800}, log.usageByDay("Garden", MIDNIGHT + DAY, 1, UTC));
+        log.close();
+    }
+
+    @Test
+    public void append_rotatesSegmentsAndSurvivesReopeningWithATornRecord() throws IOException {
+        ActivityLog log = new ActivityLog(directory, 100 * ActivityLog.RECORD_SIZE);
+        int valve = log.valveId("Lawn");
+        for (int i = 0; i < 250; i++) {
+            log.append(MIDNIGHT + i, valve, ActivityLog.KIND_SEEN, 0, MIDNIGHT + i);
+        }
+        // the next day starts a segment of its own
+        log.append(MIDNIGHT + DAY, valve, ActivityLog.KIND_ON, MIDNIGHT + DAY + 60, MIDNIGHT + DAY);
+        assertEquals(4, log.getSegmentCount());
+        log.close();
+
+        File[] files = directory.listFiles();
+        File last = null;
+        for (File file : files) {
+            if (file.getName().endsWith(".log") && (last == null || file.getName().compareTo(last.getName()) > 0)) {
+                last = file;
+            }
+        }
+        RandomAccessFile torn = new RandomAccessFile(last, "rw");
+        torn.setLength(torn.length() + 7);
+        torn.close();
+
+        log = new ActivityLog(directory, 100 * ActivityLog.RECORD_SIZE);
+        assertEquals(251, log.size());
+        assertEquals(valve, log.valveId("Lawn"));
+        log.append(MIDNIGHT + DAY + 10, valve, ActivityLog.KIND_OFF, MIDNIGHT + DAY + 10, MIDNIGHT + DAY + 10);
+        assertArrayEquals(new long[]{0, 10}, log.usageByDay("Lawn", MIDNIGHT, 2, UTC));
+        final int[] count = new int[1];
+        log.scan(MIDNIGHT + 120, MIDNIGHT + 130, new ActivityLog.Visitor() {
+            @Override
+            public void visit(ActivityLog.Record record, int valve) {
+                assertEquals(MIDNIGHT + 120 + count[0], record.getTime());
+                count[0]++;
+            }
+        });
+        assertEquals(10, count[0]);
+
+        assertEquals(3, log.deleteBefore(MIDNIGHT + DAY));
+        assertEquals(2, log.size());
+        log.close();
+    }
+
+    @Test
+    public void usageByDay_streamsTwoWeeksOfOneSecondRecords() throws IOException {
+        int days = 14;
+        ActivityLog log = new ActivityLog(directory, 8 << 20);
+        int valve = log.valveId("Lawn");
+        int other = log.valveId("Garden");
+        // half an hour from 06:00 every day, seen every second
+        int end = 0;
+        for (int time = MIDNIGHT; time < MIDNIGHT + days * DAY; time++) {
+            if ((time - MIDNIGHT) % DAY == 6 * 3600) {
+                end = time + 1800;
+            }
+            log.append(time, valve, ActivityLog.KIND_SEEN, end, time);
+            if (time == MIDNIGHT + 3 * DAY) {
+                log.append(time, other, ActivityLog.KIND_ON, time + 100, time);
+            }
+        }
+        log.flush();
+
+        long[] usage = null;
+        long allocated = Long.MAX_VALUE;
+        // the cleanest of a few runs, the first may allocate for class loading
+        for (int run = 0; run < 3; run++) {
+            long before = Allocations.allocatedBytes();
+            usage = log.usageByDay("Lawn", MIDNIGHT, days, UTC);
+            allocated = Math.min(allocated, Allocations.allocatedBytes() - before);
+        }
+        for (int day = 0; day < days; day++) {
+            assertEquals(1800, usage[day]);
+        }
+        // far less than the 24 MB of records
+        assertTrue("allocated " + allocated, allocated < 256 * 1024);
+        assertArrayEquals(new long[]{1800, 1800}, log.usageByDay("Lawn", MIDNIGHT + 5 * DAY, 2, UTC));
+        assertEquals(100, log.usageByDay(MIDNIGHT + 3 * DAY, 1, UTC).get("Garden")[0]);
+        log.close();
+    }
+}
@@ -0,0 +1,13 @@
+package common;
+
+import java.lang.management.ManagementFactory;
+
+/* Measures heap allocation of the current thread on HotSpot JVMs */
+class Allocations {
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    static long allocatedBytes() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,161 @@
+package common;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import models.Timer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CommandQueueTest {
+    private static final Pattern END = Pattern.compile("\"end\":(-?\\d+)");
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private StandInServer server;
+    private ExecutorService executor;
+    private final AtomicInteger patches = new AtomicInteger();
+    // the document on the stand-in server
+    private volatile int serverEnd = 0;
+    private volatile boolean failing = false;
+    private volatile CountDownLatch gate = new CountDownLatch(0);
+    private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+    private final CountDownLatch settled = new CountDownLatch(1);
+    private CommandQueue queue;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StandInServer(new StandInServer.Responder() {
+            @Override
+            public String respond(HttpExchange exchange, String requestBody) throws IOException {
+                patches.incrementAndGet();
+                try {
+                    gate.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                if (failing) {
+                    exchange.sendResponseHeaders(500, -1);
+                    return null;
+                }
+                Matcher matcher = END.matcher(requestBody);
+                assertTrue(matcher.find());
+                serverEnd = Integer.parseInt(matcher.group(1));
+                return String.format("{\"_id\":\"1\",\"name\":\"Valve\",\"end\":%d,\"last_seen\":500}", serverEnd);
+            }
+        });
+        final HttpTransport transport = new HttpTransport(server.getUrl(), "key", 1000, 5000);
+        final TimerDecoder decoder = new TimerDecoder();
+        executor = Executors.newSingleThreadExecutor();
+        queue = new CommandQueue(new CommandQueue.Sender() {
+            @Override
+            public Timer send(final Timer timer, int end) throws IOException {
+                return transport.patch("/" + timer.getId(), String.format("{\"end\":%d}", end),
+                        new HttpTransport.ResponseReader<Timer>() {
+                            @Override
+                            public Timer read(InputStream in) throws IOException {
+                                return decoder.decodeObject(in, timer.getName());
+                            }
+                        });
+            }
+        }, executor, DIRECT, new CommandQueue.Listener() {
+            @Override
+            public void onOptimisticUpdate(Timer timer) {
+                events.add("optimistic " + timer.getEnd());
+            }
+
+            @Override
+            public void onConfirmed(Timer timer) {
+                events.add("confirmed " + timer.getEnd());
+                settled.countDown();
+            }
+
+            @Override
+            public void onRolledBack(Timer timer, Exception e) {
+                events.add("rolled back " + timer.getEnd());
+                settled.countDown();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        server.stop();
+    }
+
+    @Test
+    public void setEnd_singleCommand() throws InterruptedException {
+        queue.setEnd(new Timer("1", "Valve", 0, 500), 1300);
+        assertTrue(settled.await(5, TimeUnit.SECONDS));
+        assertEquals(1, patches.get());
+        assertEquals(1300, serverEnd);
+        assertEquals("[optimistic 1300, confirmed 1300]", events.toString());
+        assertFalse(queue.isBusy("1"));
+    }
+
+    /* Set, stop, set again and stop while the first PATCH is slow: only the first and the last go out */
+    @Test
+    public void setEnd_coalescesRapidCommands() throws InterruptedException {
+        gate = new CountDownLatch(1);
+        Timer timer = new Timer("1", "Valve", 0, 500);
+        queue.setEnd(timer, 1300);
+        queue.setEnd(timer, 1000);
+        queue.setEnd(timer, 1600);
+        queue.setEnd(timer, 1001);
+        assertTrue(queue.isBusy("1"));
+        gate.countDown();
+
+        assertTrue(settled.await(5, TimeUnit.SECONDS));
+        assertEquals(2, patches.get());
+        assertEquals(1001, serverEnd);
+        assertEquals("[optimistic 1300, optimistic 1000, optimistic 1600, optimistic 1001, confirmed 1001]",
+                events.toString());
+    }
+
+    @Test
+    public void setEnd_rollsBackOnFailure() throws InterruptedException {
+        failing = true;
+        queue.setEnd(new Timer("1", "Valve", 700, 500), 1300);
+        assertTrue(settled.await(5, TimeUnit.SECONDS));
+        assertEquals("[optimistic 1300, rolled back 700]", events.toString());
+        assertEquals(0, serverEnd);
+    }
+
+    /* A failed request followed by a newer command rolls back to what the server last confirmed */
+    @Test
+    public void setEnd_rollsBackToLastConfirmed() throws InterruptedException {
+        gate = new CountDownLatch(1);
+        failing = true;
+        Timer timer = new Timer("1", "Valve", 700, 500);
+        queue.setEnd(timer, 1300);
+        queue.setEnd(timer, 1000);
+        gate.countDown();
+        assertTrue(settled.await(5, TimeUnit.SECONDS));
+        assertEquals(2, patches.get());
+        assertEquals("[optimistic 1300, optimistic 1000, rolled back 700]", events.toString());
+    }
+}
@@ -0,0 +1,219 @@
+package common;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import models.Timer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EventStreamClientTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+    private final CountDownLatch released = new CountDownLatch(1);
+    private StandInServer server;
+    private EventStreamClient client;
+
+    @After
+    public void tearDown() {
+        released.countDown();
+        if (client != null) {
+            client.stop();
+        }
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void deliversTimerEvents() throws Exception {
+        server = new StandInServer(new StandInServer.Responder() {
+            @Override
+            public String respond(HttpExchange exchange, String requestBody) throws IOException {
+                OutputStream out = startStream(exchange);
+                write(out, ": heartbeat\n\n");
+                write(out, "event: timer\nid: 1\ndata: {\"_id\":\"1\",\"name\":\"Valve\",\"end\":1300,\"last_seen\":900}\n\n");
+                write(out, "event: other\ndata: {}\n\n");
+                write(out, "data: {\"_id\":\"2\",\"name\":\"Other\",\"end\":1,\"last_seen\":2}\n\n");
+                // one document split over data lines with CRLF line endings
+                write(out, "event: timer\r\ndata: {\"_id\":\"1\",\r\ndata: \"name\":\"Valve\",\"end\":5,\"last_seen\":6}\r\n\r\n");
+                hold();
+                return null;
+            }
+        });
+        start(1000);
+        assertEquals("connected", next());
+        assertEquals("timer 1300", next());
+        assertEquals("timer 5", next());
+        assertNull(events.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(1, server.getRequestCount());
+    }
+
+    /* A dropped stream is reported so polling can take over, and the reconnect resumes from the last event */
+    @Test
+    public void reconnectsWithLastEventId() throws Exception {
+        final BlockingQueue<String> lastEventIds = new LinkedBlockingQueue<>();
+        final AtomicInteger connections = new AtomicInteger();
+        server = new StandInServer(new StandInServer.Responder() {
+            @Override
+            public String respond(HttpExchange exchange, String requestBody) throws IOException {
+                String lastEventId = exchange.getRequestHeaders().getFirst("last-event-id");
+                lastEventIds.add(lastEventId == null ? "none" : lastEventId);
+                OutputStream out = startStream(exchange);
+                if (connections.incrementAndGet() == 1) {
+                    write(out, "retry: 50\nid: 7\ndata: {\"_id\":\"1\",\"name\":\"Valve\",\"end\":10,\"last_seen\":1}\n\n");
+                    // an event cut off by the drop is not delivered
+                    write(out, "data: {\"_id\":\"1\",\"name\":\"Valve\"");
+                    return null;
+                }
+                hold();
+                return null;
+            }
+        });
+        start(5000);
+        assertEquals("connected", next());
+        assertEquals("timer 10", next());
+        assertEquals("disconnected", next());
+        // the server asked for a 50 ms retry instead of the 5 s default
+        assertEquals("connected", next());
+        assertEquals("none", lastEventIds.take());
+        assertEquals("7", lastEventIds.take());
+    }
+
+    @Test
+    public void malformedEvent_isSkipped() throws Exception {
+        server = new StandInServer(new StandInServer.Responder() {
+            @Override
+            public String respond(HttpExchange exchange, String requestBody) throws IOException {
+                OutputStream out = startStream(exchange);
+                write(out, "event: timer\ndata: {\"_id\":\"1\",\"name\":\"Valve\",\"end\":\n\n");
+                write(out, "event: timer\ndata: {\"_id\":\"1\",\"name\":\"Valve\",\"end\":7,\"last_seen\":6}\n\n");
+                hold();
+                return null;
+            }
+        });
+        start(50);
+        assertEquals("connected", next());
+        assertEquals("timer 7", next());
+        assertEquals(1, server.getRequestCount());
+    }
+
+    /* A server without a stream, like plain RESTdb, answers with JSON: polling takes over for good */
+    @Test
+    public void notAnEventStream_givesUp() throws Exception {
+        server = StandInServer.returning("[]");
+        start(50);
+        assertEquals("disconnected", next());
+        assertNull(events.poll(500, TimeUnit.MILLISECONDS));
+        assertEquals(1, server.getRequestCount());
+    }
+
+    /* A server that accepts and closes at once keeps backing off instead of reconnecting at the base delay */
+    @Test
+    public void acceptAndClose_keepsBackingOff() throws Exception {
+        server = new StandInServer(new StandInServer.Responder() {
+            @Override
+            public String respond(HttpExchange exchange, String requestBody) throws IOException {
+                startStream(exchange);
+                return null;
+            }
+        });
+        start(50);
+        Thread.sleep(1500);
+        // 50, 100, 200, 400 and 800 ms apart, a reset backoff would have made about 30 connections
+        int requests = server.getRequestCount();
+        assertTrue("requests " + requests, requests <= 6);
+    }
+
+    @Test
+    public void stop_closesBlockedStream() throws Exception {
+        server = new StandInServer(new StandInServer.Responder() {
+            @Override
+            public String respond(HttpExchange exchange, String requestBody) throws IOException {
+                startStream(exchange);
+                hold();
+                return null;
+            }
+        });
+        start(50);
+        assertEquals("connected", next());
+        client.stop();
+        assertNull(events.poll(300, TimeUnit.MILLISECONDS));
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void backoff_growsToLimit() {
+        EventStreamClient client = new EventStreamClient(new HttpTransport("http://127.0.0.1", "key", 1000, 1000), "", "Valve",
+                1000, DIRECT, null);
+        assertEquals(1000, client.backoff(1));
+        assertEquals(4000, client.backoff(3));
+        assertEquals(EventStreamClient.MAX_RECONNECT_DELAY, client.backoff(100));
+    }
+
+    private void start(long reconnectDelay) {
+        HttpTransport transport = new HttpTransport(server.getUrl(), "key", 1000, 5000);
+        client = new EventStreamClient(transport, "/events", "Valve", reconnectDelay, DIRECT,
+                new EventStreamClient.Listener() {
+                    @Override
+                    public void onConnected() {
+                        events.add("connected");
+                    }
+
+                    @Override
+                    public void onTimer(Timer timer) {
+                        events.add("timer " + timer.getEnd());
+                    }
+
+                    @Override
+                    public void onDisconnected(Exception e) {
+                        events.add("disconnected");
+                    }
+                });
+        client.start();
+    }
+
+    private String next() throws InterruptedException {
+        String event = events.poll(5, TimeUnit.SECONDS);
+        assertTrue("timed out waiting for an event", event != null);
+        return event;
+    }
+
+    private void hold() {
+        try {
+            released.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static OutputStream startStream(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("content-type", "text/event-stream");
+        exchange.sendResponseHeaders(200, 0);
+        return exchange.getResponseBody();
+    }
+
+    private static void write(OutputStream out, String text) throws IOException {
+        out.write(text.getBytes(HttpTransport.UTF_8));
+        out.flush();
+    }
+}
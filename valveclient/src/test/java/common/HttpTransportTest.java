@@ -0,0 +1,175 @@
+package common;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
+
+import models.Timer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HttpTransportTest {
+    private static final String BODY = "[{\"_id\":\"5d9e\",\"name\":\"Valve\",\"end\":1571000000,\"last_seen\":1571000000}]";
+    private static final int POLLS = 60;
+
+    private StandInServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = StandInServer.returning(BODY);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void get_returnsBody() throws IOException {
+        HttpTransport transport = new HttpTransport(server.getUrl(), "key", 1000, 1000);
+        assertEquals(BODY, transport.get("?q=%7B%7D"));
+    }
+
+    @Test
+    public void get_reusesConnection() throws IOException {
+        HttpTransport transport = new HttpTransport(server.getUrl(), "key", 1000, 1000);
+        for (int i = 0; i < POLLS; i++) {
+            transport.get("?q=%7B%7D");
+        }
+        assertEquals(POLLS, server.getRequestCount());
+        assertEquals(1, server.getConnectionCount());
+    }
+
+    @Test
+    public void patch_sendsBody() throws IOException {
+        final String[] received = new String[1];
+        server.setResponder(new StandInServer.Responder() {
+            @Override
+            public String respond(com.sun.net.httpserver.HttpExchange exchange, String requestBody) {
+                received[0] = requestBody;
+                return "{}";
+            }
+        });
+        HttpTransport transport = new HttpTransport(server.getUrl(), "key", 1000, 1000);
+        assertEquals("{}", transport.patch("/5d9e", "{\"end\":10}"));
+        assertEquals("{\"end\":10}", received[0]);
+    }
+
+    @Test
+    public void get_decompressesAndCountsTransferredBytes() throws IOException {
+        final StringBuilder body = new StringBuilder("[");
+        for (int i = 0; i < 50; i++) {
+            body.append(i > 0 ? "," : "").append(BODY.substring(1, BODY.length() - 1));
+        }
+        body.append(']');
+        server.setResponder(new StandInServer.Responder() {
+            @Override
+            public String respond(HttpExchange exchange, String requestBody) {
+                return body.toString();
+            }
+        });
+        server.setCompression(true);
+        HttpTransport transport = new HttpTransport(server.getUrl(), "key", 1000, 1000);
+        ExchangeLog log = new ExchangeLog();
+        transport.setListener(log);
+        assertEquals(body.toString(), transport.get("?q=%7B%7D"));
+        // the decoder reads straight from the inflating stream and may stop before the end
+        Timer timer = transport.get("?q=%7B%7D", new HttpTransport.ResponseReader<Timer>() {
+            @Override
+            public Timer read(InputStream in) throws IOException {
+                return new TimerDecoder().decodeFirst(in, "Valve");
+            }
+        });
+        assertEquals(1571000000, timer.getEnd());
+        assertEquals(2, log.responseBytes.size());
+        assertTrue(log.responseBytes.get(0) < body.length() / 10);
+        assertEquals(log.responseBytes.get(0), log.responseBytes.get(1));
+        assertEquals(1, server.getConnectionCount());
+    }
+
+    @Test
+    public void listener_reportsFailedRequests() throws IOException {
+        server.setResponder(new StandInServer.Responder() {
+            @Override
+            public String respond(HttpExchange exchange, String requestBody) throws IOException {
+                byte[] error = "{\"message\":\"not found\"}".getBytes(HttpTransport.UTF_8);
+                exchange.sendResponseHeaders(404, error.length);
+                exchange.getResponseBody().write(error);
+                return null;
+            }
+        });
+        HttpTransport transport = new HttpTransport(server.getUrl(), "key", 1000, 1000);
+        ExchangeLog log = new ExchangeLog();
+        transport.setListener(log);
+        try {
+            transport.patch("/5d9e", "{\"end\":10}");
+            fail();
+        } catch (HttpStatusException e) {
+            assertEquals(404, e.getStatus());
+        }
+        assertEquals("PATCH 404 10 23", log.entries.get(0));
+    }
+
+    /* Projected fields with gzip take under a third of the bytes per poll of the full document, like on a metered connection */
+    @Test
+    public void get_projectedAndGzippedIsSmaller() throws IOException {
+        server.setResponder(new StandInServer.Responder() {
+            @Override
+            public String respond(HttpExchange exchange, String requestBody) throws IOException {
+                String query = URLDecoder.decode(exchange.getRequestURI().getRawQuery(), "UTF-8");
+                if (query.contains("\"$fields\"")) {
+                    return "[{\"_id\":\"5d9e0b4c1f0a3c5e00012345\",\"end\":1571000000,\"last_seen\":1571000004}]";
+                }
+                return FULL_DOCUMENT;
+            }
+        });
+        HttpTransport transport = new HttpTransport(server.getUrl(), "key", 1000, 1000);
+        ExchangeLog log = new ExchangeLog();
+        transport.setListener(log);
+        for (int i = 0; i < POLLS; i++) {
+            transport.get("?q=%7B%22name%22%3A%22Valve%22%7D");
+        }
+        server.setCompression(true);
+        for (int i = 0; i < POLLS; i++) {
+            transport.get("?q=%7B%22name%22%3A%22Valve%22%7D&h=" + ValveClient.fieldsHint("_id", "end", "last_seen"));
+        }
+        long full = 0;
+        long reduced = 0;
+        for (int i = 0; i < POLLS; i++) {
+            full += log.responseBytes.get(i);
+            reduced += log.responseBytes.get(POLLS + i);
+        }
+        assertTrue(reduced * 3 < full);
+    }
+
+    private static final String FULL_DOCUMENT = "[{\"_id\":\"5d9e0b4c1f0a3c5e00012345\",\"name\":\"Valve\","
+            + "\"end\":1571000000,\"last_seen\":1571000004,\"description\":\"Garden drip line, north beds\","
+            + "\"location\":{\"lat\":44.9778,\"lng\":-93.265},\"firmware\":\"1.4.2\",\"owner\":\"pertempto\","
+            + "\"_parent_id\":null,\"_created\":\"2019-10-09T16:12:28.417Z\","
+            + "\"_changed\":\"2019-10-13T21:06:44.102Z\",\"_createdby\":\"api\",\"_changedby\":\"api\","
+            + "\"_keywords\":[\"valve\",\"garden\",\"drip\",\"line\",\"north\",\"beds\"],"
+            + "\"_tags\":\"valve garden drip line north beds\",\"_version\":4213}]";
+
+    /* Records what the transport reports */
+    private static class ExchangeLog implements HttpTransport.Listener {
+        final List<String> entries = new ArrayList<>();
+        final List<Long> responseBytes = new ArrayList<>();
+
+        @Override
+        public void onExchange(String method, String path, int status, long requestBytes, long responseBytes,
+                               long elapsedMillis, IOException error) {
+            entries.add(String.format("%s %d %d %d", method, status, requestBytes, responseBytes));
+            this.responseBytes.add(responseBytes);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package common;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+    @Test
+    public void buckets_coverRangeWithoutGaps() {
+        int previous = -1;
+        for (long value = 0; value <= LatencyHistogram.MAX_VALUE; value++) {
+            int index = LatencyHistogram.indexOf(value);
+            assertTrue(index == previous || index == previous + 1);
+            assertTrue(value <= LatencyHistogram.highestValueAt(index));
+            // the bucket is at most an eighth of its values wide
+            assertTrue(LatencyHistogram.highestValueAt(index) - value <= Math.max(0, value / 8));
+            previous = index;
+        }
+    }
+
+    @Test
+    public void percentiles_matchExactValues() {
+        Random random = new Random(7);
+        LatencyHistogram histogram = new LatencyHistogram();
+        long[] values = new long[10000];
+        for (int i = 0; i < values.length; i++) {
+            // mostly fast with a long tail, like requests on a mobile network
+            values[i] = (long) (40 * Math.exp(random.nextGaussian()));
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        for (double percentile : new double[]{50, 90, 99, 99.9}) {
+            long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+            long estimate = histogram.getValueAtPercentile(percentile);
+            assertTrue(percentile + ": " + estimate + " vs " + exact, estimate >= exact && estimate <= exact + exact / 8);
+        }
+        assertEquals(values[values.length - 1], histogram.getMax());
+        assertEquals(values.length, histogram.getCount());
+        assertEquals(values[values.length - 1], histogram.getValueAtPercentile(100));
+    }
+
+    /* Microseconds need a larger range, a 6 s tail must not be cut at MAX_VALUE */
+    @Test
+    public void record_keepsValuesUpToTheGivenRange() {
+        LatencyHistogram histogram = new LatencyHistogram(3600L * 1000000);
+        for (int i = 0; i < 999; i++) {
+            histogram.record(300);
+        }
+        histogram.record(6000000);
+        assertEquals(6000000, histogram.getMax());
+        long p100 = histogram.getValueAtPercentile(100);
+        assertEquals(6000000, p100);
+        assertEquals(300, histogram.getValueAtPercentile(50), 300 / 8);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(3600L * 1000000, histogram.getMax());
+    }
+
+    @Test
+    public void record_clampsAndResets() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(LatencyHistogram.MAX_VALUE, histogram.getMax());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getMean(), 0);
+    }
+
+    @Test
+    public void record_concurrentWritersLoseNothing() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        histogram.record(i % 1000);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(400000, histogram.getCount());
+        assertEquals(999, histogram.getMax());
+        assertEquals(499.5, histogram.getMean(), 0.001);
+    }
+
+    @Test
+    public void record_doesNotAllocate() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 20000; i++) {
+            histogram.record(i);
+        }
+        // the JIT may allocate a few bytes on the first runs of the loop, a run without any is enough
+        long allocated = Long.MAX_VALUE;
+        for (int run = 0; run < 5 && allocated > 0; run++) {
+            long before = Allocations.allocatedBytes();
+            for (int i = 0; i < 1000000; i++) {
+                histogram.record(i & 0xffff);
+            }
+            allocated = Allocations.allocatedBytes() - before;
+        }
+        assertEquals(0, allocated);
+    }
+}
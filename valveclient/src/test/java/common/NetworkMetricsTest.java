@@ -0,0 +1,99 @@
+package common;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class NetworkMetricsTest {
+    private static final String BODY = "[{\"_id\":\"5d9e\",\"name\":\"Valve\",\"end\":1571000000,\"last_seen\":1571000000}]";
+
+    private StandInServer server;
+    private HttpTransport transport;
+    private final NetworkMetrics metrics = new NetworkMetrics();
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StandInServer(new StandInServer.Responder() {
+            @Override
+            public String respond(HttpExchange exchange, String requestBody) throws IOException {
+                String query = exchange.getRequestURI().getRawQuery();
+                if (query != null && query.contains("slow")) {
+                    try {
+                        Thread.sleep(500);
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                } else if (query != null && query.contains("broken")) {
+                    exchange.sendResponseHeaders(500, -1);
+                    return null;
+                }
+                return BODY;
+            }
+        });
+        transport = new HttpTransport(server.getUrl(), "key", 1000, 200);
+        transport.setListener(metrics);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void recordsPerEndpoint() throws IOException {
+        for (int i = 0; i < 10; i++) {
+            transport.get("?q=ok");
+        }
+        transport.patch("/5d9e", "{\"end\":10}");
+        try {
+            transport.get("?q=broken");
+            fail();
+        } catch (HttpStatusException e) {
+            assertEquals(500, e.getStatus());
+        }
+        try {
+            transport.get("?q=slow");
+            fail();
+        } catch (SocketTimeoutException e) {
+            // expected
+        }
+
+        NetworkMetrics.Endpoint query = metrics.getEndpoint(NetworkMetrics.QUERY);
+        assertEquals(10, query.getSuccesses());
+        assertEquals(1, query.getFailures());
+        assertEquals(1, query.getTimeouts());
+        assertEquals(12, query.getLatency().getCount());
+        assertEquals(10 * BODY.length(), query.getBytesIn());
+        assertTrue(query.getLatency().getMax() >= 200);
+
+        NetworkMetrics.Endpoint update = metrics.getEndpoint(NetworkMetrics.UPDATE);
+        assertEquals(1, update.getSuccesses());
+        assertEquals(10, update.getBytesOut());
+        assertEquals(BODY.length(), update.getBytesIn());
+    }
+
+    @Test
+    public void dump_listsEndpointsAndCounters() throws IOException {
+        transport.get("?q=ok");
+        metrics.increment(NetworkMetrics.POLLS);
+        metrics.increment(NetworkMetrics.POLLS);
+        metrics.increment(NetworkMetrics.COMMANDS);
+        String dump = metrics.dump();
+        assertTrue(dump.startsWith(NetworkMetrics.QUERY + ": 1 ok, 0 failed, 0 timed out, 0 B out, "
+                + BODY.length() + " B in, latency ms p50 "));
+        assertTrue(dump.endsWith("commands: 1\npolls: 2\n"));
+        assertEquals(2, metrics.getCounter(NetworkMetrics.POLLS));
+
+        metrics.reset();
+        assertEquals("", metrics.dump());
+    }
+}
@@ -0,0 +1,197 @@
+package common;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import models.Timer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PollSchedulerTest {
+    private static final int LAST_SEEN_THRESH = 10;
+    private static final int DAY = 24 * 3600;
+    private static final int FIXED_INTERVAL = 10;
+
+    @Test
+    public void getInterval_fastAfterCommand() {
+        PollScheduler scheduler = new PollScheduler(LAST_SEEN_THRESH);
+        assertEquals(PollScheduler.IDLE_INTERVAL, scheduler.getInterval(new Timer("id", "Valve", 0, 10000), 10000));
+        scheduler.onCommand(10000);
+        assertEquals(PollScheduler.COMMAND_INTERVAL, scheduler.getInterval(new Timer("id", "Valve", 0, 10010), 10010));
+        int windowEnd = 10000 + PollScheduler.COMMAND_WINDOW;
+        assertEquals(PollScheduler.IDLE_INTERVAL, scheduler.getInterval(new Timer("id", "Valve", 0, windowEnd), windowEnd));
+    }
+
+    @Test
+    public void getInterval_followsCountdown() {
+        PollScheduler scheduler = new PollScheduler(LAST_SEEN_THRESH);
+        assertEquals(PollScheduler.ON_MAX_INTERVAL, scheduler.getInterval(new Timer("id", "Valve", 1900, 1000), 1000));
+        assertEquals(22, scheduler.getInterval(new Timer("id", "Valve", 1020, 1000), 1000));
+        assertEquals(PollScheduler.ON_MIN_INTERVAL, scheduler.getInterval(new Timer("id", "Valve", 1001, 1000), 1000));
+        assertEquals(PollScheduler.RECENTLY_OFF_INTERVAL, scheduler.getInterval(new Timer("id", "Valve", 990, 1000), 1000));
+    }
+
+    @Test
+    public void getInterval_backsOffWhileDisconnected() {
+        PollScheduler scheduler = new PollScheduler(LAST_SEEN_THRESH);
+        assertEquals(PollScheduler.DISCONNECTED_MIN_INTERVAL, scheduler.getInterval(new Timer("id", "Valve", 0, 980), 1000));
+        assertEquals(60, scheduler.getInterval(new Timer("id", "Valve", 0, 400), 1000));
+        assertEquals(PollScheduler.DISCONNECTED_MAX_INTERVAL, scheduler.getInterval(new Timer("id", "Valve", 0, 0), 100000));
+    }
+
+    @Test
+    public void getInterval_slowWhilePushConnected() {
+        PollScheduler scheduler = new PollScheduler(LAST_SEEN_THRESH);
+        scheduler.onCommand(1000);
+        scheduler.setPushConnected(true);
+        assertEquals(PollScheduler.PUSH_INTERVAL, scheduler.getInterval(new Timer("id", "Valve", 1020, 1000), 1000));
+        // nothing to keep up to date yet, the usual schedule applies
+        assertEquals(PollScheduler.COMMAND_INTERVAL, scheduler.getInterval(null, 1000));
+        scheduler.setPushConnected(false);
+        assertEquals(PollScheduler.COMMAND_INTERVAL, scheduler.getInterval(new Timer("id", "Valve", 1020, 1000), 1000));
+    }
+
+    /* Run a scripted day through the adaptive and the fixed schedule and compare request counts and staleness */
+    @Test
+    public void simulateDay() {
+        Result fixed = simulate(scriptedDay(), null);
+        Result adaptive = simulate(scriptedDay(), new PollScheduler(LAST_SEEN_THRESH));
+
+        assertEquals(DAY / FIXED_INTERVAL, fixed.polls);
+        assertTrue(adaptive.polls * 10 <= fixed.polls);
+        // a watering started elsewhere shows within one idle interval
+        assertTrue(adaptive.worstCommandDelay <= PollScheduler.IDLE_INTERVAL);
+        // only a valve that was gone for hours takes longer to show as back
+        assertTrue(adaptive.worstDelay <= PollScheduler.DISCONNECTED_MAX_INTERVAL);
+        assertTrue(adaptive.worstEndDelay <= PollScheduler.ON_MIN_INTERVAL);
+    }
+
+    /* Remote waterings, an outage in the afternoon and a user who sets the timer and changes their mind */
+    private static Timeline scriptedDay() {
+        Timeline timeline = new Timeline();
+        timeline.remoteSet(6 * 3600, 15 * 60);
+        timeline.remoteSet(12 * 3600, 10 * 60);
+        timeline.offline(14 * 3600, 16 * 3600);
+        timeline.remoteSet(18 * 3600 + 1800, 20 * 60);
+        timeline.localSet(19 * 3600, 5 * 60);
+        timeline.localSet(19 * 3600 + 120, 0);
+        return timeline;
+    }
+
+    private static Result simulate(Timeline timeline, PollScheduler scheduler) {
+        Result result = new Result();
+        Timer observed = null;
+        int nextPoll = 0;
+        int localCommand = 0;
+        for (int now = 0; now < DAY; now++) {
+            if (localCommand < timeline.localCommands.size() && timeline.localCommands.get(localCommand)[0] == now) {
+                // the PATCH response carries the new state
+                timeline.apply(now, timeline.localCommands.get(localCommand)[1]);
+                localCommand++;
+                observed = timeline.timerAt(now);
+                if (scheduler != null) {
+                    scheduler.onCommand(now);
+                    nextPoll = now + scheduler.getInterval(observed, now);
+                }
+            }
+            if (now >= nextPoll) {
+                result.polls++;
+                observed = timeline.timerAt(now);
+                nextPoll = now + (scheduler == null ? FIXED_INTERVAL : scheduler.getInterval(observed, now));
+                result.observe(timeline, now, observed);
+            }
+        }
+        return result;
+    }
+
+    /* Server side state of one valve over a day */
+    private static class Timeline {
+        final List<int[]> remoteCommands = new ArrayList<>();
+        final List<int[]> localCommands = new ArrayList<>();
+        int offlineStart = -1;
+        int offlineEnd = -1;
+        int end = 0;
+        int appliedRemote = 0;
+
+        void remoteSet(int time, int length) {
+            remoteCommands.add(new int[]{time, length});
+        }
+
+        void localSet(int time, int length) {
+            localCommands.add(new int[]{time, length});
+        }
+
+        void offline(int start, int end) {
+            offlineStart = start;
+            offlineEnd = end;
+        }
+
+        void apply(int now, int length) {
+            end = now + length;
+        }
+
+        /* The document a poll at the given time returns */
+        Timer timerAt(int now) {
+            while (appliedRemote < remoteCommands.size() && remoteCommands.get(appliedRemote)[0] <= now) {
+                int[] command = remoteCommands.get(appliedRemote++);
+                apply(command[0], command[1]);
+            }
+            int lastSeen = now >= offlineStart && now < offlineEnd ? offlineStart : now;
+            return new Timer("id", "Valve", end, lastSeen);
+        }
+
+        /* The time of the last remote command at or before now */
+        int lastCommandBefore(int now) {
+            int change = -1;
+            for (int[] command : remoteCommands) {
+                if (command[0] <= now) {
+                    change = Math.max(change, command[0]);
+                }
+            }
+            return change;
+        }
+
+        /* The time of the last remote change to the state at or before now */
+        int lastChangeBefore(int now) {
+            int change = lastCommandBefore(now);
+            if (offlineStart <= now) {
+                change = Math.max(change, offlineStart + LAST_SEEN_THRESH);
+            }
+            if (offlineEnd <= now) {
+                change = Math.max(change, offlineEnd);
+            }
+            return change;
+        }
+    }
+
+    private static class Result {
+        int polls;
+        int worstDelay;
+        int worstCommandDelay;
+        int worstEndDelay;
+        int lastChangeSeen = -1;
+        int lastCommandSeen = -1;
+        int lastEndSeen = -1;
+
+        void observe(Timeline timeline, int now, Timer observed) {
+            int change = timeline.lastChangeBefore(now);
+            if (change > lastChangeSeen) {
+                worstDelay = Math.max(worstDelay, now - change);
+                lastChangeSeen = change;
+            }
+            int command = timeline.lastCommandBefore(now);
+            if (command > lastCommandSeen) {
+                worstCommandDelay = Math.max(worstCommandDelay, now - command);
+                lastCommandSeen = command;
+            }
+            // the first poll after a countdown ended shows the valve off
+            if (observed.getEnd() > 0 && observed.getEnd() <= now && observed.getEnd() != lastEndSeen) {
+                worstEndDelay = Math.max(worstEndDelay, now - observed.getEnd());
+                lastEndSeen = observed.getEnd();
+            }
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package common;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import models.Timer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class RequestPolicyTest {
+    private static final String FOUND = "[{\"_id\":\"1\",\"name\":\"Valve\",\"end\":0,\"last_seen\":0}]";
+
+    private StandInServer server;
+    private HttpTransport transport;
+    private final TimerDecoder decoder = new TimerDecoder();
+    // simulated time of the current tick, the fault injection follows it
+    private volatile long now;
+
+    @Before
+    public void setUp() throws IOException {
+        server = StandInServer.returning(FOUND);
+        transport = new HttpTransport(server.getUrl(), "key", 1000, 1000);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void onFailure_backsOffExponentially() {
+        RequestPolicy policy = new RequestPolicy(new Random(1));
+        assertTrue(policy.allowRequest(0));
+        policy.onFailure(0);
+        assertFalse(policy.allowRequest(RequestPolicy.BASE_BACKOFF / 2 - 1));
+        assertTrue(policy.allowRequest(RequestPolicy.BASE_BACKOFF));
+        policy.onFailure(RequestPolicy.BASE_BACKOFF);
+        assertFalse(policy.allowRequest(RequestPolicy.BASE_BACKOFF * 2 - 1));
+        assertTrue(policy.allowRequest(RequestPolicy.BASE_BACKOFF * 3));
+        assertEquals(RequestPolicy.State.CLOSED, policy.getState());
+    }
+
+    @Test
+    public void onFailure_opensCircuitAndProbes() {
+        RequestPolicy policy = new RequestPolicy(new Random(1));
+        long time = 0;
+        for (int i = 0; i < RequestPolicy.FAILURE_THRESHOLD; i++) {
+            time += RequestPolicy.MAX_BACKOFF;
+            assertTrue(policy.allowRequest(time));
+            policy.onFailure(time);
+        }
+        assertEquals(RequestPolicy.State.OPEN, policy.getState());
+        assertFalse(policy.allowRequest(time + RequestPolicy.OPEN_DURATION / 2 - 1));
+
+        // a single probe is let through, a failed probe reopens for longer
+        time += RequestPolicy.OPEN_DURATION;
+        assertTrue(policy.allowRequest(time));
+        assertFalse(policy.allowRequest(time));
+        policy.onFailure(time);
+        assertEquals(RequestPolicy.State.OPEN, policy.getState());
+        assertFalse(policy.allowRequest(time + RequestPolicy.OPEN_DURATION - 1));
+
+        time += RequestPolicy.OPEN_DURATION * 2;
+        assertTrue(policy.allowRequest(time));
+        policy.onSuccess(time);
+        assertEquals(RequestPolicy.State.CLOSED, policy.getState());
+        assertTrue(policy.allowRequest(time));
+    }
+
+    @Test
+    public void allowRequest_givesUpOnAProbeThatNeverReports() {
+        RequestPolicy policy = openPolicy();
+        long time = RequestPolicy.MAX_OPEN_DURATION;
+        assertTrue(policy.allowRequest(time));
+        assertEquals(RequestPolicy.State.HALF_OPEN, policy.getState());
+        // the probe was cancelled before it ran
+        assertFalse(policy.allowRequest(time + RequestPolicy.PROBE_TIMEOUT - 1));
+        assertTrue(policy.allowRequest(time + RequestPolicy.PROBE_TIMEOUT));
+        assertEquals(RequestPolicy.State.HALF_OPEN, policy.getState());
+
+        policy.reset();
+        assertEquals(RequestPolicy.State.CLOSED, policy.getState());
+        assertTrue(policy.allowRequest(time + RequestPolicy.PROBE_TIMEOUT));
+    }
+
+    /* The activities report to the policy from the task, so cancelling the screen only drops the UI callback */
+    @Test
+    public void cancelAll_duringHalfOpenStillClosesTheCircuit() throws Exception {
+        final RequestPolicy policy = openPolicy();
+        final long time = RequestPolicy.MAX_OPEN_DURATION;
+        assertTrue(policy.allowRequest(time));
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch reported = new CountDownLatch(1);
+        final boolean[] calledBack = new boolean[1];
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        TaskRunner runner = new TaskRunner(executor, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        runner.run(new TaskRunner.Task<Timer>() {
+            @Override
+            public Timer run() throws Exception {
+                started.countDown();
+                // a blocked HTTP read isn't interrupted by the cancel
+                while (true) {
+                    try {
+                        release.await(5, TimeUnit.SECONDS);
+                        break;
+                    } catch (InterruptedException e) {
+                        // keep waiting
+                    }
+                }
+                Timer timer = fetch();
+                policy.onSuccess(time);
+                reported.countDown();
+                return timer;
+            }
+        }, new TaskRunner.Callback<Timer>() {
+            @Override
+            public void onSuccess(Timer result) {
+                calledBack[0] = true;
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                calledBack[0] = true;
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        runner.cancelAll();
+        release.countDown();
+        assertTrue(reported.await(5, TimeUnit.SECONDS));
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+        assertFalse(calledBack[0]);
+        assertEquals(RequestPolicy.State.CLOSED, policy.getState());
+        assertTrue(policy.allowRequest(time + 1));
+    }
+
+    @Test
+    public void onNotFound_retriesSlowlyWithoutOpening() {
+        RequestPolicy policy = new RequestPolicy(new Random(1));
+        for (int i = 0; i < RequestPolicy.FAILURE_THRESHOLD * 2; i++) {
+            long time = i * RequestPolicy.NOT_FOUND_INTERVAL;
+            assertTrue(policy.allowRequest(time));
+            policy.onNotFound(time);
+            assertFalse(policy.allowRequest(time + RequestPolicy.NOT_FOUND_INTERVAL - 1));
+        }
+        assertEquals(RequestPolicy.State.CLOSED, policy.getState());
+    }
+
+    /* Tick once a second like MainActivity while the stand-in server fails for ten minutes */
+    @Test
+    public void faultInjection_serverErrors() throws IOException {
+        final long outageEnd = 600000;
+        server.setResponder(new StandInServer.Responder() {
+            @Override
+            public String respond(HttpExchange exchange, String requestBody) throws IOException {
+                if (now < outageEnd) {
+                    exchange.sendResponseHeaders(503, -1);
+                    return null;
+                }
+                return FOUND;
+            }
+        });
+        RequestPolicy policy = new RequestPolicy(new Random(7));
+        runTicks(policy, 0, 600);
+        int requests = server.getRequestCount();
+        long recovered = runTicks(policy, 600, 1200);
+
+        // the old behaviour sent one request per tick
+        assertTrue(requests < 30);
+        assertTrue(recovered >= outageEnd);
+        assertTrue(recovered - outageEnd <= RequestPolicy.MAX_OPEN_DURATION);
+        assertEquals(RequestPolicy.State.CLOSED, policy.getState());
+    }
+
+    /* A name with no document is polled at the not found rate and never opens the circuit */
+    @Test
+    public void faultInjection_notFound() throws IOException {
+        server.setResponder(new StandInServer.Responder() {
+            @Override
+            public String respond(HttpExchange exchange, String requestBody) {
+                return "[]";
+            }
+        });
+        RequestPolicy policy = new RequestPolicy(new Random(7));
+        runTicks(policy, 0, 300);
+        assertEquals(300000 / RequestPolicy.NOT_FOUND_INTERVAL, server.getRequestCount());
+        assertEquals(RequestPolicy.State.CLOSED, policy.getState());
+    }
+
+    @Test
+    public void onFailure_rejectionRetriesSlowlyWithoutOpening() {
+        RequestPolicy policy = new RequestPolicy(new Random(1));
+        for (int i = 0; i < RequestPolicy.FAILURE_THRESHOLD * 2; i++) {
+            long time = i * RequestPolicy.REJECTED_INTERVAL;
+            assertTrue(policy.allowRequest(time));
+            policy.onFailure(time, new HttpStatusException(403, "Forbidden"));
+            assertFalse(policy.allowRequest(time + RequestPolicy.REJECTED_INTERVAL - 1));
+        }
+        assertEquals(RequestPolicy.State.CLOSED, policy.getState());
+        assertEquals(0, policy.getConsecutiveFailures());
+
+        // server errors and throttling still count toward opening the circuit
+        policy.onFailure(0, new HttpStatusException(503, "Service Unavailable"));
+        policy.onFailure(0, new HttpStatusException(429, "Too Many Requests"));
+        policy.onFailure(0, new IOException("Connection reset"));
+        assertEquals(3, policy.getConsecutiveFailures());
+    }
+
+    /* A wrong API key is asked about once a minute and never opens the circuit */
+    @Test
+    public void faultInjection_rejected() throws IOException {
+        server.setResponder(new StandInServer.Responder() {
+            @Override
+            public String respond(HttpExchange exchange, String requestBody) throws IOException {
+                exchange.sendResponseHeaders(401, -1);
+                return null;
+            }
+        });
+        RequestPolicy policy = new RequestPolicy(new Random(7));
+        runTicks(policy, 0, 300);
+        assertEquals(300000 / RequestPolicy.REJECTED_INTERVAL, server.getRequestCount());
+        assertEquals(RequestPolicy.State.CLOSED, policy.getState());
+    }
+
+    @Test
+    public void fetch_classifiesStatusErrors() {
+        server.setResponder(new StandInServer.Responder() {
+            @Override
+            public String respond(HttpExchange exchange, String requestBody) throws IOException {
+                exchange.sendResponseHeaders(401, -1);
+                return null;
+            }
+        });
+        try {
+            fetch();
+        } catch (HttpStatusException e) {
+            assertEquals(401, e.getStatus());
+            assertFalse(e.isRetryable());
+            return;
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        throw new AssertionError("expected HttpStatusException");
+    }
+
+    /* A policy whose circuit opened at time 0 */
+    private RequestPolicy openPolicy() {
+        RequestPolicy policy = new RequestPolicy(new Random(1));
+        for (int i = 0; i < RequestPolicy.FAILURE_THRESHOLD; i++) {
+            policy.onFailure(0);
+        }
+        assertEquals(RequestPolicy.State.OPEN, policy.getState());
+        return policy;
+    }
+
+    /* Run one second ticks over the range, returns the time of the first successful fetch */
+    private long runTicks(RequestPolicy policy, int fromSecond, int toSecond) {
+        long firstSuccess = -1;
+        for (int tick = fromSecond; tick < toSecond; tick++) {
+            now = tick * 1000L;
+            if (!policy.allowRequest(now)) {
+                continue;
+            }
+            try {
+                Timer timer = fetch();
+                if (timer == null) {
+                    policy.onNotFound(now);
+                } else {
+                    policy.onSuccess(now);
+                    if (firstSuccess < 0) {
+                        firstSuccess = now;
+                    }
+                }
+            } catch (IOException e) {
+                policy.onFailure(now, e);
+            }
+        }
+        return firstSuccess;
+    }
+
+    /* The same request and decoding as ValveClient.fetch */
+    private Timer fetch() throws IOException {
+        Timer timer = transport.get("?q=%7B%22name%22%3A%22Valve%22%7D", new HttpTransport.ResponseReader<Timer>() {
+            @Override
+            public Timer read(InputStream in) throws IOException {
+                return decoder.decodeFirst(in, "Valve");
+            }
+        });
+        if (timer != null) {
+            assertNotNull(timer.getId());
+        }
+        return timer;
+    }
+}
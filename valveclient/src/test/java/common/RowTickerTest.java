@@ -0,0 +1,113 @@
+package common;
+
+import org.junit.Test;
+
+import models.Timer;
+
+import static org.junit.Assert.assertEquals;
+
+public class RowTickerTest {
+    private static final int NOW = 1571000000;
+
+    private static class CountingRow implements RowTicker.Row {
+        final int interval;
+        int renders = 0;
+
+        CountingRow(int interval) {
+            this.interval = interval;
+        }
+
+        @Override
+        public int render(int now) {
+            renders++;
+            return now + interval;
+        }
+    }
+
+    @Test
+    public void tick_rendersOnlyRowsThatAreDue() {
+        RowTicker ticker = new RowTicker();
+        CountingRow countdown = new CountingRow(1);
+        CountingRow idle = new CountingRow(60);
+        ticker.attach(countdown, NOW);
+        ticker.attach(idle, NOW);
+        assertEquals(1, idle.renders);
+
+        for (int i = 1; i <= 30; i++) {
+            ticker.tick(NOW + i);
+        }
+        assertEquals(31, countdown.renders);
+        assertEquals(1, idle.renders);
+
+        ticker.refresh(idle, NOW + 30);
+        assertEquals(0, ticker.tick(NOW + 30));
+        assertEquals(2, idle.renders);
+    }
+
+    @Test
+    public void detach_stopsTicking() {
+        RowTicker ticker = new RowTicker();
+        CountingRow[] rows = new CountingRow[100];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = new CountingRow(1);
+            ticker.attach(rows[i], NOW);
+        }
+        for (int i = 0; i < rows.length; i += 2) {
+            ticker.detach(rows[i]);
+        }
+        ticker.detach(rows[0]);
+        assertEquals(50, ticker.size());
+        assertEquals(50, ticker.tick(NOW + 1));
+        assertEquals(1, rows[0].renders);
+        assertEquals(2, rows[1].renders);
+
+        // a detached row is still rendered when its timer changes, just not ticked
+        ticker.refresh(rows[0], NOW + 1);
+        assertEquals(2, rows[0].renders);
+        assertEquals(50, ticker.size());
+    }
+
+    /* A dashboard of 200 valves, a third of them counting down, ticks without allocating */
+    @Test
+    public void tick_steadyStateDoesNotAllocate() {
+        RowTicker ticker = new RowTicker();
+        for (int i = 0; i < 200; i++) {
+            final StatusRenderer renderer = new StatusRenderer(new StatusRenderer.Display() {
+                @Override
+                public void setLayoutVisible(int layout, boolean visible) {
+                }
+
+                @Override
+                public void setLengthText(char[] text, int length) {
+                }
+
+                @Override
+                public void setLastSeenText(char[] text, int length) {
+                }
+            }, 10, "Offline for %d:%02d", "Offline for one hour", "Offline for %d hours");
+            final Timer timer = i % 3 == 0 ? new Timer("1", "on", NOW + 100000, NOW + 100000)
+                    : i % 3 == 1 ? new Timer("2", "off", 0, NOW + 100000) : new Timer("3", "gone", 0, NOW - 600);
+            ticker.attach(new RowTicker.Row() {
+                @Override
+                public int render(int now) {
+                    return renderer.render(timer, now);
+                }
+            }, NOW);
+        }
+        // warm up, so class loading and compilation happen before measuring
+        for (int i = 1; i <= 2000; i++) {
+            ticker.tick(NOW + i);
+        }
+        // compilation can still allocate on the way, a clean run shows the tick itself doesn't
+        long allocated = Long.MAX_VALUE;
+        int now = NOW + 2000;
+        for (int run = 0; run < 5 && allocated > 0; run++) {
+            long before = Allocations.allocatedBytes();
+            for (int i = 0; i < 2000; i++) {
+                ticker.tick(++now);
+            }
+            allocated = Allocations.allocatedBytes() - before;
+        }
+        assertEquals(0, allocated);
+    }
+}
@@ -0,0 +1,239 @@
+package common;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import models.Schedule;
+import models.Timer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ScheduleEngineTest {
+    private static final TimeZone ZONE = TimeZone.getTimeZone("America/Chicago");
+    private static final long MINUTE = 60 * 1000;
+    private static final long DAY = 24 * 60 * MINUTE;
+    private static final int WEEKDAYS = 0x3e;
+
+    /* Local midnight of a Sunday in the zone, 2019-10-13 */
+    private static long sunday() {
+        Calendar calendar = Calendar.getInstance(ZONE);
+        calendar.clear();
+        calendar.set(2019, Calendar.OCTOBER, 13);
+        return calendar.getTimeInMillis();
+    }
+
+    /* Wake only when the engine says a run is due, until `end`, and collect what ran */
+    private static List<ScheduleEngine.Run> simulate(ScheduleEngine engine, long end, AtomicInteger wakes) {
+        List<ScheduleEngine.Run> runs = new ArrayList<>();
+        long now;
+        while ((now = engine.getNextDueTime()) <= end) {
+            wakes.incrementAndGet();
+            List<ScheduleEngine.Run> due = engine.poll(now);
+            assertTrue(!due.isEmpty());
+            runs.addAll(due);
+        }
+        return runs;
+    }
+
+    @Test
+    public void poll_runsOnTheScheduledDays() {
+        long start = sunday();
+        ScheduleEngine engine = new ScheduleEngine(ZONE);
+        engine.add(new Schedule("daily", "A", 6 * 60, 15 * 60, Schedule.EVERY_DAY), start);
+        engine.add(new Schedule("weekdays", "B", 18 * 60 + 30, 600, WEEKDAYS), start);
+        List<ScheduleEngine.Run> runs = simulate(engine, start + 14 * DAY, new AtomicInteger());
+        int daily = 0;
+        int weekdays = 0;
+        Calendar calendar = Calendar.getInstance(ZONE);
+        for (ScheduleEngine.Run run : runs) {
+            calendar.setTimeInMillis(run.getStart());
+            if (run.getSchedule().getId().equals("daily")) {
+                daily++;
+                assertEquals(6, calendar.get(Calendar.HOUR_OF_DAY));
+                assertEquals(15 * 60, run.getSecondsLeft(run.getStart()));
+            } else {
+                weekdays++;
+                assertEquals(18, calendar.get(Calendar.HOUR_OF_DAY));
+                int day = calendar.get(Calendar.DAY_OF_WEEK);
+                assertTrue(day != Calendar.SATURDAY && day != Calendar.SUNDAY);
+            }
+            assertEquals(0, calendar.get(Calendar.MINUTE) % 30);
+        }
+        assertEquals(14, daily);
+        assertEquals(10, weekdays);
+    }
+
+    /* The clocks go back an hour on 2019-11-03, the run stays at 06:00 local time */
+    @Test
+    public void poll_followsLocalTimeAcrossDaylightSaving() {
+        long start = sunday() + 20 * DAY;
+        ScheduleEngine engine = new ScheduleEngine(ZONE);
+        engine.add(new Schedule("daily", "A", 6 * 60, 60, Schedule.EVERY_DAY), start);
+        List<ScheduleEngine.Run> runs = simulate(engine, start + 3 * DAY, new AtomicInteger());
+        assertEquals(3, runs.size());
+        assertEquals(25 * 60 * MINUTE, runs.get(1).getStart() - runs.get(0).getStart());
+        Calendar calendar = Calendar.getInstance(ZONE);
+        for (ScheduleEngine.Run run : runs) {
+            calendar.setTimeInMillis(run.getStart());
+            assertEquals(6, calendar.get(Calendar.HOUR_OF_DAY));
+        }
+    }
+
+    /* Ten thousand schedules over a simulated week: each runs once a day, wakes only at due times */
+    @Test
+    public void poll_handlesThousandsOfSchedules() {
+        long start = sunday();
+        Random random = new Random(42);
+        ScheduleEngine engine = new ScheduleEngine(ZONE);
+        Set<Integer> startMinutes = new HashSet<>();
+        // runs that started on Saturday night and are still under way at the start resume then
+        int resumed = 0;
+        for (int i = 0; i < 10000; i++) {
+            int minute = random.nextInt(24 * 60);
+            int length = 60 + random.nextInt(3600);
+            startMinutes.add(minute);
+            engine.add(new Schedule("s" + i, "valve " + i % 500, minute, length, Schedule.EVERY_DAY), start);
+            if (i % 3 != 0 && minute * 60 + length > 24 * 3600) {
+                resumed++;
+            }
+        }
+        // take some out again, their runs must never come up
+        for (int i = 0; i < 10000; i += 3) {
+            assertTrue(engine.remove("s" + i));
+        }
+        AtomicInteger wakes = new AtomicInteger();
+        long started = System.nanoTime();
+        List<ScheduleEngine.Run> runs = simulate(engine, start + 7 * DAY - 1, wakes);
+        long elapsed = System.nanoTime() - started;
+
+        assertEquals(6666 * 7 + resumed, runs.size());
+        assertTrue(wakes.get() <= startMinutes.size() * 7 + 1);
+        long previous = 0;
+        for (ScheduleEngine.Run run : runs) {
+            assertTrue(run.getStart() >= previous);
+            previous = run.getStart();
+            assertTrue(Integer.parseInt(run.getSchedule().getId().substring(1)) % 3 != 0);
+        }
+        assertEquals(6666, engine.size());
+        // a few microseconds per run, far from anything a phone would notice
+        assertTrue("took " + elapsed / 1000000 + " ms", elapsed < TimeUnit.SECONDS.toNanos(5));
+    }
+
+    /* After a restart during a run, the rest of the run goes out once */
+    @Test
+    public void add_resumesARunUnderWay() {
+        long sixAm = sunday() + 6 * 60 * MINUTE;
+        Schedule schedule = new Schedule("daily", "A", 6 * 60, 15 * 60, Schedule.EVERY_DAY);
+        ScheduleEngine engine = new ScheduleEngine(ZONE);
+        engine.add(schedule, sixAm + 5 * MINUTE);
+        List<ScheduleEngine.Run> runs = engine.poll(sixAm + 5 * MINUTE);
+        assertEquals(1, runs.size());
+        assertEquals(10 * 60, runs.get(0).getSecondsLeft(sixAm + 5 * MINUTE));
+        engine.markSent(runs.get(0));
+        assertEquals(sixAm, engine.getLastRun("daily"));
+
+        ScheduleEngine restarted = new ScheduleEngine(ZONE);
+        restarted.add(schedule, engine.getLastRun("daily"), sixAm + 7 * MINUTE);
+        assertEquals(sixAm + DAY, restarted.getNextDueTime());
+    }
+
+    /* A run that was polled but never marked sent is due again after a restart */
+    @Test
+    public void add_resumesARunThatWasNotSent() {
+        long sixAm = sunday() + 6 * 60 * MINUTE;
+        Schedule schedule = new Schedule("daily", "A", 6 * 60, 15 * 60, Schedule.EVERY_DAY);
+        ScheduleEngine engine = new ScheduleEngine(ZONE);
+        engine.add(schedule, sixAm);
+        assertEquals(1, engine.poll(sixAm).size());
+        assertEquals(0, engine.getLastRun("daily"));
+
+        ScheduleEngine restarted = new ScheduleEngine(ZONE);
+        restarted.add(schedule, engine.getLastRun("daily"), sixAm + 7 * MINUTE);
+        List<ScheduleEngine.Run> runs = restarted.poll(sixAm + 7 * MINUTE);
+        assertEquals(1, runs.size());
+        assertEquals(8 * 60, runs.get(0).getSecondsLeft(sixAm + 7 * MINUTE));
+    }
+
+    /* A run that ended while nothing was polling is skipped, not sent late */
+    @Test
+    public void poll_skipsRunsThatEndedUnseen() {
+        long start = sunday();
+        ScheduleEngine engine = new ScheduleEngine(ZONE);
+        engine.add(new Schedule("daily", "A", 6 * 60, 15 * 60, Schedule.EVERY_DAY), start);
+        assertEquals(0, engine.poll(start + 2 * DAY + 7 * 60 * MINUTE).size());
+        assertEquals(start + 3 * DAY + 6 * 60 * MINUTE, engine.getNextDueTime());
+        assertEquals(Long.MAX_VALUE, new ScheduleEngine(ZONE).getNextDueTime());
+    }
+
+    /* Runs due together go out as one query per distinct length, a valve due twice gets the longer run */
+    @Test
+    public void send_batchesTheRuns() throws Exception {
+        final Pattern quoted = Pattern.compile("\"((?:[^\"\\\\]|\\\\.)*)\"");
+        final Pattern endPattern = Pattern.compile("\"end\":(-?\\d+)");
+        final AtomicInteger queries = new AtomicInteger();
+        StandInServer server = new StandInServer(new StandInServer.Responder() {
+            @Override
+            public String respond(HttpExchange exchange, String requestBody) throws IOException {
+                if (exchange.getRequestHeaders().getFirst("x-http-method-override") != null) {
+                    String id = exchange.getRequestURI().getPath().replaceAll(".*/", "");
+                    Matcher end = endPattern.matcher(requestBody);
+                    assertTrue(end.find());
+                    return String.format("{\"_id\":\"%s\",\"name\":\"%s\",\"end\":%s,\"last_seen\":0}", id, id,
+                            end.group(1));
+                }
+                queries.incrementAndGet();
+                String q = exchange.getRequestURI().getRawQuery().replaceAll("^q=([^&]*).*", "$1");
+                Matcher matcher = quoted.matcher(URLDecoder.decode(q, "UTF-8"));
+                StringBuilder body = new StringBuilder("[");
+                while (matcher.find()) {
+                    if (!matcher.group(1).equals("name") && !matcher.group(1).equals("$in")) {
+                        body.append(body.length() > 1 ? "," : "").append(String.format(
+                                "{\"_id\":\"%1$s\",\"name\":\"%1$s\",\"end\":0,\"last_seen\":0}", matcher.group(1)));
+                    }
+                }
+                return body.append("]").toString();
+            }
+        });
+        ValveClient client = new ValveClient(new HttpTransport(server.getUrl(), "key", 1000, 5000), 2);
+        try {
+            long sixAm = sunday() + 6 * 60 * MINUTE;
+            ScheduleEngine engine = new ScheduleEngine(ZONE);
+            for (String name : Arrays.asList("A", "B", "C")) {
+                engine.add(new Schedule("long " + name, name, 6 * 60, 900, Schedule.EVERY_DAY), sixAm - 1);
+            }
+            engine.add(new Schedule("short D", "D", 6 * 60, 300, Schedule.EVERY_DAY), sixAm - 1);
+            engine.add(new Schedule("short A", "A", 6 * 60, 300, Schedule.EVERY_DAY), sixAm - 1);
+            List<ScheduleEngine.Run> runs = engine.poll(sixAm);
+            assertEquals(5, runs.size());
+
+            Map<String, Future<Timer>> results = ScheduleEngine.send(client, runs, sixAm);
+            assertEquals(4, results.size());
+            int now = client.getTransport().getServerClock().currentTimeSeconds();
+            assertTrue(Math.abs(now + 900 - results.get("A").get(5, TimeUnit.SECONDS).getEnd()) <= 1);
+            assertTrue(Math.abs(now + 300 - results.get("D").get(5, TimeUnit.SECONDS).getEnd()) <= 1);
+            assertEquals(2, queries.get());
+        } finally {
+            client.shutdown();
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package common;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.TimeZone;
+
+import models.Schedule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ScheduleStoreTest {
+    private static final TimeZone ZONE = TimeZone.getTimeZone("UTC");
+    private static final long NOW = 1571000000000L;
+
+    private File directory;
+    private ScheduleStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("schedules", "");
+        assertTrue(directory.delete());
+        store = new ScheduleStore(new File(directory, "schedules"));
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void save_roundTripsSchedulesAndLastRuns() {
+        ScheduleEngine engine = new ScheduleEngine(ZONE);
+        Schedule daily = new Schedule("1", "Front lawn", 6 * 60, 900, Schedule.EVERY_DAY);
+        Schedule weekdays = new Schedule("2", "Garden \u2603", 23 * 60 + 59, 60, 0x3e);
+        engine.add(daily, NOW);
+        engine.add(weekdays, NOW - 3600000, NOW);
+        assertTrue(store.save(engine));
+
+        ScheduleEngine loaded = new ScheduleEngine(ZONE);
+        assertEquals(2, store.load(loaded, NOW));
+        assertEquals(2, loaded.size());
+        assertTrue(loaded.getSchedules().contains(daily));
+        assertTrue(loaded.getSchedules().contains(weekdays));
+        assertEquals(NOW - 3600000, loaded.getLastRun("2"));
+        assertEquals(0, loaded.getLastRun("1"));
+        assertEquals(engine.getNextDueTime(), loaded.getNextDueTime());
+    }
+
+    @Test
+    public void load_corruptFileIsEmpty() throws IOException {
+        assertEquals(0, store.load(new ScheduleEngine(ZONE), NOW));
+        assertTrue(directory.mkdirs());
+        FileOutputStream out = new FileOutputStream(new File(directory, "schedules"));
+        out.write(new byte[]{0x56, 0x54, 0x53, 0x31, 0, 0, 0, 5, 1, 2});
+        out.close();
+        ScheduleEngine engine = new ScheduleEngine(ZONE);
+        assertEquals(0, store.load(engine, NOW));
+        assertEquals(0, engine.size());
+    }
+}
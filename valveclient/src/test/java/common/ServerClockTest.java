@@ -0,0 +1,207 @@
+package common;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import models.Timer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ServerClockTest {
+    private static final long START = 1500000000000L;
+
+    /* Phone clocks that the test moves by hand */
+    private static class FakeSource implements ServerClock.Source {
+        long monotonic = 5000;
+        long wall = START;
+
+        @Override
+        public long monotonicMillis() {
+            return monotonic;
+        }
+
+        @Override
+        public long wallMillis() {
+            return wall;
+        }
+
+        void advance(long millis) {
+            monotonic += millis;
+            wall += millis;
+        }
+    }
+
+    /* A server whose clock is `skew` ahead of the phone and runs `drift` faster (parts per million) */
+    private static class SimulatedServer {
+        final FakeSource phone;
+        final long skew;
+        final double drift;
+        final long origin;
+        final Random random = new Random(42);
+
+        SimulatedServer(FakeSource phone, long skew, double drift) {
+            this.phone = phone;
+            this.skew = skew;
+            this.drift = drift;
+            origin = phone.monotonic;
+        }
+
+        long now() {
+            long elapsed = phone.monotonic - origin;
+            return START + skew + elapsed + (long) (elapsed * drift / 1e6);
+        }
+
+        /* Run one request through the clock with a random round trip, the server answers somewhere in it */
+        void request(ServerClock clock) {
+            long sentAt = phone.monotonic;
+            long roundTrip = 20 + random.nextInt(400);
+            long serverReads = (long) (random.nextDouble() * roundTrip);
+            phone.advance(serverReads);
+            long date = now() / 1000 * 1000;
+            phone.advance(roundTrip - serverReads);
+            clock.onResponse(sentAt, phone.monotonic, date);
+        }
+    }
+
+    @Test
+    public void usesPhoneClockUntilSynced() {
+        FakeSource source = new FakeSource();
+        ServerClock clock = new ServerClock(source);
+        assertFalse(clock.isSynced());
+        assertEquals(START, clock.currentTimeMillis());
+        source.advance(1500);
+        assertEquals(START + 1500, clock.currentTimeMillis());
+        assertEquals(0, clock.getOffset());
+    }
+
+    @Test
+    public void estimatesSkewBetterThanDateResolution() {
+        FakeSource source = new FakeSource();
+        ServerClock clock = new ServerClock(source);
+        SimulatedServer server = new SimulatedServer(source, -73400, 0);
+        server.request(clock);
+        assertTrue(clock.isSynced());
+        assertWithinUncertainty(clock, server);
+        for (int i = 0; i < 20; i++) {
+            source.advance(10000);
+            server.request(clock);
+            assertWithinUncertainty(clock, server);
+        }
+        long error = Math.abs(clock.currentTimeMillis() - server.now());
+        assertTrue("error " + error, error < 100);
+        assertTrue("uncertainty " + clock.getUncertainty(), clock.getUncertainty() < 200);
+        assertEquals(-73400, clock.getOffset(), 100);
+    }
+
+    /* Setting the phone's clock must not move the countdown */
+    @Test
+    public void ignoresPhoneClockChanges() {
+        FakeSource source = new FakeSource();
+        ServerClock clock = new ServerClock(source);
+        SimulatedServer server = new SimulatedServer(source, 2000, 0);
+        for (int i = 0; i < 5; i++) {
+            server.request(clock);
+        }
+        long before = clock.currentTimeMillis();
+        source.wall -= 3600 * 1000;
+        source.advance(1000);
+        assertEquals(before + 1000, clock.currentTimeMillis());
+    }
+
+    /* Without a server LOCAL is the phone's clock as it is set now, not a snapshot of it */
+    @Test
+    public void local_isThePhoneClock() {
+        assertEquals(System.currentTimeMillis(), ServerClock.LOCAL.currentTimeMillis(), 1000);
+        assertEquals(0, ServerClock.LOCAL.getOffset(), 1000);
+    }
+
+    /* A day of polls every minute against a server clock that drifts and is then stepped */
+    @Test
+    public void followsDriftAndSteps() {
+        FakeSource source = new FakeSource();
+        ServerClock clock = new ServerClock(source);
+        SimulatedServer server = new SimulatedServer(source, 15000, 500);
+        long maxError = 0;
+        for (int minute = 0; minute < 24 * 60; minute++) {
+            server.request(clock);
+            maxError = Math.max(maxError, Math.abs(clock.currentTimeMillis() - server.now()));
+            source.advance(60000);
+        }
+        // 500 ppm is 30 ms a minute, the estimate keeps up without ever being a whole second off
+        assertTrue("max error " + maxError, maxError < 1000);
+
+        SimulatedServer stepped = new SimulatedServer(source, 15000 + 45000, 0);
+        for (int i = 0; i < 3; i++) {
+            stepped.request(clock);
+            source.advance(1000);
+        }
+        long error = Math.abs(clock.currentTimeMillis() - stepped.now());
+        assertTrue("error after step " + error, error < 1000);
+    }
+
+    /* Polls every minute keep overlapping, the estimate still starts over once its first range is an hour old */
+    @Test
+    public void restartsAfterMaxSampleAge() {
+        FakeSource source = new FakeSource();
+        ServerClock clock = new ServerClock(source);
+        SimulatedServer server = new SimulatedServer(source, 5000, 0);
+        server.request(clock);
+        long start = source.monotonic;
+        long restartedAfter = -1;
+        for (int minute = 1; minute <= 90 && restartedAfter < 0; minute++) {
+            source.advance(60000);
+            long before = clock.getUncertainty();
+            server.request(clock);
+            assertWithinUncertainty(clock, server);
+            // a single response is only known to the second, many intersected ones much better
+            if (before < ServerClock.DATE_RESOLUTION / 4 && clock.getUncertainty() >= ServerClock.DATE_RESOLUTION / 2) {
+                restartedAfter = source.monotonic - start;
+            }
+        }
+        assertTrue("restarted after " + restartedAfter, restartedAfter > ServerClock.MAX_SAMPLE_AGE);
+        assertTrue("restarted after " + restartedAfter, restartedAfter < ServerClock.MAX_SAMPLE_AGE + 2 * 60000);
+    }
+
+    @Test
+    public void timerCountsDownOnServerClock() {
+        FakeSource source = new FakeSource();
+        ServerClock clock = new ServerClock(source);
+        SimulatedServer server = new SimulatedServer(source, -120000, 0);
+        for (int i = 0; i < 5; i++) {
+            server.request(clock);
+        }
+        int serverNow = (int) (server.now() / 1000);
+        Timer timer = new Timer("1", "Valve", serverNow + 60, serverNow, clock);
+        // with the phone's clock the valve would look off and disconnected for two minutes
+        assertEquals(60, timer.getLength(), 1);
+        source.advance(10000);
+        assertEquals(50, timer.getLength(), 1);
+        assertEquals(10, timer.getTimeSinceLastSeen(), 1);
+        assertEquals(timer.getEnd(), timer.withEnd(timer.getEnd()).getEnd());
+        assertTrue(timer.withEnd(0).getClock() == clock);
+    }
+
+    @Test
+    public void transportFeedsClockFromDateHeader() throws IOException {
+        StandInServer server = StandInServer.returning("[]");
+        try {
+            HttpTransport transport = new HttpTransport(server.getUrl(), "key", 1000, 1000);
+            transport.get("");
+            ServerClock clock = transport.getServerClock();
+            assertTrue(clock.isSynced());
+            // same machine, the offset is only the uncertainty of one whole second header
+            assertEquals(0, clock.getOffset(), 1100);
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static void assertWithinUncertainty(ServerClock clock, SimulatedServer server) {
+        long error = Math.abs(clock.currentTimeMillis() - server.now());
+        assertTrue("error " + error + " over " + clock.getUncertainty(), error <= clock.getUncertainty() + 1);
+    }
+}
@@ -0,0 +1,118 @@
+package common;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/* Local stand-in for the RESTdb collection endpoint, used by the JVM tests */
+class StandInServer implements HttpHandler {
+    interface Responder {
+        /* Return the body for a 200 response, or send the headers and body directly and return null */
+        String respond(HttpExchange exchange, String requestBody) throws IOException;
+    }
+
+    static {
+        // without this the JDK server's delayed ACKs dominate every measured latency
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer server;
+    private final Set<String> clientAddresses = Collections.synchronizedSet(new HashSet<String>());
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private volatile Responder responder;
+    private volatile boolean compression = false;
+
+    StandInServer(Responder responder) throws IOException {
+        this.responder = responder;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/rest/timers", this);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    /* A server that answers every query with the given body */
+    static StandInServer returning(final String body) throws IOException {
+        return new StandInServer(new Responder() {
+            @Override
+            public String respond(HttpExchange exchange, String requestBody) throws IOException {
+                return body;
+            }
+        });
+    }
+
+    String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/rest/timers";
+    }
+
+    void setResponder(Responder responder) {
+        this.responder = responder;
+    }
+
+    /* Gzip the bodies returned by the responder for clients that accept it */
+    void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    /* The number of distinct client sockets, ie. TCP handshakes */
+    int getConnectionCount() {
+        return clientAddresses.size();
+    }
+
+    int getRequestCount() {
+        return requestCount.get();
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        requestCount.incrementAndGet();
+        clientAddresses.add(exchange.getRemoteAddress().toString());
+        String requestBody = readFully(exchange.getRequestBody());
+        String body = responder.respond(exchange, requestBody);
+        if (exchange.getResponseCode() == -1) {
+            byte[] bytes = body.getBytes(HttpTransport.UTF_8);
+            String acceptEncoding = exchange.getRequestHeaders().getFirst("accept-encoding");
+            if (compression && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                bytes = gzip(bytes);
+                exchange.getResponseHeaders().set("content-encoding", "gzip");
+            }
+            exchange.sendResponseHeaders(200, bytes.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+        }
+        exchange.close();
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(compressed);
+        out.write(bytes);
+        out.close();
+        return compressed.toByteArray();
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        byte[] buffer = new byte[1024];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            sb.append(new String(buffer, 0, count, HttpTransport.UTF_8));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,22 @@
+package common;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StartupTraceTest {
+    @Test
+    public void mark_keepsTheFirstTimeOfEachStepInOrder() {
+        StartupTrace trace = new StartupTrace(1000);
+        assertTrue(trace.mark("application", 1040));
+        assertTrue(trace.mark("activity", 1200));
+        assertFalse(trace.mark("application", 1300));
+        assertTrue(trace.mark("fresh status", 1450));
+
+        assertEquals(40, trace.get("application"));
+        assertEquals(-1, trace.get("cached status"));
+        assertEquals("application +40 ms, activity +200 ms, fresh status +450 ms", trace.toString());
+    }
+}
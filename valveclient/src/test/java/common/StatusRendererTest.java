@@ -0,0 +1,136 @@
+package common;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import models.Timer;
+
+import static org.junit.Assert.assertEquals;
+
+public class StatusRendererTest {
+    private static final int LAST_SEEN_THRESH = 10;
+    private static final int NOW = 1571000000;
+
+    private RecordingDisplay display;
+    private StatusRenderer renderer;
+
+    @Before
+    public void setUp() {
+        display = new RecordingDisplay();
+        renderer = new StatusRenderer(display, LAST_SEEN_THRESH, "Offline for %d:%02d", "Offline for one hour",
+                "Offline for %d hours");
+    }
+
+    @Test
+    public void render_countdownText() {
+        Timer timer = new Timer("1", "Valve", NOW + 3600, NOW);
+        for (int elapsed = 0; elapsed < 3600; elapsed++) {
+            int length = 3600 - elapsed;
+            renderer.render(new Timer("1", "Valve", timer.getEnd(), NOW + elapsed), NOW + elapsed);
+            String expected = String.format("%d seconds", length);
+            if (length == 1) {
+                expected = "One moment";
+            } else if (length >= 60) {
+                expected = String.format("%d:%02d", length / 60, length % 60);
+            }
+            assertEquals(expected, display.lengthText);
+        }
+    }
+
+    @Test
+    public void render_offlineText() {
+        Timer timer = new Timer("1", "Valve", 0, NOW);
+        renderer.render(timer, NOW + 75);
+        assertEquals("Offline for 1:15", display.lastSeenText);
+        renderer.render(timer, NOW + 3700);
+        assertEquals("Offline for one hour", display.lastSeenText);
+        renderer.render(timer, NOW + 3 * 3600 + 5);
+        assertEquals("Offline for 3 hours", display.lastSeenText);
+        assertEquals(StatusRenderer.LAYOUT_DISCONNECTED, display.visibleLayout());
+    }
+
+    @Test
+    public void render_onlyTouchesChangedViews() {
+        Timer on = new Timer("1", "Valve", NOW + 100, NOW);
+        renderer.render(on, NOW);
+        // the first render sets every layout
+        assertEquals(4, display.visibilityCalls);
+        assertEquals(1, display.textCalls);
+
+        renderer.render(on, NOW);
+        assertEquals(4, display.visibilityCalls);
+        assertEquals(1, display.textCalls);
+
+        renderer.render(new Timer("1", "Valve", NOW, NOW + 1), NOW + 1);
+        assertEquals(6, display.visibilityCalls);
+        assertEquals(1, display.textCalls);
+        assertEquals(StatusRenderer.LAYOUT_OFF, display.visibleLayout());
+    }
+
+    @Test
+    public void render_returnsNextChange() {
+        assertEquals(Integer.MAX_VALUE, renderer.render(null, NOW));
+        assertEquals(NOW + 1, renderer.render(new Timer("1", "Valve", NOW + 100, NOW), NOW));
+        assertEquals(NOW + LAST_SEEN_THRESH, renderer.render(new Timer("1", "Valve", 0, NOW), NOW + 2));
+        assertEquals(NOW + 3 * 3600, renderer.render(new Timer("1", "Valve", 0, NOW), NOW + 2 * 3600 + 10));
+    }
+
+    /* Once the views are set up, a tick formats into the reused buffers and allocates nothing */
+    @Test
+    public void render_steadyStateTicksDoNotAllocate() {
+        Timer on = new Timer("1", "Valve", NOW + 100000, NOW);
+        Timer offline = new Timer("1", "Valve", 0, NOW - 100000);
+        display.recordText = false;
+        // warm up, so class loading and compilation happen before measuring
+        for (int i = 0; i < 20000; i++) {
+            renderer.render(on, NOW + i % 600);
+            renderer.render(offline, NOW + i % 600);
+        }
+        long before = Allocations.allocatedBytes();
+        for (int i = 0; i < 20000; i++) {
+            renderer.render(on, NOW + i % 600);
+            renderer.render(offline, NOW + i % 600);
+        }
+        assertEquals(0, Allocations.allocatedBytes() - before);
+    }
+
+    private static class RecordingDisplay implements StatusRenderer.Display {
+        final boolean[] visible = new boolean[StatusRenderer.LAYOUT_COUNT];
+        int visibilityCalls;
+        int textCalls;
+        String lengthText;
+        String lastSeenText;
+        boolean recordText = true;
+
+        @Override
+        public void setLayoutVisible(int layout, boolean visible) {
+            this.visible[layout] = visible;
+            visibilityCalls++;
+        }
+
+        @Override
+        public void setLengthText(char[] text, int length) {
+            textCalls++;
+            if (recordText) {
+                lengthText = new String(text, 0, length);
+            }
+        }
+
+        @Override
+        public void setLastSeenText(char[] text, int length) {
+            textCalls++;
+            if (recordText) {
+                lastSeenText = new String(text, 0, length);
+            }
+        }
+
+        int visibleLayout() {
+            for (int i = 0; i < visible.length; i++) {
+                if (visible[i]) {
+                    return i;
+                }
+            }
+            return StatusRenderer.LAYOUT_NONE;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package common;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TaskRunnerTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private ExecutorService executor;
+    private TaskRunner runner;
+    private final List<String> results = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+        runner = new TaskRunner(executor, DIRECT);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void submit_coalescesSameKey() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger runs = new AtomicInteger();
+        assertTrue(runner.submit("Valve", blockingTask(release, runs, "a"), recording()));
+        assertFalse(runner.submit("Valve", blockingTask(release, runs, "b"), recording()));
+        assertTrue(runner.submit("Other", blockingTask(release, runs, "c"), recording()));
+        release.countDown();
+        awaitResults(3);
+
+        assertEquals(2, runs.get());
+        Collections.sort(results);
+        assertEquals("[a, a, c]", results.toString());
+        // a finished key starts a new task
+        assertTrue(runner.submit("Valve", blockingTask(release, runs, "d"), recording()));
+        awaitResults(4);
+        assertEquals(3, runs.get());
+    }
+
+    @Test
+    public void supersede_dropsOlderResults() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger runs = new AtomicInteger();
+        runner.submit("Valve", blockingTask(release, runs, "old"), recording());
+        runner.supersede();
+        // the same key after supersede does not join the stale task
+        assertTrue(runner.submit("Valve", blockingTask(release, runs, "new"), recording()));
+        release.countDown();
+        awaitResults(1);
+        assertEquals(0, runner.getInFlightCount());
+        assertEquals("[new]", results.toString());
+        assertEquals(2, runs.get());
+    }
+
+    @Test
+    public void cancelAll_interruptsAndDropsResults() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        runner.run(new TaskRunner.Task<String>() {
+            @Override
+            public String run() {
+                started.countDown();
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+                return "late";
+            }
+        }, recording());
+        started.await();
+        runner.cancelAll();
+        assertTrue(interrupted.await(1, TimeUnit.SECONDS));
+        assertEquals(0, runner.getInFlightCount());
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.SECONDS);
+        assertTrue(results.isEmpty());
+    }
+
+    @Test
+    public void submit_reportsRejection() {
+        ThreadPoolExecutor bounded = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(1));
+        try {
+            TaskRunner boundedRunner = new TaskRunner(bounded, DIRECT);
+            CountDownLatch release = new CountDownLatch(1);
+            AtomicInteger runs = new AtomicInteger();
+            boundedRunner.submit("a", blockingTask(release, runs, "a"), recording());
+            boundedRunner.submit("b", blockingTask(release, runs, "b"), recording());
+            boundedRunner.submit("c", blockingTask(release, runs, "c"), recording());
+            assertEquals("[" + RejectedExecutionException.class.getSimpleName() + "]", results.toString());
+            release.countDown();
+        } finally {
+            bounded.shutdown();
+        }
+    }
+
+    /* Many threads polling the same valve at once start one fetch */
+    @Test
+    public void submit_concurrentCallersShareOneFetch() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger runs = new AtomicInteger();
+        ExecutorService callers = Executors.newFixedThreadPool(8);
+        final CountDownLatch submitted = new CountDownLatch(50);
+        for (int i = 0; i < 50; i++) {
+            callers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    runner.submit("Valve", blockingTask(release, runs, "x"), recording());
+                    submitted.countDown();
+                }
+            });
+        }
+        submitted.await();
+        release.countDown();
+        awaitResults(50);
+        callers.shutdown();
+        assertEquals(1, runs.get());
+        assertEquals(50, results.size());
+    }
+
+    private void awaitResults(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (results.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, results.size());
+    }
+
+    private static TaskRunner.Task<String> blockingTask(final CountDownLatch release, final AtomicInteger runs,
+                                                        final String result) {
+        return new TaskRunner.Task<String>() {
+            @Override
+            public String run() throws Exception {
+                runs.incrementAndGet();
+                release.await();
+                return result;
+            }
+        };
+    }
+
+    private TaskRunner.Callback<String> recording() {
+        return new TaskRunner.Callback<String>() {
+            @Override
+            public void onSuccess(String result) {
+                results.add(result);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                results.add(e.getClass().getSimpleName());
+            }
+        };
+    }
+}
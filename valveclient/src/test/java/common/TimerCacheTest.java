@@ -0,0 +1,122 @@
+package common;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import models.Timer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TimerCacheTest {
+    private static final long TTL = 3600000;
+
+    private File directory;
+    private TimerCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("timer-cache", "");
+        assertTrue(directory.delete());
+        cache = new TimerCache(new File(directory, "timers"), TTL);
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(directory);
+    }
+
+    @Test
+    public void put_roundTrips() {
+        Timer timer = new Timer("5d9e", "Front y\u00e4rd / 2", 1571000123, 1571000100);
+        assertTrue(cache.put(timer, 1000));
+        TimerCache.Entry entry = cache.get("Front y\u00e4rd / 2", 2000);
+        assertEquals(timer, entry.getTimer());
+        assertEquals(1000, entry.getFetchedAt());
+        assertNull(cache.get("Other", 2000));
+    }
+
+    @Test
+    public void put_replacesEntry() {
+        cache.put(new Timer("1", "Valve", 10, 10), 1000);
+        cache.put(new Timer("1", "Valve", 20, 15), 2000);
+        assertEquals(20, cache.get("Valve", 2000).getTimer().getEnd());
+    }
+
+    /* The screen and the command queue write the same valve from different threads */
+    @Test
+    public void put_concurrentWritesLeaveAWholeEntry() throws InterruptedException {
+        Thread[] writers = new Thread[4];
+        final boolean[] failed = new boolean[writers.length];
+        for (int i = 0; i < writers.length; i++) {
+            final int writer = i;
+            writers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 200; j++) {
+                        if (!cache.put(new Timer("1", "Valve", writer, writer), 1000)) {
+                            failed[writer] = true;
+                        }
+                    }
+                }
+            });
+            writers[i].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        for (boolean writerFailed : failed) {
+            assertFalse(writerFailed);
+        }
+        Timer timer = cache.get("Valve", 1000).getTimer();
+        assertEquals(timer.getEnd(), timer.getLastSeen());
+        // no temporary file is left over
+        assertEquals(1, new File(directory, "timers").listFiles().length);
+    }
+
+    @Test
+    public void get_expiresAfterTtl() {
+        cache.put(new Timer("1", "Valve", 10, 10), 1000);
+        assertNull(cache.get("Valve", 1000 + TTL + 1));
+        // the expired entry is gone
+        assertNull(cache.get("Valve", 1000));
+    }
+
+    @Test
+    public void get_ignoresCorruptFile() throws IOException {
+        cache.put(new Timer("1", "Valve", 10, 10), 1000);
+        File[] files = new File(directory, "timers").listFiles();
+        assertEquals(1, files.length);
+        FileOutputStream out = new FileOutputStream(files[0]);
+        out.write(new byte[]{1, 2, 3});
+        out.close();
+        assertNull(cache.get("Valve", 1000));
+        assertFalse(files[0].exists());
+    }
+
+    @Test
+    public void evictExpired_deletesOldFiles() {
+        cache.put(new Timer("1", "Valve", 10, 10), 1000);
+        File file = new File(directory, "timers").listFiles()[0];
+        long now = file.lastModified() + TTL + 1;
+        cache.evictExpired(now);
+        assertFalse(file.exists());
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,137 @@
+package common;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import models.Timer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TimerDecoderTest {
+    private static final String DOCUMENT = "{\"_id\":\"5d9e1f\",\"name\":\"Valve\",\"end\":1571000123,"
+            + "\"last_seen\":1571000100,\"_created\":\"2019-10-09T17:23:07.062Z\",\"_changed\":\"2019-10-13T21:41:40.212Z\","
+            + "\"_createdby\":\"api\",\"_changedby\":\"api\",\"_version\":4123,\"notes\":{\"a\":[1,2,{\"b\":null}],\"c\":true}}";
+
+    private final TimerDecoder decoder = new TimerDecoder();
+
+    @Test
+    public void decodeFirst_readsFields() throws IOException {
+        Timer timer = decoder.decodeFirst(stream("[" + DOCUMENT + "]"), "Other");
+        assertEquals("5d9e1f", timer.getId());
+        assertEquals("Valve", timer.getName());
+        assertEquals(1571000123, timer.getEnd());
+        assertEquals(1571000100, timer.getLastSeen());
+    }
+
+    @Test
+    public void decodeFirst_emptyArray() throws IOException {
+        assertNull(decoder.decodeFirst(stream(" [ ] "), "Valve"));
+    }
+
+    @Test
+    public void decodeAll_readsEveryDocument() throws IOException {
+        List<Timer> timers = decoder.decodeAll(stream("[" + DOCUMENT + ",{\"_id\":\"2\",\"name\":\"Garden\","
+                + "\"end\":3,\"last_seen\":4}]"));
+        assertEquals(2, timers.size());
+        assertEquals("Valve", timers.get(0).getName());
+        assertEquals("Garden", timers.get(1).getName());
+        assertEquals(3, timers.get(1).getEnd());
+        assertTrue(decoder.decodeAll(stream("[]")).isEmpty());
+    }
+
+    @Test
+    public void decodeObject_usesGivenNameWhenMissing() throws IOException {
+        Timer timer = decoder.decodeObject(stream("{\"end\":5.0,\"_id\":\"x\",\"last_seen\":-1e3}"), "Valve");
+        assertEquals("x", timer.getId());
+        assertEquals("Valve", timer.getName());
+        assertEquals(5, timer.getEnd());
+        assertEquals(-1000, timer.getLastSeen());
+    }
+
+    @Test
+    public void decodeObject_roundsNumbersLikeOrgJson() throws IOException {
+        Timer timer = decoder.decodeObject(stream("{\"_id\":\"x\",\"end\":1.571000123E9,\"last_seen\":-2.9}"), "Valve");
+        assertEquals(1571000123, timer.getEnd());
+        assertEquals(-2, timer.getLastSeen());
+        timer = decoder.decodeObject(stream("{\"_id\":\"x\",\"end\":15710001.23e+2,\"last_seen\":25e-1}"), "Valve");
+        assertEquals(1571000123, timer.getEnd());
+        assertEquals(2, timer.getLastSeen());
+    }
+
+    @Test(expected = IOException.class)
+    public void decodeObject_malformedNumber() throws IOException {
+        decoder.decodeObject(stream("{\"_id\":\"x\",\"end\":1e,\"last_seen\":2}"), "Valve");
+    }
+
+    @Test
+    public void decodeObject_unescapesStrings() throws IOException {
+        Timer timer = decoder.decodeObject(
+                stream("{\"_id\":\"a\\\"b\",\"name\":\"V\\u00e4lve \\u2603\\n\",\"end\":1,\"last_seen\":2}"), null);
+        assertEquals("a\"b", timer.getId());
+        assertEquals("V\u00e4lve \u2603\n", timer.getName());
+    }
+
+    @Test
+    public void decodeObject_combinesSurrogatePairs() throws IOException {
+        Timer timer = decoder.decodeObject(stream("{\"_id\":\"x\",\"name\":\"\\ud83c\\udf31 Bed\",\"end\":1,"
+                + "\"last_seen\":2}"), null);
+        assertEquals("\ud83c\udf31 Bed", timer.getName());
+        // unpaired surrogates are replaced
+        timer = decoder.decodeObject(stream("{\"_id\":\"\\ud83c\\n\\udf31\\ud83c\",\"end\":1,\"last_seen\":2}"), null);
+        assertEquals("\ufffd\n\ufffd\ufffd", timer.getId());
+    }
+
+    @Test
+    public void decodeObject_skipsWrongTypesAndEscapedKeys() throws IOException {
+        Timer timer = decoder.decodeObject(stream("{\"_id\":\"x\",\"n\\u0061me\":\"ignored\",\"name\":[\"y\"],"
+                + "\"end\":7,\"last_seen\":8}"), "Valve");
+        assertEquals("Valve", timer.getName());
+    }
+
+    @Test(expected = IOException.class)
+    public void decodeObject_missingField() throws IOException {
+        decoder.decodeObject(stream("{\"_id\":\"x\",\"end\":7}"), "Valve");
+    }
+
+    @Test(expected = IOException.class)
+    public void decodeObject_truncated() throws IOException {
+        decoder.decodeObject(stream("{\"_id\":\"x\",\"end\":7,\"notes\":[1,2"), "Valve");
+    }
+
+    @Test
+    public void decodeFirst_largeArrayReadOneByteAtATime() throws IOException {
+        StringBuilder sb = new StringBuilder("[");
+        sb.append(DOCUMENT);
+        for (int i = 0; i < 2000; i++) {
+            sb.append(',').append(DOCUMENT);
+        }
+        sb.append(']');
+        Timer timer = decoder.decodeFirst(new OneByteInputStream(stream(sb.toString())), "Valve");
+        assertEquals("5d9e1f", timer.getId());
+        // the decoder is reused between responses
+        timer = decoder.decodeFirst(stream("[" + DOCUMENT + "]"), "Valve");
+        assertEquals(1571000123, timer.getEnd());
+    }
+
+    private static InputStream stream(String content) {
+        return new ByteArrayInputStream(content.getBytes(HttpTransport.UTF_8));
+    }
+
+    private static class OneByteInputStream extends FilterInputStream {
+        OneByteInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return super.read(b, off, Math.min(len, 1));
+        }
+    }
+}
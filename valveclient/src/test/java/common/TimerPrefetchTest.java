@@ -0,0 +1,103 @@
+package common;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import models.Timer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TimerPrefetchTest {
+    private static final String FOUND = "[{\"_id\":\"1\",\"name\":\"Valve\",\"end\":0,\"last_seen\":0}]";
+    private static final long MAX_AGE = 10000;
+
+    private StandInServer server;
+    private ValveClient client;
+    private final TimerPrefetch prefetch = new TimerPrefetch(MAX_AGE);
+
+    @Before
+    public void setUp() throws IOException {
+        server = StandInServer.returning(FOUND);
+        client = new ValveClient(new HttpTransport(server.getUrl(), "key", 1000, 5000), 2);
+    }
+
+    @After
+    public void tearDown() {
+        client.shutdown();
+        server.stop();
+    }
+
+    @Test
+    public void take_bindsToTheRequestInFlightAndKeepsItsConnection() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        server.setResponder(new StandInServer.Responder() {
+            @Override
+            public String respond(HttpExchange exchange, String requestBody) throws IOException {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return FOUND;
+            }
+        });
+        prefetch.start(client, "Valve", 0);
+        Future<Timer> taken = prefetch.take("Valve", 100);
+        assertNotNull(taken);
+        release.countDown();
+
+        Timer timer = TimerPrefetch.await(taken, 5000);
+        assertEquals("1", timer.getId());
+        assertEquals(1, server.getRequestCount());
+        // the screen's next request goes over the connection the prefetch opened
+        client.fetch("Valve");
+        assertEquals(2, server.getRequestCount());
+        assertEquals(1, server.getConnectionCount());
+    }
+
+    @Test
+    public void take_onlyOnceForTheSameValveWhileFresh() throws Exception {
+        prefetch.start(client, "Valve", 0);
+        assertNull(prefetch.take("Other", 100));
+        // a prefetch for another valve is dropped
+        assertNull(prefetch.take("Valve", 100));
+
+        prefetch.start(client, "Valve", 0);
+        assertNotNull(prefetch.take("Valve", MAX_AGE));
+        assertNull(prefetch.take("Valve", MAX_AGE));
+
+        prefetch.start(client, "Valve", 0);
+        assertNull(prefetch.take("Valve", MAX_AGE + 1));
+        assertNull(new TimerPrefetch(MAX_AGE).take("Valve", 0));
+    }
+
+    @Test
+    public void await_throwsWhatTheFetchThrew() throws Exception {
+        server.setResponder(new StandInServer.Responder() {
+            @Override
+            public String respond(HttpExchange exchange, String requestBody) throws IOException {
+                exchange.sendResponseHeaders(503, -1);
+                return null;
+            }
+        });
+        prefetch.start(client, "Valve", 0);
+        try {
+            TimerPrefetch.await(prefetch.take("Valve", 0), 5000);
+            fail("expected the server error");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("503"));
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package common;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import models.Timer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TimerStoreTest {
+    private static final int THREADS = 8;
+    private static final int SETS_PER_THREAD = 20000;
+    private static final int LAST_SEEN_THRESH = 10;
+
+    @Test
+    public void set_notifiesOnlyOnChange() {
+        TimerStore store = new TimerStore(LAST_SEEN_THRESH);
+        final AtomicInteger notifications = new AtomicInteger();
+        store.subscribe(new TimerStore.Listener() {
+            @Override
+            public void onTimerChanged(Timer timer) {
+                notifications.incrementAndGet();
+            }
+        });
+        assertFalse(store.set(null));
+        assertTrue(store.set(new Timer("1", "Valve", 10, 5)));
+        assertFalse(store.set(new Timer("1", "Valve", 10, 5)));
+        assertTrue(store.set(new Timer("1", "Valve", 20, 5)));
+        assertTrue(store.set(null));
+        assertNull(store.get());
+        assertEquals(3, notifications.get());
+    }
+
+    /* Polls of an online valve only move last_seen, which the screen doesn't show */
+    @Test
+    public void set_ignoresLastSeenWhileOnline() {
+        ServerClock clock = new ServerClock(new ServerClock.Source() {
+            @Override
+            public long monotonicMillis() {
+                return 1000000;
+            }
+
+            @Override
+            public long wallMillis() {
+                return 1000000;
+            }
+        });
+        TimerStore store = new TimerStore(LAST_SEEN_THRESH);
+        final AtomicInteger notifications = new AtomicInteger();
+        store.subscribe(new TimerStore.Listener() {
+            @Override
+            public void onTimerChanged(Timer timer) {
+                notifications.incrementAndGet();
+            }
+        });
+        assertTrue(store.set(new Timer("1", "Valve", 0, 995, clock)));
+        Timer latest = new Timer("1", "Valve", 0, 998, clock);
+        assertFalse(store.set(latest));
+        // the newest snapshot is kept even though nobody was told
+        assertSame(latest, store.get());
+        assertEquals(1, notifications.get());
+
+        // coming back online, and how long an offline valve has been gone, are shown
+        assertTrue(store.set(new Timer("1", "Valve", 0, 900, clock)));
+        assertTrue(store.set(new Timer("1", "Valve", 0, 950, clock)));
+        assertTrue(store.set(new Timer("1", "Valve", 0, 999, clock)));
+        assertEquals(4, notifications.get());
+    }
+
+    /* Writers race on the store while a subscriber tracks what it was told, the last notification must match */
+    @Test
+    public void stress_lastNotificationIsFinalState() throws Exception {
+        final TimerStore store = new TimerStore(LAST_SEEN_THRESH);
+        final AtomicReference<Timer> lastSeen = new AtomicReference<>();
+        final AtomicInteger notifications = new AtomicInteger();
+        store.subscribe(new TimerStore.Listener() {
+            @Override
+            public void onTimerChanged(Timer timer) {
+                notifications.incrementAndGet();
+                synchronized (lastSeen) {
+                    lastSeen.set(timer);
+                }
+            }
+        });
+
+        final CyclicBarrier start = new CyclicBarrier(THREADS);
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        final AtomicInteger changes = new AtomicInteger();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < SETS_PER_THREAD; i++) {
+                            // few distinct values so many sets are no-ops
+                            if (store.set(new Timer("1", "Valve", (thread + i) % 4, 0))) {
+                                changes.incrementAndGet();
+                            }
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        done.await();
+
+        assertEquals(changes.get(), notifications.get());
+        assertTrue(changes.get() < THREADS * SETS_PER_THREAD);
+        // one more change from this thread makes the listener see the final state
+        Timer last = new Timer("1", "Valve", 99, 0);
+        store.set(last);
+        assertSame(last, lastSeen.get());
+    }
+
+    /* Readers never see a partially built snapshot */
+    @Test
+    public void stress_readersSeeConsistentSnapshots() throws Exception {
+        final TimerStore store = new TimerStore(LAST_SEEN_THRESH);
+        final AtomicInteger inconsistent = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        for (int t = 0; t < THREADS; t++) {
+            final boolean writer = t % 2 == 0;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < SETS_PER_THREAD; i++) {
+                        if (writer) {
+                            // end and last seen always match within a snapshot
+                            store.set(new Timer(Integer.toString(i), "Valve", i, i));
+                        } else {
+                            Timer timer = store.get();
+                            if (timer != null && (timer.getEnd() != timer.getLastSeen()
+                                    || !timer.getId().equals(Integer.toString(timer.getEnd())))) {
+                                inconsistent.incrementAndGet();
+                            }
+                        }
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        assertEquals(0, inconsistent.get());
+    }
+}
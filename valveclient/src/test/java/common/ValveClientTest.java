@@ -0,0 +1,238 @@
+package common;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import models.Timer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ValveClientTest {
+    private static final Pattern QUOTED = Pattern.compile("\"((?:[^\"\\\\]|\\\\.)*)\"");
+    private static final Pattern END = Pattern.compile("\"end\":(-?\\d+)");
+
+    private StandInServer server;
+    private ValveClient client;
+    // the documents on the stand-in server by id, the id is the name
+    private final Map<String, Integer> ends = new ConcurrentHashMap<>();
+    private final AtomicInteger queries = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private volatile long delay = 0;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StandInServer(new StandInServer.Responder() {
+            @Override
+            public String respond(HttpExchange exchange, String requestBody) throws IOException {
+                int current = inFlight.incrementAndGet();
+                try {
+                    while (true) {
+                        int max = maxInFlight.get();
+                        if (current <= max || maxInFlight.compareAndSet(max, current)) {
+                            break;
+                        }
+                    }
+                    Thread.sleep(delay);
+                    if (exchange.getRequestHeaders().getFirst("x-http-method-override") != null) {
+                        return patch(exchange, requestBody);
+                    }
+                    return query(exchange);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            }
+        });
+        client = new ValveClient(new HttpTransport(server.getUrl(), "key", 1000, 5000), 2);
+    }
+
+    @After
+    public void tearDown() {
+        client.shutdown();
+        server.stop();
+    }
+
+    private String query(HttpExchange exchange) throws IOException {
+        queries.incrementAndGet();
+        String q = exchange.getRequestURI().getRawQuery().replaceAll("^q=([^&]*).*", "$1");
+        Matcher matcher = QUOTED.matcher(URLDecoder.decode(q, "UTF-8"));
+        StringBuilder body = new StringBuilder("[");
+        while (matcher.find()) {
+            String name = matcher.group(1);
+            if (ends.containsKey(name)) {
+                body.append(body.length() > 1 ? "," : "").append(document(name));
+            }
+        }
+        return body.append("]").toString();
+    }
+
+    private String patch(HttpExchange exchange, String requestBody) {
+        String id = exchange.getRequestURI().getPath().replaceAll(".*/", "");
+        Matcher matcher = END.matcher(requestBody);
+        assertTrue(matcher.find());
+        ends.put(id, Integer.parseInt(matcher.group(1)));
+        return document(id);
+    }
+
+    private String document(String name) {
+        long now = System.currentTimeMillis() / 1000;
+        return String.format("{\"_id\":\"%s\",\"name\":\"%s\",\"end\":%d,\"last_seen\":%d}", name, name,
+                ends.get(name), now);
+    }
+
+    private static List<String> names(String prefix, int count) {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            names.add(prefix + i);
+        }
+        return names;
+    }
+
+    @Test
+    public void fetch_encodesName() throws IOException {
+        ends.put("Valve & Co", 1300);
+        Timer timer = client.fetch("Valve & Co");
+        assertEquals(1300, timer.getEnd());
+        assertNull(client.fetch("Valve"));
+    }
+
+    /* Names are quoted as JSON strings, only quotes, backslashes and control characters are escaped */
+    @Test
+    public void nameInQuery_escapesNames() throws IOException {
+        List<String> names = Arrays.asList("Say \"hi\"", "back\\slash", "G\u00e4rten \u2603", "\ud83c\udf31", "a\tb");
+        String query = ValveClient.nameInQuery(names);
+        assertEquals("{\"name\":{\"$in\":[\"Say \\\"hi\\\"\",\"back\\\\slash\",\"G\u00e4rten \u2603\","
+                + "\"\ud83c\udf31\",\"a\\u0009b\"]}}", query);
+        assertEquals(query, URLDecoder.decode(ValveClient.encode(query), "UTF-8"));
+
+        // what the server stores for such a name comes back as the same name
+        for (String name : names) {
+            StringBuilder document = new StringBuilder("{\"_id\":\"1\",\"name\":");
+            ValveClient.appendJsonString(document, name);
+            document.append(",\"end\":0,\"last_seen\":0}");
+            Timer timer = new TimerDecoder().decodeObject(
+                    new ByteArrayInputStream(document.toString().getBytes(HttpTransport.UTF_8)), null);
+            assertEquals(name, timer.getName());
+        }
+    }
+
+    /* 250 names take three queries, running two at a time */
+    @Test
+    public void getAll_queriesBatchesInParallel() throws Exception {
+        for (String name : names("valve", 200)) {
+            ends.put(name, 0);
+        }
+        delay = 50;
+        List<String> names = names("valve", 250);
+        Map<String, Timer> timers = client.getAll(names).get(5, TimeUnit.SECONDS);
+        assertEquals(200, timers.size());
+        assertEquals("valve199", timers.get("valve199").getName());
+        assertEquals(3, queries.get());
+        assertEquals(2, maxInFlight.get());
+
+        assertEquals(timers.keySet(), client.fetchAll(names).keySet());
+    }
+
+    @Test
+    public void getAll_empty() throws Exception {
+        assertTrue(client.getAll(Collections.<String>emptyList()).get(5, TimeUnit.SECONDS).isEmpty());
+        assertEquals(0, queries.get());
+    }
+
+    /* One lookup for the batch, then a PATCH per valve that never has more than the pool's size in flight */
+    @Test
+    public void setAll_patchesEveryValve() throws Exception {
+        List<String> names = names("valve", 10);
+        for (String name : names) {
+            ends.put(name, 0);
+        }
+        delay = 20;
+        Map<String, Future<Timer>> results = client.setAll(names, 600);
+        assertEquals(names, new ArrayList<>(results.keySet()));
+        int now = client.getTransport().getServerClock().currentTimeSeconds();
+        for (String name : names) {
+            Timer timer = results.get(name).get(5, TimeUnit.SECONDS);
+            assertEquals(name, timer.getName());
+            assertTrue(Math.abs(now + 600 - timer.getEnd()) <= 1);
+            assertEquals(timer.getEnd(), (int) ends.get(name));
+        }
+        assertEquals(1, queries.get());
+        assertEquals(2, maxInFlight.get());
+    }
+
+    @Test
+    public void setAll_reportsMissingValve() throws Exception {
+        ends.put("Valve", 1300);
+        Map<String, Future<Timer>> results = client.stopAll(Arrays.asList("Valve", "Nope"));
+        assertTrue(results.get("Valve").get(5, TimeUnit.SECONDS).getEnd() > 1300);
+        try {
+            results.get("Nope").get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals("Nope", ((ValveClient.NotFoundException) e.getCause()).getName());
+        }
+    }
+
+    @Test
+    public void setAll_failsEveryValveOfAFailedBatch() throws Exception {
+        ends.put("Valve", 0);
+        server.stop();
+        Future<Timer> result = client.set("Valve", 60);
+        try {
+            result.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    /* The first poll reports every valve, missing ones as null */
+    @Test
+    public void watch_reportsValves() throws InterruptedException {
+        ends.put("Valve", 0);
+        final Map<String, String> seen = new ConcurrentHashMap<>();
+        final CountDownLatch reported = new CountDownLatch(2);
+        ValveClient.Watch watch = client.watch(Arrays.asList("Valve", "Nope"), new ValveClient.WatchListener() {
+            @Override
+            public void onTimerChanged(String name, Timer timer) {
+                seen.put(name, timer == null ? "null" : String.valueOf(timer.getEnd()));
+                reported.countDown();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                fail();
+            }
+        });
+        assertTrue(reported.await(5, TimeUnit.SECONDS));
+        watch.cancel();
+        assertEquals("0", seen.get("Valve"));
+        assertEquals("null", seen.get("Nope"));
+        assertEquals(1, queries.get());
+    }
+}
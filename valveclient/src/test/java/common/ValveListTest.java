@@ -0,0 +1,139 @@
+package common;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import models.Timer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ValveListTest {
+    private static final int NOW = 1571000000;
+
+    // what a RecyclerView would show after applying the notifications
+    private final List<String> shown = new ArrayList<>();
+    private final List<Integer> changed = new ArrayList<>();
+    private int operations = 0;
+    private ValveList valves;
+    private final ValveList.Listener listener = new ValveList.Listener() {
+        @Override
+        public void onInserted(int position, int count) {
+            operations++;
+            for (int i = 0; i < count; i++) {
+                shown.add(position + i, valves.getName(position + i));
+            }
+        }
+
+        @Override
+        public void onRemoved(int position, int count) {
+            operations++;
+            for (int i = 0; i < count; i++) {
+                shown.remove(position);
+            }
+        }
+
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+            operations++;
+            shown.add(toPosition, shown.remove(fromPosition));
+        }
+
+        @Override
+        public void onChanged(int position) {
+            changed.add(position);
+        }
+    };
+
+    {
+        valves = new ValveList(listener);
+    }
+
+    @Test
+    public void setNames_notifiesTheRowOperations() {
+        valves.setNames(Arrays.asList("a", "b", "c", "d"));
+        assertEquals(Arrays.asList("a", "b", "c", "d"), shown);
+
+        operations = 0;
+        valves.setNames(Arrays.asList("d", "a", "e", "c"));
+        assertEquals(Arrays.asList("d", "a", "e", "c"), shown);
+        assertEquals(valves.getNames(), shown);
+        // remove b, move d, insert e
+        assertEquals(3, operations);
+
+        operations = 0;
+        valves.setNames(Arrays.asList("d", "a", "e", "c"));
+        assertEquals(0, operations);
+
+        valves.setNames(Arrays.asList("x", "x", "c"));
+        assertEquals(Arrays.asList("x", "c"), shown);
+        valves.setNames(Collections.<String>emptyList());
+        assertEquals(0, shown.size());
+    }
+
+    @Test
+    public void setNames_keepsTheTimers() {
+        valves.setNames(Arrays.asList("a", "b"));
+        valves.setTimer(new Timer("1", "b", NOW + 60, NOW));
+        valves.setNames(Arrays.asList("b", "c", "a"));
+        assertEquals(NOW + 60, valves.getTimer(0).getEnd());
+        assertNull(valves.getTimer(1));
+    }
+
+    /* A poll of 200 valves where two changed rebinds two rows */
+    @Test
+    public void onPolled_notifiesOnlyChangedRows() {
+        List<String> names = new ArrayList<>();
+        Map<String, Timer> timers = new HashMap<>();
+        for (int i = 0; i < 200; i++) {
+            names.add("valve " + i);
+            timers.put("valve " + i, new Timer(String.valueOf(i), "valve " + i, 0, NOW));
+        }
+        valves.setNames(names);
+        PollScheduler scheduler = new PollScheduler(10);
+        valves.onPolled(names, timers, NOW, scheduler);
+        assertEquals(200, changed.size());
+
+        changed.clear();
+        timers.put("valve 7", new Timer("7", "valve 7", NOW + 600, NOW));
+        timers.remove("valve 150");
+        // equal but new snapshots of the others
+        for (int i = 0; i < 100; i++) {
+            timers.put("valve " + i, new Timer(String.valueOf(i), "valve " + i, i == 7 ? NOW + 600 : 0, NOW));
+        }
+        valves.onPolled(names, timers, NOW + 1, scheduler);
+        assertEquals(Arrays.asList(7, 150), changed);
+        assertNull(valves.getTimer(150));
+    }
+
+    @Test
+    public void collectDue_followsTheSchedule() {
+        valves.setNames(Arrays.asList("on", "idle", "unknown"));
+        List<String> due = new ArrayList<>();
+        valves.collectDue(NOW, due);
+        assertEquals(Arrays.asList("on", "idle", "unknown"), due);
+
+        Map<String, Timer> timers = new HashMap<>();
+        timers.put("on", new Timer("1", "on", NOW + 20, NOW));
+        timers.put("idle", new Timer("2", "idle", NOW - 3600, NOW));
+        valves.onPolled(due, timers, NOW, new PollScheduler(10));
+
+        due.clear();
+        valves.collectDue(NOW + PollScheduler.UNKNOWN_INTERVAL, due);
+        assertEquals(Collections.singletonList("unknown"), due);
+        due.clear();
+        valves.collectDue(NOW + 20 + PollScheduler.END_MARGIN, due);
+        assertEquals(Arrays.asList("on", "unknown"), due);
+
+        valves.checkAll();
+        due.clear();
+        valves.collectDue(NOW, due);
+        assertEquals(3, due.size());
+    }
+}